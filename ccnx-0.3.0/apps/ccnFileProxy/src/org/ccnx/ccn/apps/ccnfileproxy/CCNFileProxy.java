@@ -18,17 +18,18 @@
 package org.ccnx.ccn.apps.ccnfileproxy;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.*;
 import java.lang.*;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.ccnx.ccn.CCNFilterListener;
 import org.ccnx.ccn.CCNHandle;
 import org.ccnx.ccn.config.ConfigurationException;
+import org.ccnx.ccn.impl.CCNFlowControl;
 import org.ccnx.ccn.impl.support.Log;
-import org.ccnx.ccn.io.CCNFileOutputStream;
 import org.ccnx.ccn.profiles.CommandMarker;
 import org.ccnx.ccn.profiles.SegmentationProfile;
 import org.ccnx.ccn.profiles.VersioningProfile;
@@ -39,6 +40,7 @@ import org.ccnx.ccn.profiles.nameenum.NameEnumerationResponse.NameEnumerationRes
 import org.ccnx.ccn.profiles.security.KeyProfile;
 import org.ccnx.ccn.protocol.CCNTime;
 import org.ccnx.ccn.protocol.ContentName;
+import org.ccnx.ccn.protocol.ContentObject;
 import org.ccnx.ccn.protocol.Exclude;
 import org.ccnx.ccn.protocol.ExcludeComponent;
 import org.ccnx.ccn.protocol.Interest;
@@ -63,14 +65,12 @@ import org.apache.log4j.*;
  * then asking for ccnx:/testprefix/bar.txt would return the file bar.txt (segmented
  * appropriately), and asking for ccnx:/testprefix/baz/box.txt would return box.txt.
  * The version for each file is set using the last modified information available from
- * the file system for the real file (but the file is re-signed every time you ask
- * for it from this server, so will result in slightly different pieces of content
- * with different signatures). The default prefix is ccnx:/, which means asking
+ * the file system for the real file. The signed segments of each version are kept
+ * (see SegmentCache), so asking again for an unchanged file gets you the same pieces
+ * of content with the same signatures. The default prefix is ccnx:/, which means asking
  * for ccnx:/bar.txt would get you bar.txt.
  * 
  * Future improvements: 
- * - cache the original signing information so even if the
- * data falls out of ccnd's cache, you get the same signature information back,
  * - implement a NE responder to list files. 
  * - signal handling
  * - logging level control from a command line argument
@@ -79,15 +79,18 @@ import org.apache.log4j.*;
 public class CCNFileProxy implements CCNFilterListener {
 	
 	static String DEFAULT_URI = "ccnx:/";
-	static int BUF_SIZE = 4096;
 	
 	protected boolean _finished = false;
 	protected ContentName _prefix; 
 	protected String _filePrefix;
 	protected File _rootDirectory;
 	protected CCNHandle _handle;
-    boolean processing = false;
-    boolean fileTransfer = false;
+	protected ServiceScheduler _scheduler;
+	protected ServiceRegistry _services;
+	protected ccngetjar _jars;
+	protected ServiceResultCache _results;
+	protected SegmentPublisher _publisher;
+	protected EnumerationCache _enumerations;
 	
     static Logger logger = Logger.getLogger(CCNFileProxy.class);
 	private ContentName _responseName = null;
@@ -108,6 +111,12 @@ public class CCNFileProxy implements CCNFilterListener {
 			throw new IOException("Cannot serve files from directory " + filePrefix + ": directory does not exist!");
 		}
 		_handle = CCNHandle.open();
+		_scheduler = new ServiceScheduler(this);
+		_services = new ServiceRegistry();
+		_jars = new ccngetjar(_handle);
+		_results = new ServiceResultCache();
+		_publisher = new SegmentPublisher(_handle);
+		_enumerations = new EnumerationCache();
 		
 		//set response name for NE requests
 		_responseName = KeyProfile.keyName(null, _handle.keyManager().getDefaultKeyID());
@@ -200,72 +209,126 @@ public class CCNFileProxy implements CCNFilterListener {
     /**
      * Depending on the service requested, it downloads corresponding java
      * module, dynamically loads it and produces a SMIL file output to be 
-     * sent to the client.
-     * @param interest
-     * @param rootdirectory
-     * @param filename
+     * sent to the client. Called on a ServiceScheduler worker thread; several
+     * services may run at once, but never two for the same file and service.
+     * The output of an earlier run is reused if the source file and the service
+     * jar have not changed since and it is within the service's time to live.
+     * @param fn file path relative to the root directory
      * @param service
+     * @return the service output
      */
-    void addService(Interest interest, String _rootDirectory, String fn, String service) {
-        if (checkForServiceNameValidity(service) == false) {
-            return;
+    ServiceResultCache.Result runService(String fn, String service) throws Exception {
+        String file = fn.substring(1, fn.length());
+        String root = _rootDirectory.toString();
+        String parameters = fn;
+        ccngetjar.CachedJar jar = _jars.getJarFile(service + ".jar");
+        if (null == jar) {
+            throw new IOException("Service module " + service + ".jar is not available");
         }
-        if (processing == true || fileTransfer == true) {
-            return;
+        long sourceModified = new File(root, file).lastModified();
+        long serviceVersion = jar.version().toBinaryTimeAsLong();
+        ServiceResultCache.Result cached = _results.get(fn, service, sourceModified, serviceVersion, parameters);
+        if (null != cached) {
+            logger.info("Reusing earlier output of service " + service + " for " + file);
+            return cached;
         }
-        if (SegmentationProfile.isSegment(interest.name()) == true) {
-            fileTransfer = false; // Get ready for any new requests.
-            return;
+        logger.info("Calling service " + service);
+        File output = new File(root, file + "%2B" + service);
+        if (isVideoProcessingRequired(service) == true) {
+            // The service rewrites the video it is given, so give it a private copy
+            // and move the result into place when it is done.
+            int dot = file.lastIndexOf('.');
+            String suffix = (dot > file.lastIndexOf('/')) ? file.substring(dot) : "";
+            File staging = FileStaging.createStagingFile(output, suffix);
+            try {
+                FileStaging.stage(new File(root, file), staging);
+                _services.invoke(service, jar.file(), serviceVersion, staging.getPath());
+                logger.info("Dynamic processing of the video done. File will be served shortly.");
+                FileStaging.commit(staging, output);
+            } finally {
+                staging.delete(); // only still there if we failed
+            }
+            return _results.put(fn, service, sourceModified, serviceVersion, parameters, output, null);
         }
-        if (MetadataProfile.isHeader(interest.name())) {
-            return;
+        String smil = _services.invoke(service, jar.file(), serviceVersion, fn);
+        if (null == smil) {
+            throw new IOException("Service " + service + " produced no output for " + file);
         }
-        String file = fn.substring(1, fn.length());
-        ccngetjar j = new ccngetjar();
-        j.getJarFile(service+".jar");
-        /* set processing to true. This will avoid complications arising from duplicate requests */
-        processing = true;
-        logger.info("Calling dynamic loader");
-        String smil = "Error in dynamic loading of the \"" + service + "\" module. SMIL file not generated.\n";
-        String tmp = "", from = "", to = "";
+        byte [] content = smil.getBytes();
+        File staging = FileStaging.createStagingFile(output, "");
         try {
-            if (isVideoProcessingRequired(service) == true) {
-                from = _rootDirectory + "/" + file;
-                to = _rootDirectory + "/" + file + "%2B" + service;
-                File f = new File(to);
-                tmp = _rootDirectory + "/" + "tmp.mp4";
-                try {
-                    Runtime.getRuntime().exec("cp "+from+" "+tmp);
-                    fn = tmp;
-                } catch (Exception e) {
-                    logger.info(e + ": Unable to copy to tmp file.");
-                }
+            FileStaging.write(staging, content);
+            FileStaging.commit(staging, output);
+        } finally {
+            staging.delete();
+        }
+        return _results.put(fn, service, sourceModified, serviceVersion, parameters, output, content);
+    }
+
+    /**
+     * Look for a reusable output without blocking: only consulted when the service
+     * jar is known to be current.
+     * @return the output, or null if the service has to be run
+     */
+    protected ServiceResultCache.Result cachedResult(String fn, String service) {
+        ccngetjar.CachedJar jar = _jars.getFreshJar(service + ".jar");
+        if (null == jar) {
+            return null;
+        }
+        long sourceModified = new File(_rootDirectory, fn.substring(1)).lastModified();
+        return _results.get(fn, service, sourceModified, jar.version().toBinaryTimeAsLong(), fn);
+    }
+
+    /**
+     * Hand an interest for <file>%2B<service> to the service scheduler. Interests for
+     * the unsegmented name run the service (or join a run already in progress); interests
+     * for the first segment join a run in progress, or are answered from the output
+     * already on disk. Outputs that can be reused are served without scheduling anything.
+     * @return true if the interest was consumed
+     */
+    protected boolean requestService(Interest interest, String fn, String service) throws IOException {
+        if (!SegmentationProfile.isSegment(interest.name())) {
+            ArrayList<Interest> interests = new ArrayList<Interest>();
+            interests.add(interest);
+            ServiceResultCache.Result cached = cachedResult(fn, service);
+            if (null != cached) {
+                return writeResult(cached, interests);
             }
-            DynamicLoader dl = new DynamicLoader(fn, service);
-            logger.info("Dynamic processing of the video done. File will be served shortly.");
-            if (isVideoProcessingRequired(service) == true) {
-                try {
-                    Runtime.getRuntime().exec("cp "+tmp+" "+to);
-                } catch (Exception e) {
-                    logger.info(e + ": Unable to copy to processed file.");
-                }
-            } else {
-                smil = dl.getSmil();
-                to = _rootDirectory + "/" + file + "%2B" + service;
-                try {
-                    BufferedWriter out = new BufferedWriter(new FileWriter(to));
-                    out.write(smil);
-                    out.close();
-                } catch (IOException e) {
-                }
+            if (_scheduler.submit(fn, service, interest)) {
+                return true;
             }
-        } catch (Exception e) {
-            processing = false;
-            fileTransfer = false;
+            Log.info("Service scheduler busy, not answering {0}", interest.name());
+            return false;
+        }
+        if (_scheduler.attach(fn, service, interest)) {
+            return true;
+        }
+        ArrayList<Interest> interests = new ArrayList<Interest>();
+        interests.add(interest);
+        return writeFile(ccnNameToFilePath(interest.name()), interests);
+    }
+
+    /**
+     * Publish the output of a completed service job to the interests that were waiting for it.
+     */
+    void publishServiceOutput(ServiceResultCache.Result output, List<Interest> interests) {
+        try {
+            writeResult(output, interests);
+        } catch (IOException e) {
+            Log.warning("IOException writing service output {0}: {1}: {2}", output.output().getAbsolutePath(), e.getClass().getName(), e.getMessage());
+        }
+    }
+
+    /**
+     * Publish a service output, from memory if we have it there.
+     */
+    protected boolean writeResult(ServiceResultCache.Result result, List<Interest> interests) throws IOException {
+        byte [] content = result.content();
+        if (null == content) {
+            return writeFile(result.output(), interests);
         }
-        /* Processing of the video done. File transfer to begin */
-        processing = false;
-        fileTransfer = true;
+        _publisher.publish(content, versionedName(interests.get(0), result.version()), interests);
+        return true;
     }
 
     protected String ccnNametoFile(ContentName name) {
@@ -280,7 +343,20 @@ public class CCNFileProxy implements CCNFilterListener {
         return tokens[0];
     }
 
-	protected File ccnNameToFilePath(Interest interest, ContentName name) {
+	protected String ccnNameToService(ContentName name) {
+		ContentName fileNamePostfix = name.postfix(_prefix);
+		if (null == fileNamePostfix) {
+			return null;
+		}
+
+        String[] tokens = fileNamePostfix.toString().split("\\%2B");
+        if (tokens.length != 2) {
+            return null;
+        }
+        return tokens[1];
+	}
+
+	protected File ccnNameToFilePath(ContentName name) {
 		
 		ContentName fileNamePostfix = name.postfix(_prefix);
 		if (null == fileNamePostfix) {
@@ -289,12 +365,6 @@ public class CCNFileProxy implements CCNFilterListener {
 			return null;
 		}
 
-        String fn = fileNamePostfix.toString();
-        String[] tokens = fn.split("\\%2B"); // '+' is converted to ascii hex code 2B by CCN node.
-        if (tokens.length == 2) {
-            addService(interest, _rootDirectory.toString(), tokens[0], tokens[1]);
-        }
-
 		File fileToWrite = new File(_rootDirectory, fileNamePostfix.toString());
 		logger.info("Resulting path name: " + fileToWrite.getAbsolutePath());
 		Log.info("file postfix {0}, resulting path name {1}", fileNamePostfix, fileToWrite.getAbsolutePath());
@@ -302,61 +372,60 @@ public class CCNFileProxy implements CCNFilterListener {
 	}
 	
 	/**
-	 * Actually write the file; should probably run in a separate thread.
-	 * @param fileNamePostfix
+	 * Answer an interest for a file, running a service first if one is named.
+	 * @param outstandingInterest
 	 * @throws IOException 
 	 */
 	protected boolean writeFile(Interest outstandingInterest) throws IOException {
 		
-        File check = new File(_rootDirectory, "/"+ccnNametoFile(outstandingInterest.name()));
+		String fn = ccnNametoFile(outstandingInterest.name());
+        File check = new File(_rootDirectory, "/"+fn);
         if (!check.exists()) {
             return (false);
         }
-        if (processing == true) {
-            return false;
+        String service = ccnNameToService(outstandingInterest.name());
+        if ((null != service) && checkForServiceNameValidity(service)) {
+            return requestService(outstandingInterest, fn, service);
         }
-		File fileToWrite = ccnNameToFilePath(outstandingInterest, outstandingInterest.name());
+		ArrayList<Interest> interests = new ArrayList<Interest>();
+		interests.add(outstandingInterest);
+		return writeFile(ccnNameToFilePath(outstandingInterest.name()), interests);
+	}
+
+	/**
+	 * Actually write the file. The name is taken from the first interest; all of them
+	 * are registered with the flow controller so each is answered.
+	 * @param fileToWrite
+	 * @param outstandingInterests interests for the file, at least one
+	 * @throws IOException 
+	 */
+	protected boolean writeFile(File fileToWrite, List<Interest> outstandingInterests) throws IOException {
 		Log.info("CCNFileProxy: extracted request for file: " + fileToWrite.getAbsolutePath() + " exists? ", fileToWrite.exists());
 		if (!fileToWrite.exists()) {
 			Log.warning("File {0} does not exist. Ignoring request.", fileToWrite.getAbsoluteFile());
 			return false;
 		}
 		
-		FileInputStream fis = null;
+		// Set the version of the CCN content to be the last modification time of the file.
 		try {
-			fis = new FileInputStream(fileToWrite);
+			_publisher.publish(fileToWrite, versionedName(outstandingInterests.get(0), new CCNTime(fileToWrite.lastModified())),
+							   outstandingInterests);
 		} catch (FileNotFoundException fnf) {
 			Log.warning("Unexpected: file we expected to exist doesn't exist: {0}!", fileToWrite.getAbsolutePath());
 			return false;
 		}
-		
-		// Set the version of the CCN content to be the last modification time of the file.
-		CCNTime modificationTime = new CCNTime(fileToWrite.lastModified());
-		ContentName versionedName = 
-			VersioningProfile.addVersion(new ContentName(_prefix, 
-						outstandingInterest.name().postfix(_prefix).components()), modificationTime);
-
-		// CCNFileOutputStream will use the version on a name you hand it (or if the name
-		// is unversioned, it will version it).
-		CCNFileOutputStream ccnout = new CCNFileOutputStream(versionedName, _handle);
-		
-		// We have an interest already, register it so we can write immediately.
-		ccnout.addOutstandingInterest(outstandingInterest);
-		
-		byte [] buffer = new byte[BUF_SIZE];
-		
-		int read = fis.read(buffer);
-		while (read >= 0) {
-			ccnout.write(buffer, 0, read);
-			read = fis.read(buffer);
-		} 
-		fis.close();
-		ccnout.close(); // will flush
-        /* Done with file transfer. Flag it */
-        fileTransfer = false;
-		
 		return true;
 	}
+
+	/**
+	 * The name to publish content for an interest under.
+	 * @param outstandingInterest
+	 * @param modificationTime version to publish under
+	 */
+	protected ContentName versionedName(Interest outstandingInterest, CCNTime modificationTime) {
+		return VersioningProfile.addVersion(new ContentName(_prefix, 
+					outstandingInterest.name().postfix(_prefix).components()), modificationTime);
+	}
 	
 	/**
 	 * Handle name enumeration requests
@@ -370,7 +439,7 @@ public class CCNFileProxy implements CCNFilterListener {
 		boolean result = false;
 		ContentName neRequestPrefix = interest.name().cut(CommandMarker.COMMAND_MARKER_BASIC_ENUMERATION.getBytes());
 		
-		File directoryToEnumerate = ccnNameToFilePath(interest, neRequestPrefix);
+		File directoryToEnumerate = ccnNameToFilePath(neRequestPrefix);
 		
 		if (!directoryToEnumerate.exists() || !directoryToEnumerate.isDirectory()) {
 			// nothing to enumerate
@@ -380,11 +449,12 @@ public class CCNFileProxy implements CCNFilterListener {
 		NameEnumerationResponse ner = new NameEnumerationResponse();
 		ner.setPrefix(new ContentName(neRequestPrefix, CommandMarker.COMMAND_MARKER_BASIC_ENUMERATION.getBytes()));
 		
-		Log.info("Directory to enumerate: {0}, last modified {1}", directoryToEnumerate.getAbsolutePath(), new CCNTime(directoryToEnumerate.lastModified()));
 		// stat() the directory to see when it last changed -- will change whenever
 		// a file is added or removed, which is the only thing that will change the
 		// list we return.
-		ner.setTimestamp(new CCNTime(directoryToEnumerate.lastModified()));
+		long lastModified = directoryToEnumerate.lastModified();
+		Log.info("Directory to enumerate: {0}, last modified {1}", directoryToEnumerate.getAbsolutePath(), new CCNTime(lastModified));
+		ner.setTimestamp(new CCNTime(lastModified));
 		// See if the resulting response is later than the previous one we released.
 		
 		//now add the response id
@@ -398,22 +468,48 @@ public class CCNFileProxy implements CCNFilterListener {
 	    potentialCollectionName = SegmentationProfile.segmentName(potentialCollectionName, SegmentationProfile.baseSegment());
 		//check if we should respond...
 		if (interest.matches(potentialCollectionName, null)) {
+
+			// If we have already answered for this version of the directory, send
+			// the same response again.
+			EnumerationCache.Response cached = _enumerations.get(directoryToEnumerate);
+			if ((null != cached) && cached.name().equals(potentialCollectionName)) {
+				putEnumerationResponse(prefixWithId, cached, interest);
+				Log.info("sending back cached name enumeration response {0}, timestamp (version) {1}.", ner.getPrefix(), ner.getTimestamp());
+				return true;
+			}
 		
 			// We want to set the version of the NE response to the time of the 
 			// last modified file in the directory. Unfortunately that requires us to
 			// stat() all the files whether we are going to respond or not.
 			String [] children = directoryToEnumerate.list();
+			ArrayList<String> names = (null == children) ? new ArrayList<String>() : EnumerationCache.visibleNames(children);
 			
-			if ((null != children) && (children.length > 0)) {
-				for (int i = 0; i < children.length; ++i) {
-					ner.add(children[i]);
+			if (names.size() > 0) {
+				for (String name : names) {
+					ner.add(name);
 				}
 
-				NameEnumerationResponseMessage nem = ner.getNamesForResponse();
-				NameEnumerationResponseMessageObject neResponse = new NameEnumerationResponseMessageObject(prefixWithId, nem, _handle);
-				neResponse.save(ner.getTimestamp(), interest);
+				// Keep the segments of the response as they are put, to answer later
+				// interests for this version without encoding and signing it again.
+				final ArrayList<ContentObject> objects = new ArrayList<ContentObject>();
+				CCNFlowControl flowControl = new CCNFlowControl(_handle) {
+					@Override
+					public ContentObject put(ContentObject co) throws IOException {
+						objects.add(co);
+						return super.put(co);
+					}
+				};
+				try {
+					NameEnumerationResponseMessage nem = ner.getNamesForResponse();
+					NameEnumerationResponseMessageObject neResponse = 
+						new NameEnumerationResponseMessageObject(prefixWithId, nem, null, null, flowControl);
+					neResponse.save(ner.getTimestamp(), interest);
+				} finally {
+					flowControl.close();
+				}
+				_enumerations.put(new EnumerationCache.Response(directoryToEnumerate, lastModified, potentialCollectionName, objects));
 				result = true;
-				Log.info("sending back name enumeration response {0}, timestamp (version) {1}.", ner.getPrefix(), ner.getTimestamp());
+				Log.info("sending back name enumeration response {0}, timestamp (version) {1}, {2} segments.", ner.getPrefix(), ner.getTimestamp(), objects.size());
 			} else {
 				Log.info("no children available: we are not sending back a response to the name enumeration interest (interest = {0}); our response would have been {1}", interest, potentialCollectionName);
 			}
@@ -429,6 +525,23 @@ public class CCNFileProxy implements CCNFilterListener {
 		return result;
 	}
 
+	/**
+	 * Answer a name enumeration interest with a response sent before.
+	 * @param prefixWithId the name the response was saved under
+	 */
+	protected void putEnumerationResponse(ContentName prefixWithId, EnumerationCache.Response response, Interest interest) throws IOException {
+		CCNFlowControl flowControl = new CCNFlowControl(prefixWithId, _handle);
+		try {
+			flowControl.handleInterest(interest);
+			for (ContentObject co : response.objects()) {
+				flowControl.put(co);
+			}
+			flowControl.afterClose();
+		} finally {
+			flowControl.close();
+		}
+	}
+
     /**
      * Turn off everything.
      * @throws IOException 
@@ -436,6 +549,11 @@ public class CCNFileProxy implements CCNFilterListener {
 	public void shutdown() throws IOException {
 		if (null != _handle) {
 			_handle.unregisterFilter(_prefix, this);
+			_scheduler.shutdown();
+			_services.shutdown();
+			_publisher.shutdown();
+			_enumerations.shutdown();
+			_results.save();
 			Log.info("Shutting down file proxy for " + _filePrefix + " on CCNx namespace " + _prefix + "...");
 			System.out.println("Shutting down file proxy for " + _filePrefix + " on CCNx namespace " + _prefix + "...");
 		}
@@ -0,0 +1,206 @@
+/*
+ * A CCNx file proxy program.
+ *
+ * Copyright (C) 2008, 2009 Palo Alto Research Center, Inc.
+ *
+ * This work is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License version 2 as published by the
+ * Free Software Foundation.
+ * This work is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details. You should have received a copy of the GNU General Public
+ * License along with this program; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+
+package org.ccnx.ccn.apps.ccnfileproxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ccnx.ccn.impl.support.Log;
+import org.ccnx.ccn.protocol.ContentName;
+import org.ccnx.ccn.protocol.ContentObject;
+
+/**
+ * Keeps the signed name enumeration responses CCNFileProxy has sent, one per directory,
+ * so that enumerating an unchanged directory again neither lists it nor encodes and
+ * signs a new response.
+ *
+ * Each directory with a cached response is watched for entries being created or
+ * deleted, which drops its response; the directory's modification time, which is also
+ * the response version, is checked as well in case the watch service misses or delays
+ * an event. Responses are kept in LRU order, bounded in number.
+ */
+public class EnumerationCache implements Runnable {
+
+	/**
+	 * Maximum number of directories whose responses are remembered. 0 disables the cache.
+	 */
+	public static final String ENUMERATION_ENTRIES_PROPERTY = "org.ccnx.fileproxy.EnumerationEntries";
+	public static final int ENUMERATION_ENTRIES_DEFAULT = 256;
+
+	/**
+	 * The content objects making up a name enumeration response.
+	 */
+	public static class Response {
+		protected File _directory;
+		protected long _modified;
+		protected ContentName _name;
+		protected List<ContentObject> _objects;
+
+		/**
+		 * @param directory the directory enumerated
+		 * @param modified its modification time when it was listed
+		 * @param name the name of the first segment of the response
+		 * @param objects the segments of the response, in order
+		 */
+		public Response(File directory, long modified, ContentName name, List<ContentObject> objects) {
+			_directory = directory;
+			_modified = modified;
+			_name = name;
+			_objects = objects;
+		}
+
+		public ContentName name() { return _name; }
+
+		public List<ContentObject> objects() { return _objects; }
+	}
+
+	protected int _maxEntries;
+	protected LinkedHashMap<String, Response> _responses;
+	protected WatchService _watcher;
+	protected Thread _thread;
+
+	public EnumerationCache() {
+		_maxEntries = Integer.getInteger(ENUMERATION_ENTRIES_PROPERTY, ENUMERATION_ENTRIES_DEFAULT);
+		_responses = new LinkedHashMap<String, Response>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Response> eldest) {
+				return size() > _maxEntries;
+			}
+		};
+		if (_maxEntries <= 0)
+			return;
+		try {
+			_watcher = FileSystems.getDefault().newWatchService();
+			_thread = new Thread(this, "CCNFileProxy enumeration watcher");
+			_thread.setDaemon(true);
+			_thread.start();
+		} catch (IOException e) {
+			// Still correct without it; the modification time check catches changes.
+			Log.warning("Cannot watch directories for enumeration cache: {0}", e.getMessage());
+		}
+	}
+
+	protected static String key(File directory) {
+		return directory.getAbsolutePath();
+	}
+
+	/**
+	 * @return the response for a directory, or null if there is none or the directory has changed
+	 */
+	public Response get(File directory) {
+		if (_maxEntries <= 0)
+			return null;
+		String key = key(directory);
+		synchronized (this) {
+			Response response = _responses.get(key);
+			if ((null != response) && (response._modified != directory.lastModified())) {
+				_responses.remove(key);
+				response = null;
+			}
+			return response;
+		}
+	}
+
+	public void put(Response response) {
+		if (_maxEntries <= 0)
+			return;
+		// Watch before remembering, so a change after the listing is never missed.
+		if (null != _watcher) {
+			try {
+				response._directory.toPath().register(_watcher, StandardWatchEventKinds.ENTRY_CREATE,
+													  StandardWatchEventKinds.ENTRY_DELETE);
+			} catch (IOException e) {
+				Log.info("Cannot watch {0} for changes: {1}", response._directory, e.getMessage());
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+		}
+		synchronized (this) {
+			_responses.put(key(response._directory), response);
+		}
+	}
+
+	public synchronized void invalidate(File directory) {
+		_responses.remove(key(directory));
+	}
+
+	public synchronized void clear() {
+		_responses.clear();
+	}
+
+	public synchronized int size() { return _responses.size(); }
+
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = _watcher.take();
+				Path directory = (Path)key.watchable();
+				boolean overflow = false;
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+						overflow = true;
+				}
+				if (overflow) {
+					clear();
+				} else {
+					invalidate(directory.toFile());
+				}
+				if (!key.reset()) {
+					// Directory is gone.
+					invalidate(directory.toFile());
+				}
+			}
+		} catch (InterruptedException e) {
+		} catch (ClosedWatchServiceException e) {
+		}
+	}
+
+	public void shutdown() {
+		if (null != _watcher) {
+			try {
+				_watcher.close();
+			} catch (IOException e) {}
+		}
+		clear();
+	}
+
+	/**
+	 * @return the names in a listing that should be enumerated; staging files
+	 * 	for service outputs in progress are left out
+	 */
+	public static ArrayList<String> visibleNames(String [] children) {
+		ArrayList<String> names = new ArrayList<String>(children.length);
+		for (String child : children) {
+			if (!child.startsWith(FileStaging.STAGING_PREFIX))
+				names.add(child);
+		}
+		return names;
+	}
+}
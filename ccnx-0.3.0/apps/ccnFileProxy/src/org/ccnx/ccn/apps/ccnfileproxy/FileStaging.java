@@ -0,0 +1,128 @@
+/*
+ * A CCNx file proxy program.
+ *
+ * Copyright (C) 2008, 2009 Palo Alto Research Center, Inc.
+ *
+ * This work is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License version 2 as published by the
+ * Free Software Foundation.
+ * This work is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details. You should have received a copy of the GNU General Public
+ * License along with this program; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+
+package org.ccnx.ccn.apps.ccnfileproxy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+import org.ccnx.ccn.impl.support.Log;
+
+/**
+ * Helpers for producing service outputs next to the files they are served as.
+ *
+ * Each job works on its own hidden staging file in the output's directory, so
+ * concurrent jobs never share a temporary, and the finished output is renamed
+ * over <file>%2B<service> in one step, so readers never see a partial file.
+ */
+public class FileStaging {
+
+	/**
+	 * Stage video inputs as hard links rather than copies. Only safe for services
+	 * that write a new file and rename it over their input, never modifying it in place.
+	 */
+	public static final String LINK_STAGING_PROPERTY = "org.ccnx.fileproxy.LinkStaging";
+
+	protected static final String STAGING_PREFIX = ".stage-";
+
+	/**
+	 * Create a staging file for an output.
+	 * @param output the file the result will finally be renamed to
+	 * @param suffix suffix for the staging file, e.g. ".mp4" for services that look at it
+	 */
+	public static File createStagingFile(File output, String suffix) throws IOException {
+		File dir = output.getAbsoluteFile().getParentFile();
+		return File.createTempFile(STAGING_PREFIX, suffix, dir);
+	}
+
+	/**
+	 * Fill a staging file with the contents of a source file, by hard link if
+	 * enabled and possible, otherwise with a single in-kernel channel transfer.
+	 */
+	public static void stage(File source, File staging) throws IOException {
+		if (Boolean.getBoolean(LINK_STAGING_PROPERTY)) {
+			try {
+				staging.delete();
+				Files.createLink(staging.toPath(), source.toPath());
+				return;
+			} catch (Exception e) {
+				Log.info("Cannot link {0} to {1}, copying instead: {2}", staging, source, e.getMessage());
+			}
+		}
+		copy(source, staging);
+	}
+
+	/**
+	 * Copy a file with FileChannel.transferTo, which lets the kernel move the data
+	 * without passing it through user space where the platform supports it.
+	 * @throws IOException if the source is truncated while it is being copied
+	 */
+	public static void copy(File source, File destination) throws IOException {
+		FileInputStream in = new FileInputStream(source);
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(destination);
+			FileChannel from = in.getChannel();
+			FileChannel to = out.getChannel();
+			long size = from.size();
+			long position = 0;
+			while (position < size) {
+				long count = from.transferTo(position, size - position, to);
+				if (count <= 0) {
+					// Nothing more to read before the size we started with: the source shrank
+					throw new IOException("Copy of " + source + " stopped at " + position + " of " + size + " bytes");
+				}
+				position += count;
+			}
+		} finally {
+			in.close();
+			if (null != out)
+				out.close();
+		}
+	}
+
+	/**
+	 * Write content to a staging file in a single channel write.
+	 */
+	public static void write(File staging, byte [] content) throws IOException {
+		FileOutputStream out = new FileOutputStream(staging);
+		try {
+			FileChannel channel = out.getChannel();
+			ByteBuffer buffer = ByteBuffer.wrap(content);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Atomically replace an output with a finished staging file.
+	 */
+	public static void commit(File staging, File output) throws IOException {
+		if (!staging.renameTo(output)) {
+			staging.delete();
+			throw new IOException("Cannot rename " + staging + " to " + output);
+		}
+	}
+}
@@ -0,0 +1,275 @@
+/*
+ * A CCNx file proxy program.
+ *
+ * Copyright (C) 2008, 2009 Palo Alto Research Center, Inc.
+ *
+ * This work is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License version 2 as published by the
+ * Free Software Foundation.
+ * This work is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details. You should have received a copy of the GNU General Public
+ * License along with this program; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+
+package org.ccnx.ccn.apps.ccnfileproxy;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ccnx.ccn.impl.support.Log;
+import org.ccnx.ccn.profiles.VersioningProfile;
+import org.ccnx.ccn.protocol.ContentName;
+import org.ccnx.ccn.protocol.ContentObject;
+
+/**
+ * Keeps the signed segments of published files, so that a file version is
+ * signed once and later interests for it are answered with the same content objects.
+ *
+ * Entries are keyed by file path and the unversioned name the file is published under,
+ * and are validated against the file's modification time (which is also its version)
+ * and length, so a new version of a file replaces the entry for the old one. The encoded content objects, header included,
+ * are kept in a spill file per entry rather than on the heap; only their offsets are
+ * held in memory. Entries are evicted least recently used first once the spill files
+ * exceed the size bound. Spill files do not outlive the proxy; any found at startup are
+ * removed.
+ */
+public class SegmentCache {
+
+	/**
+	 * Directory holding spill files.
+	 */
+	public static final String SEGMENT_CACHE_PROPERTY = "org.ccnx.fileproxy.SegmentCache";
+	public static final String SEGMENT_CACHE_DEFAULT = "segmentcache";
+
+	/**
+	 * Maximum total size of spill files, in bytes. 0 disables the cache.
+	 */
+	public static final String SEGMENT_CACHE_SIZE_PROPERTY = "org.ccnx.fileproxy.SegmentCacheSize";
+	public static final long SEGMENT_CACHE_SIZE_DEFAULT = 1024L * 1024 * 1024;
+
+	protected static final String SPILL_SUFFIX = ".spill";
+
+	/**
+	 * The signed segments of one version of a file.
+	 */
+	public static class Entry {
+		protected String _path;
+		protected long _modified;
+		protected long _length;
+		protected ContentName _name;
+		protected File _spill;
+		protected long [] _offsets; // _count + 1 offsets; object i is [_offsets[i], _offsets[i+1])
+		protected int _count;
+
+		protected Entry(String path, long modified, long length, ContentName name, File spill, long [] offsets, int count) {
+			_path = path;
+			_modified = modified;
+			_length = length;
+			_name = name;
+			_spill = spill;
+			_offsets = offsets;
+			_count = count;
+		}
+
+		public ContentName name() { return _name; }
+
+		/**
+		 * @return number of content objects, header included
+		 */
+		public int count() { return _count; }
+
+		public long size() { return _offsets[_count]; }
+
+		/**
+		 * Read a content object back from the spill file.
+		 * @param channel channel open on the spill file, see #open()
+		 * @param i index of the object, in the order it was published
+		 */
+		public ContentObject get(FileChannel channel, int i) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate((int)(_offsets[i+1] - _offsets[i]));
+			long position = _offsets[i];
+			while (buffer.hasRemaining()) {
+				int read = channel.read(buffer, position);
+				if (read < 0)
+					throw new IOException("Segment cache spill file " + _spill + " truncated");
+				position += read;
+			}
+			ContentObject co = new ContentObject();
+			co.decode(buffer.array());
+			return co;
+		}
+
+		/**
+		 * Open the spill file for reading. The returned stream must be closed by the caller;
+		 * the entry may be evicted, and its file deleted, while it is open.
+		 */
+		public FileInputStream open() throws IOException {
+			return new FileInputStream(_spill);
+		}
+	}
+
+	/**
+	 * Collects the content objects of a publication into a new spill file.
+	 */
+	public class Writer {
+		protected File _file;
+		protected ContentName _name;
+		protected File _spill;
+		protected BufferedOutputStream _out;
+		protected long [] _offsets = new long[64];
+		protected int _count = 0;
+
+		protected Writer(File file, ContentName name) throws IOException {
+			_file = file;
+			_name = name;
+			_spill = File.createTempFile("segments", SPILL_SUFFIX, _directory);
+			_out = new BufferedOutputStream(new FileOutputStream(_spill), 64 * 1024);
+		}
+
+		public void append(ContentObject co) throws IOException {
+			byte [] encoded = co.encode();
+			_out.write(encoded);
+			if (_count + 2 > _offsets.length)
+				_offsets = Arrays.copyOf(_offsets, 2 * _offsets.length);
+			_offsets[_count + 1] = _offsets[_count] + encoded.length;
+			_count++;
+		}
+
+		/**
+		 * Add what was collected to the cache.
+		 * @param modified modification time of the file when it was read
+		 * @param length length of the file when it was read
+		 */
+		public void finish(long modified, long length) throws IOException {
+			_out.close();
+			if ((_file.lastModified() != modified) || (_file.length() != length)) {
+				// Changed while we were publishing; what we have may be a mix of versions.
+				_spill.delete();
+				return;
+			}
+			add(new Entry(_file.getAbsolutePath(), modified, length, _name, _spill, _offsets, _count));
+		}
+
+		public void abort() {
+			try {
+				_out.close();
+			} catch (IOException e) {}
+			_spill.delete();
+		}
+	}
+
+	protected File _directory;
+	protected long _maxSize;
+	protected long _size = 0;
+	protected LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	protected AtomicLong _hits = new AtomicLong(0);
+	protected AtomicLong _misses = new AtomicLong(0);
+
+	public SegmentCache() {
+		_directory = new File(System.getProperty(SEGMENT_CACHE_PROPERTY, SEGMENT_CACHE_DEFAULT));
+		_maxSize = Long.getLong(SEGMENT_CACHE_SIZE_PROPERTY, SEGMENT_CACHE_SIZE_DEFAULT);
+		if (enabled()) {
+			_directory.mkdirs();
+			File [] stale = _directory.listFiles();
+			if (null != stale) {
+				for (File f : stale) {
+					if (f.getName().endsWith(SPILL_SUFFIX))
+						f.delete();
+				}
+			}
+		}
+	}
+
+	public boolean enabled() { return _maxSize > 0; }
+
+	/**
+	 * Look up the signed segments of a file.
+	 * @param file the file
+	 * @param name the versioned name it is to be published under
+	 * @return the entry, or null if the file has not been published at its current version
+	 */
+	public Entry get(File file, ContentName name) {
+		if (!enabled())
+			return null;
+		String key = key(file.getAbsolutePath(), name);
+		synchronized (this) {
+			Entry entry = _entries.get(key);
+			if (null != entry) {
+				if ((entry._modified == file.lastModified()) && (entry._length == file.length()) && entry._name.equals(name)) {
+					_hits.incrementAndGet();
+					return entry;
+				}
+				remove(key);
+			}
+		}
+		_misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Start collecting the segments of a file being published.
+	 * @return the writer, or null if the cache is disabled
+	 */
+	public Writer writer(File file, ContentName name) throws IOException {
+		return enabled() ? new Writer(file, name) : null;
+	}
+
+	protected static String key(String path, ContentName name) {
+		return path + " " + VersioningProfile.cutTerminalVersion(name).first();
+	}
+
+	protected synchronized void add(Entry entry) {
+		String key = key(entry._path, entry._name);
+		remove(key);
+		_entries.put(key, entry);
+		_size += entry.size();
+		Iterator<Map.Entry<String, Entry>> it = _entries.entrySet().iterator();
+		while ((_size > _maxSize) && it.hasNext()) {
+			Entry eldest = it.next().getValue();
+			it.remove();
+			discard(eldest);
+		}
+	}
+
+	protected void remove(String key) {
+		Entry entry = _entries.remove(key);
+		if (null != entry)
+			discard(entry);
+	}
+
+	protected void discard(Entry entry) {
+		_size -= entry.size();
+		if (!entry._spill.delete()) {
+			Log.info("Cannot delete segment cache spill file {0}", entry._spill);
+		}
+	}
+
+	public synchronized void clear() {
+		for (Entry entry : _entries.values()) {
+			entry._spill.delete();
+		}
+		_entries.clear();
+		_size = 0;
+	}
+
+	public long hitCount() { return _hits.get(); }
+
+	public long missCount() { return _misses.get(); }
+
+	public synchronized long size() { return _size; }
+}
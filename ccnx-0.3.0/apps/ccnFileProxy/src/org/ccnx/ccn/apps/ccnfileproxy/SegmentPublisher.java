@@ -0,0 +1,326 @@
+/*
+ * A CCNx file proxy program.
+ *
+ * Copyright (C) 2008, 2009 Palo Alto Research Center, Inc.
+ *
+ * This work is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License version 2 as published by the
+ * Free Software Foundation.
+ * This work is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details. You should have received a copy of the GNU General Public
+ * License along with this program; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+
+package org.ccnx.ccn.apps.ccnfileproxy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.PrivateKey;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ccnx.ccn.CCNHandle;
+import org.ccnx.ccn.impl.CCNFlowControl;
+import org.ccnx.ccn.impl.security.crypto.CCNDigestHelper;
+import org.ccnx.ccn.impl.security.crypto.CCNMerkleTreeSigner;
+import org.ccnx.ccn.impl.support.Log;
+import org.ccnx.ccn.io.CCNOutputStream;
+import org.ccnx.ccn.io.content.Header;
+import org.ccnx.ccn.io.content.Header.HeaderObject;
+import org.ccnx.ccn.profiles.SegmentationProfile;
+import org.ccnx.ccn.profiles.VersioningProfile;
+import org.ccnx.ccn.profiles.metadata.MetadataProfile;
+import org.ccnx.ccn.protocol.CCNTime;
+import org.ccnx.ccn.protocol.ContentName;
+import org.ccnx.ccn.protocol.ContentObject;
+import org.ccnx.ccn.protocol.Interest;
+import org.ccnx.ccn.protocol.KeyLocator;
+import org.ccnx.ccn.protocol.PublisherPublicKeyDigest;
+import org.ccnx.ccn.protocol.Signature;
+import org.ccnx.ccn.protocol.SignedInfo;
+import org.ccnx.ccn.protocol.SignedInfo.ContentType;
+
+/**
+ * Publishes files as segmented, signed CCN content, splitting the work of building
+ * and signing segments across a pool of worker threads.
+ *
+ * The content is divided into batches of segments, each signed as one Merkle tree,
+ * as CCNFileOutputStream would sign a buffer's worth of blocks. Files are memory-mapped
+ * one batch at a time, so workers read their blocks directly from the page cache rather
+ * than through a stream buffer. Batches are put to the flow controller in segment order
+ * as they complete, while later batches are still being signed. The first segment is
+ * signed on its own so it can be sent as soon as possible.
+ *
+ * The output is what CCNFileOutputStream writes: fixed-increment segments of the
+ * default block size, the final segment marked on every segment, followed by a header
+ * carrying the length and content digest.
+ *
+ * Signed files are kept in a SegmentCache; while a file is unchanged, later requests
+ * for it are answered with the content objects signed the first time.
+ */
+public class SegmentPublisher {
+
+	/**
+	 * Number of threads signing segments, shared by all publications. Defaults to the
+	 * number of processors.
+	 */
+	public static final String PUBLISH_THREADS_PROPERTY = "org.ccnx.fileproxy.PublishThreads";
+
+	/**
+	 * Number of batches a single publication may have signed ahead of the flow
+	 * controller. Defaults to twice the number of signing threads.
+	 */
+	public static final String PUBLISH_WINDOW_PROPERTY = "org.ccnx.fileproxy.PublishWindow";
+
+	protected static final int BATCH_BLOCKS = CCNOutputStream.BLOCK_BUF_COUNT;
+
+	/**
+	 * Content being published, read concurrently by the signing threads.
+	 */
+	protected interface Content {
+		long length();
+
+		/**
+		 * @return a buffer holding length bytes starting at offset, positioned at 0
+		 */
+		ByteBuffer region(long offset, int length) throws IOException;
+	}
+
+	protected CCNHandle _handle;
+	protected ExecutorService _signers;
+	protected SegmentCache _cache;
+	protected int _window;
+	protected int _blockSize = SegmentationProfile.DEFAULT_BLOCKSIZE;
+
+	public SegmentPublisher(CCNHandle handle) {
+		_handle = handle;
+		int threads = Integer.getInteger(PUBLISH_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+		_window = Integer.getInteger(PUBLISH_WINDOW_PROPERTY, 2 * threads);
+		_cache = new SegmentCache();
+		_signers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private AtomicInteger _count = new AtomicInteger(0);
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CCNFileProxy signer " + _count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Publish a file, reusing its signed segments if it has not changed since it was last published.
+	 * @param file the file to publish
+	 * @param versionedName name to publish under, including the version
+	 * @param interests interests already received for the content
+	 */
+	public void publish(File file, ContentName versionedName, List<Interest> interests) throws IOException {
+		SegmentCache.Entry cached = _cache.get(file, versionedName);
+		if (null != cached) {
+			try {
+				republish(cached, interests);
+				return;
+			} catch (FileNotFoundException e) {
+				Log.info("Signed segments of {0} evicted before use, signing again.", file);
+			}
+		}
+
+		long modified = file.lastModified();
+		FileInputStream in = new FileInputStream(file);
+		SegmentCache.Writer spill = null;
+		try {
+			final FileChannel channel = in.getChannel();
+			final long length = channel.size();
+			spill = _cache.writer(file, versionedName);
+			publish(new Content() {
+				public long length() { return length; }
+				public ByteBuffer region(long offset, int length) throws IOException {
+					return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+				}
+			}, versionedName, interests, spill);
+			if (null != spill) {
+				spill.finish(modified, length);
+				spill = null;
+			}
+		} finally {
+			if (null != spill)
+				spill.abort();
+			in.close();
+		}
+	}
+
+	/**
+	 * Publish content held in memory.
+	 * @param content the content to publish
+	 * @param versionedName name to publish under, including the version
+	 * @param interests interests already received for the content
+	 */
+	public void publish(final byte [] content, ContentName versionedName, List<Interest> interests) throws IOException {
+		publish(new Content() {
+			public long length() { return content.length; }
+			public ByteBuffer region(long offset, int length) {
+				return ByteBuffer.wrap(content, (int)offset, length).slice();
+			}
+		}, versionedName, interests, null);
+	}
+
+	/**
+	 * Answer interests with content objects signed by an earlier publication.
+	 */
+	protected void republish(SegmentCache.Entry cached, List<Interest> interests) throws IOException {
+		long startTime = System.currentTimeMillis();
+		FileInputStream in = cached.open();
+		CCNFlowControl flowControl = new CCNFlowControl(VersioningProfile.cutTerminalVersion(cached.name()).first(), _handle);
+		try {
+			for (Interest interest : interests) {
+				flowControl.handleInterest(interest);
+			}
+			FileChannel channel = in.getChannel();
+			for (int i = 0; i < cached.count(); ++i) {
+				flowControl.put(cached.get(channel, i));
+			}
+			flowControl.afterClose();
+			Log.info("Republished {0}: {1} signed objects in {2}ms", cached.name(), cached.count(),
+					 System.currentTimeMillis() - startTime);
+		} finally {
+			in.close();
+			flowControl.close();
+		}
+	}
+
+	/**
+	 * @param spill if not null, collects every content object published, header included
+	 */
+	protected void publish(Content content, ContentName versionedName, List<Interest> interests,
+						   final SegmentCache.Writer spill) throws IOException {
+		long startTime = System.currentTimeMillis();
+		long length = content.length();
+		// A zero-length file is still written as a single, empty segment.
+		long blockCount = Math.max(1, (length + _blockSize - 1) / _blockSize);
+
+		PublisherPublicKeyDigest publisher = _handle.keyManager().getDefaultKeyID();
+		PrivateKey signingKey = _handle.keyManager().getSigningKey(publisher);
+		KeyLocator locator = _handle.keyManager().getKeyLocator(publisher);
+		SignedInfo signedInfo = new SignedInfo(publisher, CCNTime.now(), ContentType.DATA, locator, null,
+				SegmentationProfile.getSegmentNumberNameComponent(SegmentationProfile.baseSegment() + blockCount - 1));
+
+		CCNFlowControl flowControl = new CCNFlowControl(VersioningProfile.cutTerminalVersion(versionedName).first(), _handle) {
+			@Override
+			public ContentObject put(ContentObject co) throws IOException {
+				if (null != spill)
+					spill.append(co);
+				return super.put(co);
+			}
+		};
+		ArrayDeque<Future<ContentObject []>> pending = new ArrayDeque<Future<ContentObject []>>();
+		try {
+			for (Interest interest : interests) {
+				flowControl.handleInterest(interest);
+			}
+
+			CCNDigestHelper dh = new CCNDigestHelper();
+			long nextBlock = 0;
+			long firstSegmentTime = 0;
+			while ((nextBlock < blockCount) || !pending.isEmpty()) {
+				// Keep the workers busy up to our window, then wait for the oldest batch.
+				while ((nextBlock < blockCount) && (pending.size() < _window)) {
+					int batchBlocks = (0 == nextBlock) ? 1 : (int)Math.min(BATCH_BLOCKS, blockCount - nextBlock);
+					pending.add(_signers.submit(new SignBatch(content, versionedName, signedInfo, signingKey,
+															 nextBlock, batchBlocks)));
+					nextBlock += batchBlocks;
+				}
+				ContentObject [] batch = pending.remove().get();
+				for (ContentObject co : batch) {
+					dh.update(co.content(), 0, co.contentLength());
+				}
+				flowControl.put(batch);
+				if (0 == firstSegmentTime)
+					firstSegmentTime = System.currentTimeMillis();
+			}
+
+			Header header = new Header(SegmentationProfile.baseSegment(), SegmentationProfile.baseSegment() + blockCount,
+									   _blockSize, length, dh.digest(), null);
+			new HeaderObject(MetadataProfile.headerName(versionedName), header, publisher, locator, flowControl).save();
+			flowControl.afterClose();
+			long elapsed = System.currentTimeMillis() - startTime;
+			Log.info("Published {0}: {1} bytes in {2} segments, first segment after {3}ms, total {4}ms",
+					 versionedName, length, blockCount, firstSegmentTime - startTime, elapsed);
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted publishing " + versionedName);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			throw new IOException("Cannot sign content for " + versionedName + ": " + cause.getClass().getName() + ": " + cause.getMessage());
+		} finally {
+			for (Future<ContentObject []> f : pending) {
+				f.cancel(false);
+			}
+			flowControl.close();
+		}
+	}
+
+	/**
+	 * Builds and signs one batch of consecutive segments.
+	 */
+	protected class SignBatch implements Callable<ContentObject []> {
+		protected Content _content;
+		protected ContentName _name;
+		protected SignedInfo _signedInfo;
+		protected PrivateKey _signingKey;
+		protected long _firstBlock;
+		protected int _blockCount;
+
+		protected SignBatch(Content content, ContentName name, SignedInfo signedInfo, PrivateKey signingKey,
+							long firstBlock, int blockCount) {
+			_content = content;
+			_name = name;
+			_signedInfo = signedInfo;
+			_signingKey = signingKey;
+			_firstBlock = firstBlock;
+			_blockCount = blockCount;
+		}
+
+		public ContentObject [] call() throws Exception {
+			long offset = _firstBlock * _blockSize;
+			int length = (int)Math.min((long)_blockCount * _blockSize, _content.length() - offset);
+			ByteBuffer data = _content.region(offset, length);
+			byte [] block = new byte[_blockSize];
+			ContentObject [] blocks = new ContentObject[_blockCount];
+			for (int i = 0; i < _blockCount; ++i) {
+				int blockLength = Math.min(_blockSize, data.remaining());
+				data.get(block, 0, blockLength);
+				ContentName segmentName = SegmentationProfile.segmentName(_name, SegmentationProfile.baseSegment() + _firstBlock + i);
+				// ContentObject copies the content, so the block buffer can be reused.
+				if (1 == _blockCount) {
+					blocks[i] = new ContentObject(segmentName, _signedInfo, block, 0, blockLength, _signingKey);
+				} else {
+					blocks[i] = new ContentObject(segmentName, _signedInfo, block, 0, blockLength, (Signature)null);
+				}
+			}
+			if (_blockCount > 1) {
+				new CCNMerkleTreeSigner().signBlocks(blocks, _signingKey);
+			}
+			return blocks;
+		}
+	}
+
+	public void shutdown() {
+		_signers.shutdown();
+		_cache.clear();
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * A CCNx file proxy program.
+ *
+ * Copyright (C) 2008, 2009 Palo Alto Research Center, Inc.
+ *
+ * This work is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License version 2 as published by the
+ * Free Software Foundation.
+ * This work is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details. You should have received a copy of the GNU General Public
+ * License along with this program; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+
+package org.ccnx.ccn.apps.ccnfileproxy;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ccnx.ccn.impl.support.Log;
+
+/**
+ * Keeps the service modules loaded by CCNFileProxy.
+ *
+ * Each version of a service jar gets its own URLClassLoader, a child of the loader
+ * that loaded the proxy, so service classes never leak into the system class loader.
+ * The public class named after the service and its "String run_<service>(String)" entry
+ * point are resolved once per version into method handles; later invocations only
+ * construct a new instance and call through the cached handle.
+ *
+ * When the caller presents a newer version of a jar, a new loader is created and
+ * becomes current. The old loader is closed once the invocations still running on it
+ * finish, after which it and its classes can be garbage collected.
+ */
+public class ServiceRegistry {
+
+	protected static final String RUN_PREFIX = "run_";
+	protected static final MethodType RUN_TYPE = MethodType.methodType(String.class, String.class);
+	protected static final MethodType GENERIC_RUN_TYPE = MethodType.methodType(String.class, Object.class, String.class);
+	protected static final MethodType GENERIC_CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+
+	protected ClassLoader _parent;
+	protected ConcurrentHashMap<String, ServiceVersion> _services = new ConcurrentHashMap<String, ServiceVersion>();
+
+	/**
+	 * One loaded version of a service.
+	 */
+	protected static class ServiceVersion {
+		protected String _service;
+		protected long _version;
+		protected URLClassLoader _loader;
+		protected MethodHandle _constructor;
+		protected MethodHandle _run;
+		protected AtomicInteger _active = new AtomicInteger(0);
+		protected volatile boolean _retired = false;
+
+		protected ServiceVersion(String service, long version, File jar, ClassLoader parent) throws IOException {
+			_service = service;
+			_version = version;
+			_loader = new URLClassLoader(new URL[]{jar.toURI().toURL()}, parent);
+			try {
+				Class<?> serviceClass = _loader.loadClass(service);
+				MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+				_constructor = lookup.findConstructor(serviceClass, MethodType.methodType(void.class)).asType(GENERIC_CONSTRUCTOR_TYPE);
+				_run = lookup.findVirtual(serviceClass, RUN_PREFIX + service, RUN_TYPE).asType(GENERIC_RUN_TYPE);
+			} catch (Exception e) {
+				_loader.close();
+				throw new IOException("Cannot load service " + service + " from " + jar + ": " + e.getClass().getName() + ": " + e.getMessage(), e);
+			}
+		}
+
+		/**
+		 * @return false if this version has been retired and can no longer be used
+		 */
+		protected boolean acquire() {
+			_active.incrementAndGet();
+			if (_retired) {
+				release();
+				return false;
+			}
+			return true;
+		}
+
+		protected void release() {
+			if ((0 == _active.decrementAndGet()) && _retired) {
+				close();
+			}
+		}
+
+		protected void retire() {
+			_retired = true;
+			if (0 == _active.get()) {
+				close();
+			}
+		}
+
+		protected synchronized void close() {
+			if (null == _loader)
+				return;
+			try {
+				_loader.close();
+			} catch (IOException e) {
+				Log.warning("Error closing class loader for service {0} version {1}: {2}", _service, _version, e.getMessage());
+			}
+			_loader = null;
+		}
+
+		protected String run(String argument) throws Exception {
+			try {
+				Object processor = (Object)_constructor.invokeExact();
+				return (String)_run.invokeExact(processor, argument);
+			} catch (Exception e) {
+				throw e;
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new Exception(t);
+			}
+		}
+	}
+
+	/**
+	 * Create a registry whose service loaders delegate to the loader that loaded the proxy.
+	 */
+	public ServiceRegistry() {
+		this(ServiceRegistry.class.getClassLoader());
+	}
+
+	public ServiceRegistry(ClassLoader parent) {
+		_parent = parent;
+	}
+
+	/**
+	 * Run a service.
+	 * @param service the service name; also the name of its public class
+	 * @param jar the jar holding the service
+	 * @param version version of the jar; if newer than the loaded one, the jar is reloaded
+	 * @param argument argument to run_<service>, usually a file path
+	 * @return the result of run_<service>
+	 * @throws Exception if the service cannot be loaded, or if it throws
+	 */
+	public String invoke(String service, File jar, long version, String argument) throws Exception {
+		ServiceVersion sv;
+		do {
+			sv = _services.get(service);
+			if ((null == sv) || (sv._version < version)) {
+				sv = load(service, jar, version);
+			}
+		} while (!sv.acquire());
+		try {
+			return sv.run(argument);
+		} finally {
+			sv.release();
+		}
+	}
+
+	/**
+	 * @return the loaded version of a service, or -1 if it is not loaded
+	 */
+	public long version(String service) {
+		ServiceVersion sv = _services.get(service);
+		return (null == sv) ? -1 : sv._version;
+	}
+
+	protected synchronized ServiceVersion load(String service, File jar, long version) throws IOException {
+		ServiceVersion current = _services.get(service);
+		if ((null != current) && (current._version >= version)) {
+			return current; // someone else loaded it while we waited
+		}
+		if (!jar.exists()) {
+			throw new FileNotFoundException("Service jar " + jar.getAbsolutePath() + " does not exist");
+		}
+		Log.info("Loading service {0} version {1} from {2}", service, version, jar.getAbsolutePath());
+		ServiceVersion sv = new ServiceVersion(service, version, jar, _parent);
+		_services.put(service, sv);
+		if (null != current) {
+			Log.info("Retiring service {0} version {1}", service, current._version);
+			current.retire();
+		}
+		return sv;
+	}
+
+	/**
+	 * Unload all services. Invocations in progress finish on the versions they started with.
+	 */
+	public synchronized void shutdown() {
+		for (ServiceVersion sv : _services.values()) {
+			sv.retire();
+		}
+		_services.clear();
+	}
+}
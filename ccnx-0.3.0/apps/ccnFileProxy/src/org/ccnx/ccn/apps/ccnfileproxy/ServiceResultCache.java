@@ -0,0 +1,306 @@
+/*
+ * A CCNx file proxy program.
+ *
+ * Copyright (C) 2008, 2009 Palo Alto Research Center, Inc.
+ *
+ * This work is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License version 2 as published by the
+ * Free Software Foundation.
+ * This work is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details. You should have received a copy of the GNU General Public
+ * License along with this program; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+
+package org.ccnx.ccn.apps.ccnfileproxy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ccnx.ccn.impl.support.Log;
+import org.ccnx.ccn.protocol.CCNTime;
+
+/**
+ * Remembers the outputs of service runs so that repeated requests for the same
+ * <file>%2B<service> do not run the service again.
+ *
+ * A result is reused only while the source file's modification time, the version
+ * of the service jar and the parameters given to the service are all unchanged,
+ * the output file on disk has not been touched, and the result is younger than the
+ * service's time to live. Results are kept in LRU order and bounded in number; the
+ * output file on disk is the durable copy, and small outputs (such as SMIL files)
+ * are additionally held in memory, bounded in total size. The index is saved on
+ * shutdown so outputs produced before a restart can be reused.
+ */
+public class ServiceResultCache {
+
+	/**
+	 * Time to live of a result, in ms. Append .<service> to set it for one service.
+	 */
+	public static final String RESULT_TTL_PROPERTY = "org.ccnx.fileproxy.ResultTTL";
+	public static final long RESULT_TTL_DEFAULT = 300000;
+
+	/**
+	 * Maximum number of results remembered.
+	 */
+	public static final String RESULT_ENTRIES_PROPERTY = "org.ccnx.fileproxy.ResultEntries";
+	public static final int RESULT_ENTRIES_DEFAULT = 1024;
+
+	/**
+	 * Maximum number of bytes of output held in memory.
+	 */
+	public static final String RESULT_MEMORY_PROPERTY = "org.ccnx.fileproxy.ResultMemory";
+	public static final long RESULT_MEMORY_DEFAULT = 16 * 1024 * 1024;
+
+	/**
+	 * File the index is saved in across restarts.
+	 */
+	public static final String RESULT_INDEX_PROPERTY = "org.ccnx.fileproxy.ResultIndex";
+	public static final String RESULT_INDEX_DEFAULT = "resultcache.index";
+
+	/**
+	 * Outputs larger than this are only served from disk.
+	 */
+	public static final int MEMORY_ENTRY_MAX = 64 * 1024;
+
+	/**
+	 * One remembered service output.
+	 */
+	public static class Result {
+		protected long _sourceModified;
+		protected long _serviceVersion;
+		protected String _parameters;
+		protected File _output;
+		protected long _outputModified;
+		protected long _created;
+		protected byte [] _content;
+
+		protected Result(long sourceModified, long serviceVersion, String parameters,
+						 File output, long outputModified, long created, byte [] content) {
+			_sourceModified = sourceModified;
+			_serviceVersion = serviceVersion;
+			_parameters = parameters;
+			_output = output;
+			_outputModified = outputModified;
+			_created = created;
+			_content = content;
+		}
+
+		public File output() { return _output; }
+
+		/**
+		 * @return the output contents if held in memory, otherwise null
+		 */
+		public byte [] content() { return _content; }
+
+		/**
+		 * @return the version to publish the output under
+		 */
+		public CCNTime version() { return new CCNTime(_outputModified); }
+	}
+
+	protected LinkedHashMap<String, Result> _results;
+	protected int _maxEntries;
+	protected long _maxMemory;
+	protected long _memory = 0;
+	protected File _indexFile;
+
+	protected AtomicLong _hits = new AtomicLong(0);
+	protected AtomicLong _misses = new AtomicLong(0);
+
+	public ServiceResultCache() {
+		_maxEntries = Integer.getInteger(RESULT_ENTRIES_PROPERTY, RESULT_ENTRIES_DEFAULT);
+		_maxMemory = Long.getLong(RESULT_MEMORY_PROPERTY, RESULT_MEMORY_DEFAULT);
+		_indexFile = new File(System.getProperty(RESULT_INDEX_PROPERTY, RESULT_INDEX_DEFAULT));
+		_results = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+				if (size() > _maxEntries) {
+					forget(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+		load();
+	}
+
+	protected static String key(String file, String service) {
+		return file + "%2B" + service;
+	}
+
+	public static long ttl(String service) {
+		return Long.getLong(RESULT_TTL_PROPERTY + "." + service,
+				Long.getLong(RESULT_TTL_PROPERTY, RESULT_TTL_DEFAULT));
+	}
+
+	/**
+	 * Look up a result.
+	 * @param file source file path, relative to the proxy root
+	 * @param service service name
+	 * @param sourceModified current modification time of the source file
+	 * @param serviceVersion current version of the service jar
+	 * @param parameters parameters the service would be run with
+	 * @return the result, or null if there is no usable one
+	 */
+	public Result get(String file, String service, long sourceModified, long serviceVersion, String parameters) {
+		String key = key(file, service);
+		synchronized (this) {
+			Result result = _results.get(key);
+			if ((null != result) &&
+					(result._sourceModified == sourceModified) &&
+					(result._serviceVersion == serviceVersion) &&
+					result._parameters.equals(parameters) &&
+					(System.currentTimeMillis() - result._created < ttl(service)) &&
+					(result._output.lastModified() == result._outputModified)) {
+				_hits.incrementAndGet();
+				return result;
+			}
+			if (null != result) {
+				forget(_results.remove(key));
+			}
+		}
+		_misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Remember the output of a service run, replacing any earlier one for this file and service.
+	 * @param content the output contents, or null if they should only be read from disk
+	 */
+	public Result put(String file, String service, long sourceModified, long serviceVersion, String parameters,
+					  File output, byte [] content) {
+		if ((null != content) && (content.length > MEMORY_ENTRY_MAX)) {
+			content = null;
+		}
+		Result result = new Result(sourceModified, serviceVersion, parameters, output,
+								   output.lastModified(), System.currentTimeMillis(), content);
+		synchronized (this) {
+			forget(_results.put(key(file, service), result));
+			if (null != content) {
+				_memory += content.length;
+				trimMemory();
+			}
+		}
+		return result;
+	}
+
+	public synchronized void invalidate(String file, String service) {
+		forget(_results.remove(key(file, service)));
+	}
+
+	public synchronized void clear() {
+		_results.clear();
+		_memory = 0;
+	}
+
+	public long hitCount() { return _hits.get(); }
+
+	public long missCount() { return _misses.get(); }
+
+	public synchronized int size() { return _results.size(); }
+
+	/**
+	 * Release the memory held by a result that is no longer indexed.
+	 */
+	protected void forget(Result result) {
+		if ((null != result) && (null != result._content)) {
+			_memory -= result._content.length;
+			result._content = null;
+		}
+	}
+
+	/**
+	 * Drop in-memory copies, least recently used first, until under the memory bound.
+	 * The results stay usable from disk.
+	 */
+	protected void trimMemory() {
+		Iterator<Result> it = _results.values().iterator();
+		while ((_memory > _maxMemory) && it.hasNext()) {
+			forget(it.next());
+		}
+	}
+
+	/**
+	 * Read the index saved by a previous run. Contents are not loaded; those results
+	 * are served from disk.
+	 */
+	protected synchronized void load() {
+		if (!_indexFile.exists())
+			return;
+		Properties index = new Properties();
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(_indexFile);
+			index.load(in);
+		} catch (IOException e) {
+			Log.warning("Cannot read service result index {0}: {1}", _indexFile, e.getMessage());
+			return;
+		} finally {
+			try {
+				if (null != in)
+					in.close();
+			} catch (IOException e) {}
+		}
+		for (String name : index.stringPropertyNames()) {
+			if (!name.endsWith(".output"))
+				continue;
+			String key = name.substring(0, name.length() - ".output".length());
+			try {
+				Result result = new Result(
+						Long.parseLong(index.getProperty(key + ".source")),
+						Long.parseLong(index.getProperty(key + ".version")),
+						index.getProperty(key + ".parameters"),
+						new File(index.getProperty(key + ".output")),
+						Long.parseLong(index.getProperty(key + ".outputModified")),
+						Long.parseLong(index.getProperty(key + ".created")), null);
+				if ((null != result._parameters) && (result._output.lastModified() == result._outputModified)) {
+					_results.put(key, result);
+				}
+			} catch (RuntimeException e) {
+				Log.info("Ignoring bad service result index entry {0}: {1}", key, e.getMessage());
+			}
+		}
+		Log.info("Loaded {0} service results from {1}", _results.size(), _indexFile);
+	}
+
+	/**
+	 * Save the index so a later run can reuse the outputs on disk.
+	 */
+	public synchronized void save() {
+		Properties index = new Properties();
+		for (Map.Entry<String, Result> entry : _results.entrySet()) {
+			String key = entry.getKey();
+			Result result = entry.getValue();
+			index.setProperty(key + ".source", Long.toString(result._sourceModified));
+			index.setProperty(key + ".version", Long.toString(result._serviceVersion));
+			index.setProperty(key + ".parameters", result._parameters);
+			index.setProperty(key + ".output", result._output.getAbsolutePath());
+			index.setProperty(key + ".outputModified", Long.toString(result._outputModified));
+			index.setProperty(key + ".created", Long.toString(result._created));
+		}
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(_indexFile);
+			index.store(out, "CCNFileProxy service results");
+		} catch (IOException e) {
+			Log.warning("Cannot save service result index {0}: {1}", _indexFile, e.getMessage());
+		} finally {
+			try {
+				if (null != out)
+					out.close();
+			} catch (IOException e) {}
+		}
+	}
+}
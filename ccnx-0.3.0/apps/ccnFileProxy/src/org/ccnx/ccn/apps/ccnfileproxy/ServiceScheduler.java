@@ -0,0 +1,232 @@
+/*
+ * A CCNx file proxy program.
+ *
+ * Copyright (C) 2008, 2009 Palo Alto Research Center, Inc.
+ *
+ * This work is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License version 2 as published by the
+ * Free Software Foundation.
+ * This work is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details. You should have received a copy of the GNU General Public
+ * License along with this program; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+
+package org.ccnx.ccn.apps.ccnfileproxy;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ccnx.ccn.impl.support.Log;
+import org.ccnx.ccn.protocol.Interest;
+
+/**
+ * Runs service invocations for CCNFileProxy on a bounded pool of worker threads.
+ *
+ * There is at most one job in flight for any (file, service) pair. Interests for a
+ * pair that already has a running or queued job are attached to that job and
+ * are answered when it completes, rather than being dropped. When all workers are
+ * busy and the queue is full, new jobs are rejected; the counters kept here let the
+ * proxy report that backpressure.
+ */
+public class ServiceScheduler {
+
+	/**
+	 * Number of worker threads running services. Defaults to the number of processors.
+	 */
+	public static final String SERVICE_THREADS_PROPERTY = "org.ccnx.fileproxy.ServiceThreads";
+
+	/**
+	 * Number of service jobs that may wait for a worker before new ones are rejected.
+	 */
+	public static final String SERVICE_QUEUE_PROPERTY = "org.ccnx.fileproxy.ServiceQueue";
+	public static final int SERVICE_QUEUE_DEFAULT = 64;
+
+	protected static final long WORKER_KEEPALIVE = 60; // seconds
+
+	protected CCNFileProxy _proxy;
+	protected ThreadPoolExecutor _executor;
+	protected ConcurrentHashMap<String, ServiceJob> _inFlight = new ConcurrentHashMap<String, ServiceJob>();
+
+	// Backpressure statistics
+	protected AtomicLong _submitted = new AtomicLong(0);
+	protected AtomicLong _attached = new AtomicLong(0);
+	protected AtomicLong _rejected = new AtomicLong(0);
+	protected AtomicLong _completed = new AtomicLong(0);
+	protected AtomicLong _failed = new AtomicLong(0);
+
+	/**
+	 * A single service invocation, together with all the interests waiting for its output.
+	 */
+	protected class ServiceJob implements Runnable {
+		protected String _key;
+		protected String _file;
+		protected String _service;
+		protected ArrayList<Interest> _interests = new ArrayList<Interest>();
+		protected boolean _closed = false;
+
+		protected ServiceJob(String key, String file, String service) {
+			_key = key;
+			_file = file;
+			_service = service;
+		}
+
+		/**
+		 * Add an interest to be answered when this job completes.
+		 * @return false if the job has already finished collecting interests
+		 */
+		protected synchronized boolean attach(Interest interest) {
+			if (_closed)
+				return false;
+			_interests.add(interest);
+			return true;
+		}
+
+		/**
+		 * Stop accepting interests.
+		 * @return the interests attached so far
+		 */
+		protected synchronized ArrayList<Interest> close() {
+			_closed = true;
+			return _interests;
+		}
+
+		public void run() {
+			ServiceResultCache.Result output = null;
+			try {
+				output = _proxy.runService(_file, _service);
+			} catch (Exception e) {
+				Log.warning("Exception running service {0} on {1}: {2}: {3}", _service, _file, e.getClass().getName(), e.getMessage());
+				Log.warningStackTrace(e);
+			}
+
+			// From here on new interests for this pair start a new job, and will see
+			// whatever output we just produced.
+			ArrayList<Interest> waiting = close();
+			_inFlight.remove(_key, this);
+
+			if (null == output) {
+				_failed.incrementAndGet();
+				Log.info("Service {0} on {1} failed, dropping {2} waiting interests. {3}", _service, _file, waiting.size(), statistics());
+				return;
+			}
+			_completed.incrementAndGet();
+			Log.info("Service {0} on {1} done, answering {2} waiting interests. {3}", _service, _file, waiting.size(), statistics());
+			_proxy.publishServiceOutput(output, waiting);
+		}
+	}
+
+	public ServiceScheduler(CCNFileProxy proxy) {
+		_proxy = proxy;
+		int threads = Integer.getInteger(SERVICE_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+		int queueSize = Integer.getInteger(SERVICE_QUEUE_PROPERTY, SERVICE_QUEUE_DEFAULT);
+		_executor = new ThreadPoolExecutor(threads, threads, WORKER_KEEPALIVE, TimeUnit.SECONDS,
+						new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+			private AtomicInteger _count = new AtomicInteger(0);
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CCNFileProxy service " + _count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		_executor.allowCoreThreadTimeOut(true);
+	}
+
+	protected static String jobKey(String file, String service) {
+		return file + "%2B" + service;
+	}
+
+	/**
+	 * Request that a service be run on a file, answering the interest once it is done.
+	 * If a job for this file and service is already queued or running, the interest
+	 * is attached to it instead of starting another.
+	 * @param file the file path relative to the proxy root
+	 * @param service the service name
+	 * @param interest the interest to answer with the service output
+	 * @return true if the interest will be answered, false if it was rejected because
+	 * 	the scheduler is saturated
+	 */
+	public boolean submit(String file, String service, Interest interest) {
+		String key = jobKey(file, service);
+		while (true) {
+			if (attach(key, interest))
+				return true;
+
+			ServiceJob job = new ServiceJob(key, file, service);
+			job.attach(interest);
+			if (null != _inFlight.putIfAbsent(key, job))
+				continue; // lost a race with another submitter; attach to theirs
+			try {
+				_executor.execute(job);
+				_submitted.incrementAndGet();
+				return true;
+			} catch (RejectedExecutionException e) {
+				ArrayList<Interest> dropped = job.close();
+				_inFlight.remove(key, job);
+				_rejected.addAndGet(dropped.size());
+				Log.warning("Service scheduler saturated, rejecting service {0} on {1}. {2}", service, file, statistics());
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Attach an interest to a job for this file and service if one is in flight,
+	 * without starting a new one.
+	 * @return true if the interest was attached
+	 */
+	public boolean attach(String file, String service, Interest interest) {
+		return attach(jobKey(file, service), interest);
+	}
+
+	protected boolean attach(String key, Interest interest) {
+		ServiceJob job = _inFlight.get(key);
+		while (null != job) {
+			if (job.attach(interest)) {
+				_attached.incrementAndGet();
+				return true;
+			}
+			// Job finished between lookup and attach, see if a new one replaced it.
+			_inFlight.remove(key, job);
+			job = _inFlight.get(key);
+		}
+		return false;
+	}
+
+	public int activeCount() { return _executor.getActiveCount(); }
+
+	public int queueDepth() { return _executor.getQueue().size(); }
+
+	public int inFlightCount() { return _inFlight.size(); }
+
+	public long submittedCount() { return _submitted.get(); }
+
+	public long attachedCount() { return _attached.get(); }
+
+	public long rejectedCount() { return _rejected.get(); }
+
+	public long completedCount() { return _completed.get(); }
+
+	public long failedCount() { return _failed.get(); }
+
+	public String statistics() {
+		return "Service jobs: active " + activeCount() + " queued " + queueDepth() +
+				" submitted " + submittedCount() + " attached " + attachedCount() +
+				" completed " + completedCount() + " failed " + failedCount() +
+				" rejected " + rejectedCount();
+	}
+
+	public void shutdown() {
+		_executor.shutdown();
+	}
+}
@@ -1,66 +1,294 @@
 package org.ccnx.ccn.apps.ccnfileproxy;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 
 import org.ccnx.ccn.CCNHandle;
 import org.ccnx.ccn.config.ConfigurationException;
+import org.ccnx.ccn.config.SystemConfiguration;
+import org.ccnx.ccn.impl.security.crypto.CCNDigestHelper;
+import org.ccnx.ccn.impl.support.DataUtils;
 import org.ccnx.ccn.impl.support.Log;
 import org.ccnx.ccn.io.CCNFileInputStream;
-import org.ccnx.ccn.io.CCNInputStream;
+import org.ccnx.ccn.io.content.ContentNotReadyException;
+import org.ccnx.ccn.profiles.SegmentationProfile;
+import org.ccnx.ccn.profiles.VersioningProfile;
+import org.ccnx.ccn.protocol.CCNTime;
 import org.ccnx.ccn.protocol.ContentName;
+import org.ccnx.ccn.protocol.ContentObject;
 import org.ccnx.ccn.protocol.MalformedContentNameStringException;
 
-/* A modified ccngetfile class to download JAR files 
+/* A modified ccngetfile class to download JAR files
  * JAR files are served by an instance of CCNFileProxy
+ *
+ * Downloaded jars are kept in a local cache directory, one file per
+ * (jar, CCN version, content digest), named <jar base>-<version>-<digest>.jar.
+ * A cached jar is used without touching the network until it is older than
+ * the refresh interval; after that we only ask CCN for a version newer than
+ * the one we have, and download again only if one exists.
  */
 public class ccngetjar {
     public static Integer timeout = null;
-    public void getJarFile(String jar) {
-        try {
-            int readsize = 1024; // make an argument for testing...
-            // If we get one file name, put as the specific name given.
-            // If we get more than one, put underneath the first as parent.
-            // Ideally want to use newVersion to get latest version. Start
-            // with random version.
-            ContentName argName = ContentName.fromURI("/" + jar);
-            
-            CCNHandle handle = CCNHandle.open();
-
-            File theFile = new File(jar);
-            if (theFile.exists()) {
-                System.out.println("Overwriting file: " + jar);
+
+    /**
+     * Directory holding cached jars.
+     */
+    public static final String JAR_CACHE_PROPERTY = "org.ccnx.fileproxy.JarCache";
+    public static final String JAR_CACHE_DEFAULT = "jarcache";
+
+    /**
+     * How long, in ms, a cached jar is used before checking CCN for a newer version.
+     */
+    public static final String JAR_REFRESH_PROPERTY = "org.ccnx.fileproxy.JarRefreshInterval";
+    public static final int JAR_REFRESH_DEFAULT = 60000;
+
+    protected static final String JAR_SUFFIX = ".jar";
+
+    /**
+     * A jar in the local cache.
+     */
+    public static class CachedJar {
+        protected File _file;
+        protected CCNTime _version;
+        protected byte [] _digest;
+        protected volatile long _checked;
+
+        protected CachedJar(File file, CCNTime version, byte [] digest, long checked) {
+            _file = file;
+            _version = version;
+            _digest = digest;
+            _checked = checked;
+        }
+
+        public File file() { return _file; }
+        public CCNTime version() { return _version; }
+        public byte [] digest() { return _digest; }
+    }
+
+    protected CCNHandle _handle;
+    protected File _cacheDirectory;
+    protected long _refreshInterval;
+    protected ConcurrentHashMap<String, CachedJar> _cache = new ConcurrentHashMap<String, CachedJar>();
+    protected ConcurrentHashMap<String, Object> _locks = new ConcurrentHashMap<String, Object>();
+
+    public ccngetjar() throws ConfigurationException, IOException {
+        this(CCNHandle.open());
+    }
+
+    /**
+     * @param handle handle used for all jar retrievals
+     */
+    public ccngetjar(CCNHandle handle) {
+        _handle = handle;
+        _cacheDirectory = new File(System.getProperty(JAR_CACHE_PROPERTY, JAR_CACHE_DEFAULT));
+        _refreshInterval = Long.getLong(JAR_REFRESH_PROPERTY, JAR_REFRESH_DEFAULT);
+        _cacheDirectory.mkdirs();
+        scanCache();
+    }
+
+    /**
+     * Get a jar, from the local cache if it holds the current version.
+     * @param jar jar name, e.g. weather.jar; retrieved as ccnx:/<jar>
+     * @return the cached jar, or null if it is neither cached nor available
+     */
+    public CachedJar getJarFile(String jar) {
+        CachedJar cached = _cache.get(jar);
+        if (isFresh(cached)) {
+            return cached;
+        }
+
+        Object lock = _locks.get(jar);
+        if (null == lock) {
+            Object newLock = new Object();
+            lock = _locks.putIfAbsent(jar, newLock);
+            if (null == lock)
+                lock = newLock;
+        }
+        synchronized (lock) {
+            cached = _cache.get(jar);
+            if (isFresh(cached)) {
+                return cached; // another thread refreshed it while we waited
             }
-            FileOutputStream output = new FileOutputStream(theFile);
-            
-            long starttime = System.currentTimeMillis();
-            CCNInputStream input;
-            input = new CCNFileInputStream(argName, handle);
-            if (timeout != null) {
-                input.setTimeout(timeout); 
+            try {
+                return refresh(jar, cached);
+            } catch (MalformedContentNameStringException e) {
+                Log.warning("Malformed name: {0}: {1}", jar, e.getMessage());
+            } catch (IOException e) {
+                Log.warning("Cannot write file or read content for {0}: {1}", jar, e.getMessage());
+                Log.warningStackTrace(e);
             }
-            byte [] buffer = new byte[readsize];
-            
-            int readcount = 0;
-            long readtotal = 0;
-            while ((readcount = input.read(buffer)) != -1){
-                readtotal += readcount;
-                output.write(buffer, 0, readcount);
-                output.flush();
+            return ((null != cached) && cached._file.exists()) ? cached : null;
+        }
+    }
+
+    /**
+     * Get a jar only if the cached copy is known to be current, never touching the network.
+     * @return the cached jar, or null if it is missing or due for a refresh
+     */
+    public CachedJar getFreshJar(String jar) {
+        CachedJar cached = _cache.get(jar);
+        return isFresh(cached) ? cached : null;
+    }
+
+    protected boolean isFresh(CachedJar cached) {
+        return (null != cached) &&
+        	(System.currentTimeMillis() - cached._checked < _refreshInterval) &&
+        	cached._file.exists();
+    }
+
+    protected CachedJar refresh(String jar, CachedJar cached) throws MalformedContentNameStringException, IOException {
+        long starttime = System.currentTimeMillis();
+        ContentName argName = ContentName.fromURI("/" + jar);
+        boolean haveLocal = (null != cached) && cached._file.exists();
+
+        // If we have a version, only a later one is of interest; when there is none
+        // this times out quickly and we keep what we have.
+        ContentName startingName = haveLocal ? VersioningProfile.addVersion(argName, cached._version) : argName;
+        long attemptTimeout = haveLocal ? SystemConfiguration.GLV_ATTEMPT_TIMEOUT :
+        		((null != timeout) ? timeout : SystemConfiguration.getDefaultTimeout());
+        ContentObject firstSegment =
+        	VersioningProfile.getFirstBlockOfLatestVersion(startingName, null, null, attemptTimeout, _handle.defaultVerifier(), _handle);
+        if (null == firstSegment) {
+            if (haveLocal) {
+                cached._checked = System.currentTimeMillis();
+                return cached;
             }
-            System.out.println("ccngetfile took: "+(System.currentTimeMillis() - starttime)+"ms");
-        } catch (ConfigurationException e) {
-            System.out.println("Configuration exception in ccngetfile: " + e.getMessage());
-            e.printStackTrace();
-        } catch (MalformedContentNameStringException e) {
-            System.out.println("Malformed name: " + jar + " " + e.getMessage());
-            e.printStackTrace();
-        } catch (IOException e) {
-            System.out.println("Cannot write file or read content. " + e.getMessage());
-            e.printStackTrace();
+            Log.info("No version of {0} available.", jar);
+            return null;
+        }
+
+        CCNTime version = VersioningProfile.getLastVersionAsTimestampIfVersioned(SegmentationProfile.segmentRoot(firstSegment.name()));
+        if (null == version) {
+            throw new IOException("Retrieved unversioned content for " + jar + ": " + firstSegment.name());
+        }
+        if (haveLocal && !version.after(cached._version)) {
+            cached._checked = System.currentTimeMillis();
+            return cached;
+        }
+
+        CCNFileInputStream input = new CCNFileInputStream(firstSegment, null, _handle);
+        if (timeout != null) {
+            input.setTimeout(timeout);
         }
+        byte [] content = readAll(input);
+        byte [] digest = CCNDigestHelper.digest(content);
+        verifyDigest(jar, input, digest);
+        input.close();
+
+        File theFile = new File(_cacheDirectory, cacheFileName(jar, version, digest));
+        // Single channel write to a temporary, renamed into place so a reader never sees a partial jar.
+        File tmp = FileStaging.createStagingFile(theFile, JAR_SUFFIX);
+        try {
+            FileStaging.write(tmp, content);
+            FileStaging.commit(tmp, theFile);
+        } finally {
+            tmp.delete();
+        }
+        CachedJar updated = new CachedJar(theFile, version, digest, System.currentTimeMillis());
+        _cache.put(jar, updated);
+        if (haveLocal && !cached._file.equals(theFile)) {
+            // Loaders still holding the old file open keep reading it until they close.
+            cached._file.delete();
+        }
+        if (Log.isLoggable(Level.FINE)) {
+            Log.fine("Retrieved {0} version {1} in {2}ms", jar, version, System.currentTimeMillis() - starttime);
+        }
+        return updated;
+    }
+
+    protected byte [] readAll(CCNFileInputStream input) throws IOException {
+        int expected = SegmentationProfile.DEFAULT_BLOCKSIZE;
+        if (input.hasHeader()) {
+            expected = (int)input.header().length();
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream(expected);
+        byte [] buffer = new byte[SegmentationProfile.DEFAULT_BLOCKSIZE];
+        int readcount = 0;
+        while ((readcount = input.read(buffer)) != -1) {
+            content.write(buffer, 0, readcount);
+        }
+        return content.toByteArray();
+    }
+
+    /**
+     * Check the digest of what we read against the one in the header, once per download.
+     */
+    protected void verifyDigest(String jar, CCNFileInputStream input, byte [] digest) throws IOException {
+        try {
+            input.waitForHeader((long)SystemConfiguration.SHORT_TIMEOUT);
+            if (!input.hasHeader()) {
+                Log.info("No header available for {0}, content digest not verified.", jar);
+                return;
+            }
+        } catch (ContentNotReadyException e) {
+            Log.info("No header requested for {0}, content digest not verified.", jar);
+            return;
+        }
+        byte [] expected = input.header().contentDigest();
+        if ((null != expected) && !Arrays.equals(expected, digest)) {
+            throw new IOException("Content digest mismatch for " + jar + ": expected " +
+            		DataUtils.printHexBytes(expected) + " got " + DataUtils.printHexBytes(digest));
+        }
+    }
+
+    protected static String baseName(String jar) {
+        return jar.endsWith(JAR_SUFFIX) ? jar.substring(0, jar.length() - JAR_SUFFIX.length()) : jar;
+    }
+
+    protected static String cacheFileName(String jar, CCNTime version, byte [] digest) {
+        return baseName(jar) + "-" + version.toBinaryTimeAsLong() + "-" + toHex(digest) + JAR_SUFFIX;
+    }
+
+    protected static String toHex(byte [] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
     }
-}
 
+    protected static byte [] fromHex(String hex) {
+        if ((hex.length() % 2) != 0)
+            throw new NumberFormatException("Odd length hex string " + hex);
+        byte [] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte)Integer.parseInt(hex.substring(2*i, 2*i + 2), 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * Pick up jars left by a previous run. They still get checked against CCN
+     * before their first use, but are not downloaded again unless outdated.
+     */
+    protected void scanCache() {
+        File [] files = _cacheDirectory.listFiles();
+        if (null == files)
+            return;
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.endsWith(JAR_SUFFIX) || name.startsWith("."))
+                continue;
+            String [] parts = name.substring(0, name.length() - JAR_SUFFIX.length()).split("-");
+            if (parts.length < 3)
+                continue;
+            try {
+                String jar = name.substring(0, name.length() - JAR_SUFFIX.length() -
+                		parts[parts.length-1].length() - parts[parts.length-2].length() - 2) + JAR_SUFFIX;
+                CCNTime version = VersioningProfile.versionLongToTimestamp(Long.parseLong(parts[parts.length-2]));
+                byte [] digest = fromHex(parts[parts.length-1]);
+                CachedJar previous = _cache.get(jar);
+                if ((null == previous) || version.after(previous._version)) {
+                    _cache.put(jar, new CachedJar(f, version, digest, 0));
+                }
+            } catch (NumberFormatException e) {
+                Log.info("Ignoring unrecognized file {0} in jar cache.", f);
+            }
+        }
+    }
+}
@@ -35,6 +35,8 @@ public interface CCNFilterListener {
 
 	/**
 	 * Callback called when we get a new interest matching our filter.
+	 * A listener may be called for several interests at once, on different threads,
+	 * except in the "pool" and "inline" delivery modes.
 	 * @param interests The matching interest
 	 * @return true if this handler has consumed the interest 
 	 * 	(that is the handler returned data satisfying the interest).
@@ -18,9 +18,14 @@
 package org.ccnx.ccn;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 import java.util.logging.Level;
 
 import org.ccnx.ccn.config.ConfigurationException;
+import org.ccnx.ccn.config.SystemConfiguration;
 import org.ccnx.ccn.impl.CCNNetworkManager;
 import org.ccnx.ccn.impl.support.Log;
 import org.ccnx.ccn.protocol.ContentName;
@@ -248,6 +253,71 @@ public class CCNHandle implements CCNBase {
 		}
 	}
 	
+	/**
+	 * Get a single piece of content from CCN without waiting for it, with the default
+	 * timeout.
+	 * @see #getAsync(Interest, long)
+	 */
+	public CompletableFuture<ContentObject> getAsync(Interest interest) throws IOException {
+		return getAsync(interest, SystemConfiguration.getDefaultTimeout());
+	}
+
+	/**
+	 * Get a single piece of content from CCN without waiting for it. No thread waits
+	 * for the content: the future is completed by the library's delivery threads, so
+	 * work chained onto it should not block for long.
+	 * @param interest
+	 * @param timeout time to wait for content in ms, or SystemConfiguration.NO_TIMEOUT
+	 * @return a future completed with the content object, or with null if timed out.
+	 * 	Cancelling it withdraws the interest.
+	 * @throws IOException if the interest cannot be expressed
+	 */
+	public CompletableFuture<ContentObject> getAsync(Interest interest, long timeout) throws IOException {
+		return getNetworkManager().getAsync(interest, timeout);
+	}
+
+	/**
+	 * Get several pieces of content from CCN at once, with the default timeout.
+	 * @see #getAll(List, long)
+	 */
+	public CompletableFuture<List<ContentObject>> getAll(List<Interest> interests) throws IOException {
+		return getAll(interests, SystemConfiguration.getDefaultTimeout());
+	}
+
+	/**
+	 * Get several pieces of content from CCN at once. All the interests are expressed
+	 * together, and no thread waits for any of them.
+	 * @param interests
+	 * @param timeout time to wait for each in ms, or SystemConfiguration.NO_TIMEOUT
+	 * @return a future completed, once all have arrived or timed out, with the content
+	 * 	objects in the same order as the interests, and null for those that timed out
+	 * @throws IOException if an interest cannot be expressed, in which case none is left
+	 * 	expressed
+	 */
+	public CompletableFuture<List<ContentObject>> getAll(List<Interest> interests, long timeout) throws IOException {
+		final List<CompletableFuture<ContentObject>> futures = new ArrayList<CompletableFuture<ContentObject>>(interests.size());
+		try {
+			for (Interest interest : interests) {
+				futures.add(getAsync(interest, timeout));
+			}
+		} catch (IOException e) {
+			for (CompletableFuture<ContentObject> future : futures) {
+				future.cancel(false);
+			}
+			throw e;
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).thenApply(
+				new Function<Void, List<ContentObject>>() {
+					public List<ContentObject> apply(Void done) {
+						List<ContentObject> results = new ArrayList<ContentObject>(futures.size());
+						for (CompletableFuture<ContentObject> future : futures) {
+							results.add(future.join());
+						}
+						return results;
+					}
+				});
+	}
+
 	/**
 	 * Put a single content object into the network. This is a low-level put,
 	 * and typically should only be called by a flow controller, in response to
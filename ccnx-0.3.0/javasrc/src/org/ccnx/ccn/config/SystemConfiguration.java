@@ -184,6 +184,122 @@ public class SystemConfiguration {
 	protected static final String OLD_HEADER_NAMES_ENV_VAR = "CCNX_OLD_HEADER_NAMES";
 	public static boolean OLD_HEADER_NAMES = true;
 	
+	/**
+	 * Number of threads CCNNetworkManager uses to decode received packets and
+	 * match them against registered interests and filters.
+	 * 0 decodes and matches on the network manager's own thread.
+	 * Default is the number of available processors.
+	 */
+	protected static final String RECEIVE_THREADS_PROPERTY = "org.ccnx.ReceiveThreads";
+	protected static final String RECEIVE_THREADS_ENV_VAR = "CCNX_RECEIVE_THREADS";
+	public static int RECEIVE_THREADS = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * How CCNNetworkManager runs listener callbacks: "cached" on threads started
+	 * as needed, "pool" on a bounded work-stealing pool of DELIVERY_THREADS threads,
+	 * for listeners that do not block waiting on other deliveries, "virtual" on a
+	 * virtual thread each where the JVM has them (otherwise as "cached"), or
+	 * "inline" on the thread that matched them, for listeners that never block.
+	 * Interest listeners are called on one thread at a time; filter listeners are
+	 * called for interests in parallel, except in "pool" and "inline" modes.
+	 * Default is "cached".
+	 */
+	protected static final String DELIVERY_MODE_PROPERTY = "org.ccnx.DeliveryMode";
+	protected static final String DELIVERY_MODE_ENV_VAR = "CCNX_DELIVERY_MODE";
+	public static String DELIVERY_MODE = "cached";
+
+	/**
+	 * Number of threads in the "pool" delivery mode. Default is four per
+	 * available processor, as listeners may block.
+	 */
+	protected static final String DELIVERY_THREADS_PROPERTY = "org.ccnx.DeliveryThreads";
+	protected static final String DELIVERY_THREADS_ENV_VAR = "CCNX_DELIVERY_THREADS";
+	public static int DELIVERY_THREADS = 4 * Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Number of objects a LogStructRepoStore saves between checkpoints of its
+	 * index. The index is also checkpointed on shutdown and after startup reads
+	 * anything new. 0 checkpoints only then. Default is 100000.
+	 */
+	protected static final String REPO_CHECKPOINT_INTERVAL_PROPERTY = "org.ccnx.repo.CheckpointInterval";
+	protected static final String REPO_CHECKPOINT_INTERVAL_ENV_VAR = "CCNX_REPO_CHECKPOINT_INTERVAL";
+	public static int REPO_CHECKPOINT_INTERVAL = 100000;
+
+	/**
+	 * When a LogStructRepoStore syncs its writes to disk: "none" leaves it to the
+	 * operating system, "batch" syncs after every batch written, and "interval"
+	 * every REPO_FSYNC_INTERVAL ms if anything has been written.
+	 * Default is "none".
+	 */
+	public static final String REPO_FSYNC_NONE = "none";
+	public static final String REPO_FSYNC_BATCH = "batch";
+	public static final String REPO_FSYNC_INTERVAL_POLICY = "interval";
+	protected static final String REPO_FSYNC_POLICY_PROPERTY = "org.ccnx.repo.FsyncPolicy";
+	protected static final String REPO_FSYNC_POLICY_ENV_VAR = "CCNX_REPO_FSYNC_POLICY";
+	public static String REPO_FSYNC_POLICY = REPO_FSYNC_NONE;
+
+	/**
+	 * Milliseconds between syncs in the "interval" REPO_FSYNC_POLICY. Default is 1000.
+	 */
+	protected static final String REPO_FSYNC_INTERVAL_PROPERTY = "org.ccnx.repo.FsyncInterval";
+	protected static final String REPO_FSYNC_INTERVAL_ENV_VAR = "CCNX_REPO_FSYNC_INTERVAL";
+	public static int REPO_FSYNC_INTERVAL = 1000;
+
+	/**
+	 * Size in bytes at which a LogStructRepoStore starts writing to a new file.
+	 * Default is 1GB.
+	 */
+	protected static final String REPO_SEGMENT_SIZE_PROPERTY = "org.ccnx.repo.SegmentSize";
+	protected static final String REPO_SEGMENT_SIZE_ENV_VAR = "CCNX_REPO_SEGMENT_SIZE";
+	public static long REPO_SEGMENT_SIZE = 1024L * 1024 * 1024;
+
+	/**
+	 * Milliseconds between runs of a LogStructRepoStore's compactor, which rewrites
+	 * files no longer in use for writing once less than REPO_COMPACT_THRESHOLD
+	 * percent of what they hold is still in the index. 0 turns compaction off.
+	 * Default is one hour.
+	 */
+	protected static final String REPO_COMPACT_INTERVAL_PROPERTY = "org.ccnx.repo.CompactInterval";
+	protected static final String REPO_COMPACT_INTERVAL_ENV_VAR = "CCNX_REPO_COMPACT_INTERVAL";
+	public static long REPO_COMPACT_INTERVAL = 60L * 60 * 1000;
+
+	protected static final String REPO_COMPACT_THRESHOLD_PROPERTY = "org.ccnx.repo.CompactThreshold";
+	protected static final String REPO_COMPACT_THRESHOLD_ENV_VAR = "CCNX_REPO_COMPACT_THRESHOLD";
+	public static int REPO_COMPACT_THRESHOLD = 50;
+
+	/**
+	 * How many versions of each name a LogStructRepoStore keeps when it compacts;
+	 * older ones are dropped. 0 keeps every version. Default is 0.
+	 */
+	protected static final String REPO_KEEP_VERSIONS_PROPERTY = "org.ccnx.repo.KeepVersions";
+	protected static final String REPO_KEEP_VERSIONS_ENV_VAR = "CCNX_REPO_KEEP_VERSIONS";
+	public static int REPO_KEEP_VERSIONS = 0;
+
+	/**
+	 * Number of threads a repository uses to prepare incoming content for its
+	 * store: working out each object's encoding and digest, and verifying it if
+	 * REPO_VERIFY_CONTENT is set. Default is one per available processor.
+	 */
+	protected static final String REPO_INGEST_THREADS_PROPERTY = "org.ccnx.repo.IngestThreads";
+	protected static final String REPO_INGEST_THREADS_ENV_VAR = "CCNX_REPO_INGEST_THREADS";
+	public static int REPO_INGEST_THREADS = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Most incoming objects a repository holds before they are stored; those
+	 * handing it more wait for room. Default is 1024.
+	 */
+	protected static final String REPO_INGEST_QUEUE_PROPERTY = "org.ccnx.repo.IngestQueue";
+	protected static final String REPO_INGEST_QUEUE_ENV_VAR = "CCNX_REPO_INGEST_QUEUE";
+	public static int REPO_INGEST_QUEUE = 1024;
+
+	/**
+	 * Whether a repository verifies the signature of incoming content, and
+	 * drops what does not verify, before storing it. Default is false.
+	 */
+	protected static final String REPO_VERIFY_CONTENT_PROPERTY = "org.ccnx.repo.VerifyContent";
+	protected static final String REPO_VERIFY_CONTENT_ENV_VAR = "CCNX_REPO_VERIFY_CONTENT";
+	public static boolean REPO_VERIFY_CONTENT = false;
+	
 	
 	/**
 	 * Timeout used for communication with local 'ccnd' for control operations.
@@ -417,6 +533,67 @@ public class SystemConfiguration {
 		OLD_HEADER_NAMES = Boolean.parseBoolean(
 				retrievePropertyOrEnvironmentVariable(OLD_HEADER_NAMES_PROPERTY, OLD_HEADER_NAMES_ENV_VAR, STRING_TRUE));
 
+		// Allow override of receive thread count.
+		try {
+			RECEIVE_THREADS = Integer.parseInt(retrievePropertyOrEnvironmentVariable(RECEIVE_THREADS_PROPERTY, RECEIVE_THREADS_ENV_VAR, Integer.toString(RECEIVE_THREADS)));
+		} catch (NumberFormatException e) {
+			System.err.println("The receive thread count must be an integer.");
+			throw e;
+		}
+
+		// Allow override of listener delivery mode and thread count.
+		DELIVERY_MODE = retrievePropertyOrEnvironmentVariable(DELIVERY_MODE_PROPERTY, DELIVERY_MODE_ENV_VAR, DELIVERY_MODE);
+		try {
+			DELIVERY_THREADS = Integer.parseInt(retrievePropertyOrEnvironmentVariable(DELIVERY_THREADS_PROPERTY, DELIVERY_THREADS_ENV_VAR, Integer.toString(DELIVERY_THREADS)));
+		} catch (NumberFormatException e) {
+			System.err.println("The delivery thread count must be an integer.");
+			throw e;
+		}
+
+		// Allow override of repository index checkpoint interval.
+		try {
+			REPO_CHECKPOINT_INTERVAL = Integer.parseInt(retrievePropertyOrEnvironmentVariable(REPO_CHECKPOINT_INTERVAL_PROPERTY, REPO_CHECKPOINT_INTERVAL_ENV_VAR, Integer.toString(REPO_CHECKPOINT_INTERVAL)));
+		} catch (NumberFormatException e) {
+			System.err.println("The repository checkpoint interval must be an integer.");
+			throw e;
+		}
+
+		// Allow override of repository sync policy and interval.
+		REPO_FSYNC_POLICY = retrievePropertyOrEnvironmentVariable(REPO_FSYNC_POLICY_PROPERTY, REPO_FSYNC_POLICY_ENV_VAR, REPO_FSYNC_POLICY);
+		if (!REPO_FSYNC_NONE.equals(REPO_FSYNC_POLICY) && !REPO_FSYNC_BATCH.equals(REPO_FSYNC_POLICY)
+				&& !REPO_FSYNC_INTERVAL_POLICY.equals(REPO_FSYNC_POLICY)) {
+			System.err.println("The repository sync policy must be one of \"" + REPO_FSYNC_NONE + "\", \""
+					+ REPO_FSYNC_BATCH + "\" or \"" + REPO_FSYNC_INTERVAL_POLICY + "\".");
+			throw new IllegalArgumentException("Unknown repository sync policy: " + REPO_FSYNC_POLICY);
+		}
+		try {
+			REPO_FSYNC_INTERVAL = Integer.parseInt(retrievePropertyOrEnvironmentVariable(REPO_FSYNC_INTERVAL_PROPERTY, REPO_FSYNC_INTERVAL_ENV_VAR, Integer.toString(REPO_FSYNC_INTERVAL)));
+		} catch (NumberFormatException e) {
+			System.err.println("The repository sync interval must be an integer.");
+			throw e;
+		}
+
+		// Allow override of repository file size and compaction.
+		try {
+			REPO_SEGMENT_SIZE = Long.parseLong(retrievePropertyOrEnvironmentVariable(REPO_SEGMENT_SIZE_PROPERTY, REPO_SEGMENT_SIZE_ENV_VAR, Long.toString(REPO_SEGMENT_SIZE)));
+			REPO_COMPACT_INTERVAL = Long.parseLong(retrievePropertyOrEnvironmentVariable(REPO_COMPACT_INTERVAL_PROPERTY, REPO_COMPACT_INTERVAL_ENV_VAR, Long.toString(REPO_COMPACT_INTERVAL)));
+			REPO_COMPACT_THRESHOLD = Integer.parseInt(retrievePropertyOrEnvironmentVariable(REPO_COMPACT_THRESHOLD_PROPERTY, REPO_COMPACT_THRESHOLD_ENV_VAR, Integer.toString(REPO_COMPACT_THRESHOLD)));
+			REPO_KEEP_VERSIONS = Integer.parseInt(retrievePropertyOrEnvironmentVariable(REPO_KEEP_VERSIONS_PROPERTY, REPO_KEEP_VERSIONS_ENV_VAR, Integer.toString(REPO_KEEP_VERSIONS)));
+		} catch (NumberFormatException e) {
+			System.err.println("The repository file size, compaction interval, threshold and versions kept must be integers.");
+			throw e;
+		}
+
+		// Allow override of repository ingest threads, queue and verification.
+		try {
+			REPO_INGEST_THREADS = Integer.parseInt(retrievePropertyOrEnvironmentVariable(REPO_INGEST_THREADS_PROPERTY, REPO_INGEST_THREADS_ENV_VAR, Integer.toString(REPO_INGEST_THREADS)));
+			REPO_INGEST_QUEUE = Integer.parseInt(retrievePropertyOrEnvironmentVariable(REPO_INGEST_QUEUE_PROPERTY, REPO_INGEST_QUEUE_ENV_VAR, Integer.toString(REPO_INGEST_QUEUE)));
+		} catch (NumberFormatException e) {
+			System.err.println("The repository ingest thread count and queue size must be integers.");
+			throw e;
+		}
+		REPO_VERIFY_CONTENT = Boolean.parseBoolean(retrievePropertyOrEnvironmentVariable(REPO_VERIFY_CONTENT_PROPERTY, REPO_VERIFY_CONTENT_ENV_VAR, Boolean.toString(REPO_VERIFY_CONTENT)));
+
 	}
 
 	public static String getLocalHost() {
@@ -0,0 +1,354 @@
+/*
+ * Part of the CCNx Java Library.
+ *
+ * Copyright (C) 2008, 2009, 2010 Palo Alto Research Center, Inc.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 2.1
+ * as published by the Free Software Foundation.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details. You should have received
+ * a copy of the GNU Lesser General Public License along with this library;
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin Street,
+ * Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.ccnx.ccn.impl;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import org.ccnx.ccn.config.SystemConfiguration;
+import org.ccnx.ccn.impl.support.Log;
+
+/**
+ * Runs listener callbacks for a CCNNetworkManager. There are four modes:
+ *
+ * - "cached", the default, runs them on threads started as needed, which exit once
+ *   idle for a while. Listeners may block, even on each other.
+ * - "pool" runs them on a work-stealing pool with a fixed number of threads, so a
+ *   slow listener holds up at most that many threads rather than making us start
+ *   new ones without bound. A listener that blocks holds its thread: if every
+ *   thread is held waiting for a delivery that needs one, delivery stops. The
+ *   blocking gets of CCNNetworkManager let the pool add a thread while they wait
+ *   (see acquire()), but other waits on later deliveries do not.
+ * - "virtual" runs each on a virtual thread, on JVMs that have them; elsewhere it
+ *   falls back to "cached".
+ * - "inline" runs them on the thread that matched them. Only for listeners that
+ *   return quickly and never block.
+ *
+ * Each listener's deliveries are run one at a time (see SerialTask), except that in
+ * "cached" and "virtual" modes a task that asks for it, as filters do, is run on a
+ * new thread for each delivery, so that filter listeners handle interests in parallel
+ * as they always have. In "pool" mode, which bounds the threads, a filter listener
+ * sees the interests for it one after another. The number of deliveries waiting and
+ * running is counted for monitoring.
+ */
+public abstract class CCNDeliveryExecutor {
+
+	public static final String MODE_CACHED = "cached";
+	public static final String MODE_POOL = "pool";
+	public static final String MODE_VIRTUAL = "virtual";
+	public static final String MODE_INLINE = "inline";
+
+	/**
+	 * A listener's deliveries. A task never runs on two threads at once: executing
+	 * one that is already queued does nothing, as the queued run will pick up
+	 * whatever the new request was for, and executing one that is running runs it
+	 * once more when it finishes.
+	 */
+	public static abstract class SerialTask implements Runnable {
+		protected static final int IDLE = 0;
+		protected static final int QUEUED = 1;
+		protected static final int RUNNING = 2;
+		protected static final int RERUN = 3;
+
+		private final AtomicInteger _state = new AtomicInteger(IDLE);
+		private CCNDeliveryExecutor _executor = null; // set before each submission
+
+		/**
+		 * The delivery itself.
+		 */
+		protected abstract void runSerially();
+
+		/**
+		 * @return true if deliveries may run on several threads at once, in modes
+		 * 	that start threads as needed
+		 */
+		protected boolean concurrent() {
+			return false;
+		}
+
+		public final void run() {
+			CCNDeliveryExecutor executor = _executor;
+			executor._queued.decrementAndGet();
+			executor._active.incrementAndGet();
+			try {
+				do {
+					_state.set(RUNNING);
+					try {
+						runSerially();
+					} catch (RuntimeException ex) {
+						Log.warning(Log.FAC_NETMANAGER, "failed delivery: {0}", ex);
+						Log.warningStackTrace(ex);
+					}
+				} while (!_state.compareAndSet(RUNNING, IDLE));
+			} finally {
+				executor._active.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * A delivery of a concurrent task, run whatever else is running for it.
+	 */
+	protected static class ConcurrentRun implements Runnable {
+		protected final CCNDeliveryExecutor _executor;
+		protected final SerialTask _task;
+
+		protected ConcurrentRun(CCNDeliveryExecutor executor, SerialTask task) {
+			_executor = executor;
+			_task = task;
+		}
+
+		public void run() {
+			_executor._queued.decrementAndGet();
+			_executor._active.incrementAndGet();
+			try {
+				_task.runSerially();
+			} catch (RuntimeException ex) {
+				Log.warning(Log.FAC_NETMANAGER, "failed delivery: {0}", ex);
+				Log.warningStackTrace(ex);
+			} finally {
+				_executor._active.decrementAndGet();
+			}
+		}
+	}
+
+	protected final String _mode;
+	protected final boolean _concurrent; // run concurrent tasks concurrently
+	protected final AtomicInteger _queued = new AtomicInteger(0);
+	protected final AtomicInteger _active = new AtomicInteger(0);
+	protected volatile int _maxQueued = 0;
+
+	protected CCNDeliveryExecutor(String mode) {
+		_mode = mode;
+		_concurrent = MODE_CACHED.equals(mode) || MODE_VIRTUAL.equals(mode);
+	}
+
+	/**
+	 * Get an executor for the given mode.
+	 * @param mode one of MODE_CACHED, MODE_POOL, MODE_VIRTUAL or MODE_INLINE; anything
+	 * 	else is taken as MODE_CACHED
+	 * @param threads number of threads for MODE_POOL
+	 */
+	public static CCNDeliveryExecutor create(String mode, int threads) {
+		if (MODE_INLINE.equalsIgnoreCase(mode))
+			return new Inline();
+		if (MODE_POOL.equalsIgnoreCase(mode))
+			return new Service(MODE_POOL, new ForkJoinPool(threads, new DeliveryThreadFactory(), null, true));
+		if (MODE_VIRTUAL.equalsIgnoreCase(mode)) {
+			try {
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return new Service(MODE_VIRTUAL, (ExecutorService)factory.invoke(null));
+			} catch (Exception e) {
+				if (Log.isLoggable(Log.FAC_NETMANAGER, Level.INFO))
+					Log.info(Log.FAC_NETMANAGER, "Virtual threads not available ({0}), delivering on threads started as needed", e);
+			}
+		} else if (!MODE_CACHED.equalsIgnoreCase(mode)) {
+			Log.warning(Log.FAC_NETMANAGER, "Unknown delivery mode {0}, delivering on threads started as needed", mode);
+		}
+		ThreadPoolExecutor cached = (ThreadPoolExecutor)Executors.newCachedThreadPool(new CachedThreadFactory());
+		cached.setKeepAliveTime(CCNNetworkManager.THREAD_LIFE, TimeUnit.SECONDS);
+		return new Service(MODE_CACHED, cached);
+	}
+
+	/**
+	 * Wait for a permit, as a blocked delivery thread would. In MODE_POOL the pool
+	 * starts another thread, if it can, to make deliveries while this one waits, so
+	 * that a listener waiting for a delivery does not hold up the one it waits for.
+	 * @param sema the semaphore
+	 * @param timeout ms to wait, or SystemConfiguration.NO_TIMEOUT to wait until there is one
+	 * @return true if a permit was acquired
+	 */
+	public static boolean acquire(Semaphore sema, long timeout) throws InterruptedException {
+		if (sema.tryAcquire())
+			return true;
+		SemaphoreBlocker blocker = new SemaphoreBlocker(sema, timeout);
+		ForkJoinPool.managedBlock(blocker);
+		return blocker._acquired;
+	}
+
+	protected static class SemaphoreBlocker implements ForkJoinPool.ManagedBlocker {
+		protected final Semaphore _sema;
+		protected final long _timeout;
+		protected final long _deadline;
+		protected boolean _acquired = false;
+		protected boolean _done = false;
+
+		protected SemaphoreBlocker(Semaphore sema, long timeout) {
+			_sema = sema;
+			_timeout = timeout;
+			_deadline = System.currentTimeMillis() + timeout;
+		}
+
+		public boolean block() throws InterruptedException {
+			if (SystemConfiguration.NO_TIMEOUT == _timeout) {
+				_sema.acquire();
+				_acquired = true;
+			} else {
+				_acquired = _sema.tryAcquire(Math.max(0, _deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			}
+			_done = true;
+			return true;
+		}
+
+		public boolean isReleasable() {
+			if (!_done && _sema.tryAcquire()) {
+				_acquired = true;
+				_done = true;
+			}
+			return _done;
+		}
+	}
+
+	/**
+	 * Run a listener's delivery, unless it is already waiting to run.
+	 */
+	public void execute(SerialTask task) {
+		if (_concurrent && task.concurrent()) {
+			queued();
+			try {
+				submit(new ConcurrentRun(this, task));
+			} catch (RejectedExecutionException e) {
+				_queued.decrementAndGet();
+				if (Log.isLoggable(Log.FAC_NETMANAGER, Level.FINE))
+					Log.fine(Log.FAC_NETMANAGER, "Dropping delivery after shutdown");
+			}
+			return;
+		}
+		for (;;) {
+			int state = task._state.get();
+			if ((SerialTask.QUEUED == state) || (SerialTask.RERUN == state))
+				return;
+			if (SerialTask.RUNNING == state) {
+				if (task._state.compareAndSet(SerialTask.RUNNING, SerialTask.RERUN))
+					return;
+			} else if (task._state.compareAndSet(SerialTask.IDLE, SerialTask.QUEUED)) {
+				break;
+			}
+		}
+		task._executor = this;
+		queued();
+		try {
+			submit(task);
+		} catch (RejectedExecutionException e) {
+			_queued.decrementAndGet();
+			task._state.set(SerialTask.IDLE);
+			if (Log.isLoggable(Log.FAC_NETMANAGER, Level.FINE))
+				Log.fine(Log.FAC_NETMANAGER, "Dropping delivery after shutdown");
+		}
+	}
+
+	protected void queued() {
+		int queued = _queued.incrementAndGet();
+		if (queued > _maxQueued)
+			_maxQueued = queued; // racy, but only a statistic
+	}
+
+	protected abstract void submit(Runnable task);
+
+	/**
+	 * Stop taking deliveries. Those already queued are still run.
+	 */
+	public abstract void shutdown();
+
+	public String mode() {
+		return _mode;
+	}
+
+	/**
+	 * @return the number of deliveries waiting to run
+	 */
+	public int queueDepth() {
+		return _queued.get();
+	}
+
+	/**
+	 * @return the largest queueDepth() seen
+	 */
+	public int maxQueueDepth() {
+		return _maxQueued;
+	}
+
+	/**
+	 * @return the number of deliveries running now
+	 */
+	public int activeCount() {
+		return _active.get();
+	}
+
+	protected static class Inline extends CCNDeliveryExecutor {
+		protected Inline() {
+			super(MODE_INLINE);
+		}
+
+		@Override
+		protected void submit(Runnable task) {
+			task.run();
+		}
+
+		@Override
+		public void shutdown() {
+		}
+	}
+
+	protected static class Service extends CCNDeliveryExecutor {
+		protected final ExecutorService _service;
+
+		protected Service(String mode, ExecutorService service) {
+			super(mode);
+			_service = service;
+		}
+
+		@Override
+		protected void submit(Runnable task) {
+			_service.execute(task);
+		}
+
+		@Override
+		public void shutdown() {
+			_service.shutdown();
+		}
+	}
+
+	protected static class CachedThreadFactory implements ThreadFactory {
+		protected AtomicInteger _count = new AtomicInteger(0);
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "CCNNetworkManager delivery " + _count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	protected static class DeliveryThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+		protected AtomicInteger _count = new AtomicInteger(0);
+		public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+			ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			t.setName("CCNNetworkManager delivery " + _count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
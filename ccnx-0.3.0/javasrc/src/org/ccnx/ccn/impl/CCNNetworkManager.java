@@ -17,6 +17,7 @@
 
 package org.ccnx.ccn.impl;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -27,12 +28,12 @@ import java.nio.channels.NotYetConnectedException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.TreeMap;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
@@ -43,6 +44,7 @@ import org.ccnx.ccn.KeyManager;
 import org.ccnx.ccn.config.SystemConfiguration;
 import org.ccnx.ccn.impl.InterestTable.Entry;
 import org.ccnx.ccn.impl.support.Log;
+import org.ccnx.ccn.impl.support.TimingWheel;
 import org.ccnx.ccn.io.content.ContentEncodingException;
 import org.ccnx.ccn.profiles.ccnd.CCNDaemonException;
 import org.ccnx.ccn.profiles.ccnd.CCNDaemonProfile;
@@ -81,8 +83,11 @@ public class CCNNetworkManager implements Runnable {
 	public static final int PERIOD = 2000; // period for occasional ops in ms.
 	public static final int HEARTBEAT_PERIOD = 3500;
 	public static final int MAX_PERIOD = PERIOD * 8;
+	public static final int REFRESH_TICK = 20; // granularity of interest refresh in ms.
+	public static final int REFRESH_SLOTS = 512; // ticks per revolution of _refreshWheel, longer than re-expression periods
 	public static final String KEEPALIVE_NAME = "/HereIAm";
 	public static final int THREAD_LIFE = 8;	// in seconds
+	public static final int MAX_READS_PER_SELECT = 64; // datagrams read from one channel before going on to the next
 
 	/**
 	 *  Definitions for which network protocol to use.  This allows overriding
@@ -112,8 +117,12 @@ public class CCNNetworkManager implements Runnable {
 	 * Static singleton.
 	 */
 	protected Thread _thread = null; // the main processing thread
-	protected ThreadPoolExecutor _threadpool = null; // pool service for callback threads
-	protected DatagramChannel _channel = null; // for use by run thread only!
+	protected CCNDeliveryExecutor _deliverer = null; // runs listener callbacks
+	// The registration, if any, this thread is delivering for
+	protected final ThreadLocal<ListenerRegistration> _delivering = new ThreadLocal<ListenerRegistration>();
+	protected CCNReceivePipeline _receiver = null; // decodes and matches received packets, null to do so inline
+	protected CCNSendQueue _sender = null; // single writer for outbound packets
+	protected volatile DatagramChannel _channel = null; // read by run thread, written by _sender
 	protected Boolean _connected = false;	   // Is the channel connected currently? (isConnected doesn't
 	// work reliably
 	protected Selector _selector = null;
@@ -140,6 +149,11 @@ public class CCNNetworkManager implements Runnable {
 	protected boolean _usePrefixReg = DEFAULT_PREFIX_REG;
 	protected PrefixRegistrationManager _prefixMgr = null;
 	protected Timer _periodicTimer = null;
+	protected TimingWheel<InterestRegistration> _refreshWheel =
+		new TimingWheel<InterestRegistration>(REFRESH_TICK, REFRESH_SLOTS, System.currentTimeMillis());
+	// Timeouts of asynchronous gets
+	protected TimingWheel<InterestRegistration> _timeoutWheel =
+		new TimingWheel<InterestRegistration>(REFRESH_TICK, REFRESH_SLOTS, System.currentTimeMillis());
 	protected boolean _timersSetup = false;
 	protected TreeMap<ContentName, RegisteredPrefix> _registeredPrefixes 
 	= new TreeMap<ContentName, RegisteredPrefix>();
@@ -167,11 +181,18 @@ public class CCNNetworkManager implements Runnable {
 	}
 
 	/**
-	 * Do scheduled writes of heartbeats and interest refreshes
+	 * Do scheduled writes of heartbeats and interest refreshes. Runs every
+	 * REFRESH_TICK ms; interests are re-expressed from _refreshWheel, so a tick
+	 * touches only the interests that are due.
 	 */
 	private class PeriodicWriter extends TimerTask {
 		// TODO Interest refresh time is supposed to "decay" over time but there are currently
 		// unresolved problems with this.
+		protected long _lastReconnect = 0;
+		protected ArrayList<InterestRegistration> _due = new ArrayList<InterestRegistration>();
+		protected ArrayList<Interest> _refresh = new ArrayList<Interest>();
+		protected ArrayList<InterestRegistration> _expired = new ArrayList<InterestRegistration>();
+
 		public void run() {
 
 			//this method needs to do a few things
@@ -181,8 +202,22 @@ public class CCNNetworkManager implements Runnable {
 			// - heartbeats
 
 			boolean refreshError = false;
+			long ourTime = System.currentTimeMillis();
+
+			// Time out asynchronous gets, connected or not. They are completed
+			// on the delivery executor, not on this thread.
+			_timeoutWheel.advance(ourTime, _expired);
+			for (InterestRegistration reg : _expired) {
+				reg.expired = true;
+				_deliverer.execute(reg);
+			}
+			_expired.clear();
+
 			if (!_connected) {
+				if (ourTime - _lastReconnect < SOCKET_TIMEOUT)
+					return;
 				//we are not connected.  reconnect attempt is in the heartbeat function...
+				_lastReconnect = ourTime;
 				heartbeat();
 			}
 
@@ -190,49 +225,45 @@ public class CCNNetworkManager implements Runnable {
 				//we tried to reconnect and failed, try again next loop
 				Log.fine(Log.FAC_NETMANAGER, "Not Connected to ccnd, try again in {0}ms", SOCKET_TIMEOUT);
 				_lastHeartbeat = 0;
-				if (_run)
-					_periodicTimer.schedule(new PeriodicWriter(), SOCKET_TIMEOUT);
 				return;
 			}
 
-			long ourTime = System.currentTimeMillis();
-			long minInterestRefreshTime = PERIOD + ourTime;
-			// Library.finest("Refreshing interests (size " + _myInterests.size() + ")");
-
-			// Re-express interests that need to be re-expressed
-			try {
-				synchronized (_myInterests) {
-					for (Entry<InterestRegistration> entry : _myInterests.values()) {
-						InterestRegistration reg = entry.value();
-						// allow some slop for scheduling
-						if (ourTime + 20 > reg.nextRefresh) {
-							if( Log.isLoggable(Log.FAC_NETMANAGER, Level.FINER) )
-								Log.finer(Log.FAC_NETMANAGER, "Refresh interest: {0}", reg.interest);
-							_lastHeartbeat = ourTime;
-							reg.nextRefresh = ourTime + reg.nextRefreshPeriod;
-							try {
-								write(reg.interest);
-							} catch (NotYetConnectedException nyce) {
-								refreshError = true;
-							}
-						}
-						if (minInterestRefreshTime > reg.nextRefresh)
-							minInterestRefreshTime = reg.nextRefresh;
+			// Re-express interests that need to be re-expressed, allowing some slop for scheduling
+			_refreshWheel.advance(ourTime + 20, _due);
+			for (InterestRegistration reg : _due) {
+				synchronized (_refreshWheel) {
+					if (reg.registrations <= 0) {
+						// Unregistered since it was scheduled
+						reg.refreshScheduled = false;
+						continue;
 					}
+					reg.nextRefresh = ourTime + reg.nextRefreshPeriod;
+					_refreshWheel.schedule(reg, reg.nextRefresh);
 				}
-			} catch (ContentEncodingException xmlex) {
-				Log.severe(Log.FAC_NETMANAGER, "PeriodicWriter interest refresh thread failure (Malformed datagram): {0}", xmlex.getMessage()); 
-				Log.warningStackTrace(xmlex);
-				refreshError = true;
+				if( Log.isLoggable(Log.FAC_NETMANAGER, Level.FINER) )
+					Log.finer(Log.FAC_NETMANAGER, "Refresh interest: {0}", reg.interest);
+				_refresh.add(reg.interest);
+			}
+			_due.clear();
+			if (!_refresh.isEmpty()) {
+				_lastHeartbeat = ourTime;
+				try {
+					write(_refresh);
+				} catch (NotYetConnectedException nyce) {
+					refreshError = true;
+				} catch (ContentEncodingException xmlex) {
+					Log.severe(Log.FAC_NETMANAGER, "PeriodicWriter interest refresh thread failure (Malformed datagram): {0}", xmlex.getMessage()); 
+					Log.warningStackTrace(xmlex);
+					refreshError = true;
+				}
+				_refresh.clear();
 			}
-
 
 			// Re-express prefix registrations that need to be re-expressed
 			// FIXME: The lifetime of a prefix is returned in seconds, not milliseconds.  The refresh code needs
 			// to understand this.  This isn't a problem for now because the lifetime we request when we register a 
 			// prefix we use Integer.MAX_VALUE as the requested lifetime.
 			// FIXME: so lets not go around the loop doing nothing... for now.
-			long minFilterRefreshTime = PERIOD + ourTime;
 			if (false && _usePrefixReg) {
 				synchronized (_registeredPrefixes) {
 					for (ContentName prefix : _registeredPrefixes.keySet()) {
@@ -262,8 +293,6 @@ public class CCNNetworkManager implements Runnable {
 									refreshError = true;
 								}
 							}	
-							if (minFilterRefreshTime > rp._nextRefresh)
-								minFilterRefreshTime = rp._nextRefresh;
 						}
 					} /* for (Entry<Filter> entry : _myFilters.values()) */
 				} /* synchronized (_myFilters) */
@@ -273,41 +302,12 @@ public class CCNNetworkManager implements Runnable {
 				Log.warning(Log.FAC_NETMANAGER, "we have had an error when refreshing an interest or prefix registration...  do we need to reconnect to ccnd?");
 			}
 
-			long currentTime = System.currentTimeMillis();
-			long checkInterestDelay = minInterestRefreshTime - currentTime;
-			if (checkInterestDelay < 0)
-				checkInterestDelay = 0;
-			if (checkInterestDelay > PERIOD)
-				checkInterestDelay = PERIOD;
-
-			long checkPrefixDelay = minFilterRefreshTime - currentTime;
-			if (checkPrefixDelay < 0)
-				checkPrefixDelay = 0;
-			if (checkPrefixDelay > PERIOD)
-				checkPrefixDelay = PERIOD;
-
-			long useMe;
-			if (checkInterestDelay < checkPrefixDelay) {
-				useMe = checkInterestDelay;
-			} else {
-				useMe = checkPrefixDelay;
-			}
 			//we haven't sent anything...  maybe need to send a heartbeat
+			long currentTime = System.currentTimeMillis();
 			if ((currentTime - _lastHeartbeat) >= HEARTBEAT_PERIOD) {
 				_lastHeartbeat = currentTime;
 				heartbeat();
-			}				
-
-			//now factor in heartbeat time
-			long timeToHeartbeat = HEARTBEAT_PERIOD - (currentTime - _lastHeartbeat);
-			if (useMe > timeToHeartbeat)
-				useMe = timeToHeartbeat;
-
-			if (useMe < 20) {
-				useMe = 20;
 			}
-			if (_run)
-				_periodicTimer.schedule(new PeriodicWriter(), useMe);
 		} /* run */
 	} /* private class PeriodicWriter extends TimerTask */
 
@@ -373,7 +373,7 @@ public class CCNNetworkManager implements Runnable {
 
 			// Create timer for heartbeats and other periodic behavior
 			_periodicTimer = new Timer(true);
-			_periodicTimer.schedule(new PeriodicWriter(), PERIOD);
+			_periodicTimer.schedule(new PeriodicWriter(), REFRESH_TICK, REFRESH_TICK);
 		}
 	}
 
@@ -382,13 +382,12 @@ public class CCNNetworkManager implements Runnable {
 	 *	subclass to call listener callback without holding any library locks,
 	 *	yet avoid delivery to a cancelled listener.
 	 */
-	protected abstract class ListenerRegistration implements Runnable {
+	protected abstract class ListenerRegistration extends CCNDeliveryExecutor.SerialTask {
 		protected Object listener;
 		protected CCNNetworkManager manager;
 		public Semaphore sema = null;	//used to block thread waiting for data or null if none
 		public Object owner = null;
-		protected boolean deliveryPending = false;
-		protected long id;
+		protected int deliveriesPending = 0; // deliveries in progress, guarded by this
 
 		public abstract void deliver();
 
@@ -399,46 +398,50 @@ public class CCNNetworkManager implements Runnable {
 		 * because a dispatch to handler might be in progress and we don't hold locks 
 		 * throughout the dispatch to avoid deadlocks.
 		 */
-		public void invalidate() {
+		public synchronized void invalidate() {
 			// There may be a pending delivery in progress, and it doesn't 
 			// happen while holding this lock because that would give the 
 			// application callback code power to block library processing.
 			// Instead, we use a flag that is checked and set under this lock
 			// to be sure that on exit from invalidate() there will be.
-			// Back off to avoid livelock  
-			for (int i = 0; true; i = (2 * i + 1) & 63) {
-				synchronized (this) {
-					// Make invalid, this will prevent any new delivery that comes
-					// along from doing anything.
-					this.listener = null;
-					this.sema = null;
-					// Return only if no delivery is in progress now (or if we are
-					// called out of our own handler)
-					if (!deliveryPending || (Thread.currentThread().getId() == id)) {
-						return;
-					}
-				}
-				if (i == 0) {
-					Thread.yield();
-				} else {
-					if (i > 3) Log.finer(Log.FAC_NETMANAGER, "invalidate spin {0}", i);
-					try {
-						Thread.sleep(i);
-					} catch (InterruptedException e) {
-					}
+			// Make invalid, this will prevent any new delivery that comes
+			// along from doing anything.
+			this.listener = null;
+			this.sema = null;
+			// Return only once no delivery is in progress (or at once if we are
+			// called out of our own handler); deliveries notify as they finish.
+			boolean interrupted = false;
+			while ((deliveriesPending > 0) && (_delivering.get() != this)) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
 				}
 			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+		/**
+		 * Mark a delivery finished, waking anyone waiting in invalidate() once
+		 * none is left. Called holding this lock; an interest registration, which
+		 * is only ever delivered on one thread, may call it early, before its listener.
+		 */
+		protected void deliveryDone() {
+			if ((this.deliveriesPending > 0) && (--this.deliveriesPending == 0))
+				notifyAll();
 		}
 
 		/**
 		 * Calls the client handler
 		 */
-		public void run() {
-			id = Thread.currentThread().getId();
+		protected void runSerially() {
+			ListenerRegistration outer = _delivering.get();
+			_delivering.set(this);
 			synchronized (this) {
 				// Mark us pending delivery, so that any invalidate() that comes 
 				// along will not return until delivery has finished
-				this.deliveryPending = true;
+				this.deliveriesPending++;
 			}
 			try {
 				// Delivery may synchronize on this object to access data structures
@@ -448,8 +451,9 @@ public class CCNNetworkManager implements Runnable {
 				Log.warning(Log.FAC_NETMANAGER, "failed delivery: {0}", ex);
 			} finally {
 				synchronized(this) {
-					this.deliveryPending = false;
+					deliveryDone();
 				}
+				_delivering.set(outer);
 			}
 		}
 
@@ -487,13 +491,34 @@ public class CCNNetworkManager implements Runnable {
 	 * listener must be set (non-null) for cases of standing Interest that holds 
 	 * until canceled by the application.  The listener should be null when a 
 	 * thread is blocked waiting for data, in which case the thread will be 
-	 * blocked on semaphore.
+	 * blocked on semaphore, or when the data is wanted in a future, which is
+	 * completed when data arrives or the registration expires.
 	 */
 	protected class InterestRegistration extends ListenerRegistration {
 		public final Interest interest;
 		ContentObject data = null;
 		protected long nextRefresh;		// next time to refresh the interest
 		protected long nextRefreshPeriod = SystemConfiguration.INTEREST_REEXPRESSION_DEFAULT;	// period to wait before refresh
+		protected int registrations = 0;			// times in _myInterests, guarded by _refreshWheel
+		protected boolean refreshScheduled = false;	// on _refreshWheel, guarded by _refreshWheel
+		protected InterestFuture future = null;		// for getAsync, or null
+		protected volatile boolean expired = false;	// future's timeout has passed
+		protected TimingWheel.Entry<InterestRegistration> timeout = null; // on _timeoutWheel, or null
+
+		/**
+		 * A future that gives up the interest if cancelled.
+		 */
+		protected class InterestFuture extends CompletableFuture<ContentObject> {
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				boolean cancelled = super.cancel(mayInterruptIfRunning);
+				if (cancelled) {
+					cancelTimeout();
+					manager.unregisterInterest(InterestRegistration.this);
+				}
+				return cancelled;
+			}
+		}
 
 		// All internal client interests must have an owner
 		public InterestRegistration(CCNNetworkManager mgr, Interest i, CCNInterestListener l, Object owner) {
@@ -507,6 +532,24 @@ public class CCNNetworkManager implements Runnable {
 			nextRefresh = System.currentTimeMillis() + nextRefreshPeriod;
 		}
 
+		// Registration for an asynchronous get
+		public InterestRegistration(CCNNetworkManager mgr, Interest i) {
+			manager = mgr;
+			interest = i;
+			future = new InterestFuture();
+			nextRefresh = System.currentTimeMillis() + nextRefreshPeriod;
+		}
+
+		/**
+		 * Take an asynchronous get off _timeoutWheel, so the wheel does not keep
+		 * it, and the data it was completed with, until its timeout.
+		 */
+		protected void cancelTimeout() {
+			TimingWheel.Entry<InterestRegistration> entry = timeout;
+			if (null != entry)
+				entry.cancel();
+		}
+
 		/**
 		 * Return true if data was added.
 		 * If data is already pending for delivery for this interest, the 
@@ -561,7 +604,7 @@ public class CCNNetworkManager implements Runnable {
 						synchronized (this) {
 							// DKS -- dynamic interests, unregister the interest here and express new one if we have one
 							// previous interest is final, can't update it
-							this.deliveryPending = false;
+							deliveryDone();
 						}
 						manager.unregisterInterest(this);
 
@@ -594,6 +637,16 @@ public class CCNNetworkManager implements Runnable {
 						if( Log.isLoggable(Log.FAC_NETMANAGER, Level.FINER) )
 							Log.finer(Log.FAC_NETMANAGER, "Interest callback skipped (no data) for: {0}", this.interest.name());
 					}
+				} else if (null != this.future) {
+					// Asynchronous get: complete with the data, or null once expired
+					ContentObject pending = popData();
+					if ((null != pending) || expired) {
+						if( Log.isLoggable(Log.FAC_NETMANAGER, Level.FINER) )
+							Log.finer(Log.FAC_NETMANAGER, "Completing get ({0}) for: {1}", (null == pending) ? "timed out" : "data", this.interest.name());
+						cancelTimeout();
+						manager.unregisterInterest(this);
+						this.future.complete(pending);
+					}
 				} else {
 					synchronized (this) {
 						if (null != this.sema) {
@@ -620,16 +673,16 @@ public class CCNNetworkManager implements Runnable {
 		}
 
 		/**
-		 * Start a thread to deliver data to a registered handler
+		 * Deliver data to a registered handler
 		 */
-		public void run() {
+		protected void runSerially() {
 			synchronized (this) {
 				// For now only one piece of data may be delivered per InterestRegistration
 				// This might change when "pipelining" is implemented
-				if (deliveryPending)
+				if (deliveriesPending > 0)
 					return;
 			}
-			super.run();
+			super.runSerially();
 		}
 	} /* protected class InterestRegistration extends ListenerRegistration */
 
@@ -649,6 +702,15 @@ public class CCNNetworkManager implements Runnable {
 			manager = mgr;
 		}
 
+		/**
+		 * Interests are delivered as they come, on as many threads as the executor allows,
+		 * so that listeners such as the file proxy and the repository serve them in parallel.
+		 */
+		@Override
+		protected boolean concurrent() {
+			return true;
+		}
+
 		public synchronized boolean add(Interest i) {
 			if (null == interest) {
 				interest = i;
@@ -824,8 +886,10 @@ public class CCNNetworkManager implements Runnable {
 		openChannel();
 
 		// Create callback threadpool and main processing thread
-		_threadpool = (ThreadPoolExecutor)Executors.newCachedThreadPool();
-		_threadpool.setKeepAliveTime(THREAD_LIFE, TimeUnit.SECONDS);
+		_deliverer = CCNDeliveryExecutor.create(SystemConfiguration.DELIVERY_MODE, SystemConfiguration.DELIVERY_THREADS);
+		if (SystemConfiguration.RECEIVE_THREADS > 0)
+			_receiver = new CCNReceivePipeline(this, SystemConfiguration.RECEIVE_THREADS);
+		_sender = new CCNSendQueue(this);
 		_thread = new Thread(this, "CCNNetworkManager");
 		_thread.start();
 	}
@@ -839,6 +903,8 @@ public class CCNNetworkManager implements Runnable {
 		if (_periodicTimer != null)
 			_periodicTimer.cancel();
 		_selector.wakeup();
+		// Sends what is still queued, for a while, before the channel closes
+		_sender.shutdown();
 		try {
 			setTap(null);
 			_channel.close();
@@ -910,6 +976,13 @@ public class CCNNetworkManager implements Runnable {
 		}
 	}
 
+	/**
+	 * @return the executor running listener callbacks, for its queue depth and activity
+	 */
+	public CCNDeliveryExecutor getDeliveryExecutor() {
+		return _deliverer;
+	}
+
 	/**
 	 * 
 	 */
@@ -964,11 +1037,9 @@ public class CCNNetworkManager implements Runnable {
 		expressInterest(reg);
 		if( Log.isLoggable(Log.FAC_NETMANAGER, Level.FINEST) )
 			Log.finest(Log.FAC_NETMANAGER, "blocking for {0} on {1}", interest.name(), reg.sema);
-		// Await data to consume the interest
-		if (timeout == SystemConfiguration.NO_TIMEOUT)
-			reg.sema.acquire(); // currently no timeouts
-		else
-			reg.sema.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+		// Await data to consume the interest, letting a delivery pool we are
+		// called from carry on delivering meanwhile
+		CCNDeliveryExecutor.acquire(reg.sema, timeout);
 		if( Log.isLoggable(Log.FAC_NETMANAGER, Level.FINEST) )
 			Log.finest(Log.FAC_NETMANAGER, "unblocked for {0} on {1}", interest.name(), reg.sema);
 		// Typically the main processing thread will have registered the interest
@@ -977,6 +1048,28 @@ public class CCNNetworkManager implements Runnable {
 		return reg.popData(); 
 	}
 
+	/**
+	 * Get content matching an interest from ccnd without waiting for it. Expresses the
+	 * interest and returns a future that is completed, on the thread that delivers to
+	 * listeners, with the data once it arrives (the interest is then removed), or with
+	 * null on timeout. Cancelling the future removes the interest.
+	 * 
+	 * @param interest	the interest
+	 * @param timeout	time to wait for data in ms, or SystemConfiguration.NO_TIMEOUT
+	 * @return	the future data
+	 * @throws IOException 	on incorrect interest data
+	 */
+	public CompletableFuture<ContentObject> getAsync(Interest interest, long timeout) throws IOException {
+		if( Log.isLoggable(Log.FAC_NETMANAGER, Level.FINE) )
+			Log.fine(Log.FAC_NETMANAGER, "getAsync: {0} with timeout: {1}", interest, timeout);
+		InterestRegistration reg = new InterestRegistration(this, interest);
+		// Schedule the timeout first, so that data arriving at once can cancel it
+		if (timeout != SystemConfiguration.NO_TIMEOUT)
+			reg.timeout = _timeoutWheel.schedule(reg, System.currentTimeMillis() + timeout);
+		expressInterest(reg);
+		return reg.future;
+	}
+
 	/**
 	 * We express interests to the ccnd and register them within the network manager
 	 * 
@@ -1104,9 +1197,7 @@ public class CCNNetworkManager implements Runnable {
 		}
 
 		Filter newOne = new Filter(this, filter, callbackListener, caller);
-		synchronized (_myFilters) {
-			_myFilters.add(filter, newOne);
-		}
+		_myFilters.add(filter, newOne);
 	}
 
 	/**
@@ -1123,9 +1214,7 @@ public class CCNNetworkManager implements Runnable {
 			Log.fine(Log.FAC_NETMANAGER, "cancelInterestFilter: {0}", filter);
 		Filter newOne = new Filter(this, filter, callbackListener, caller);
 		Entry<Filter> found = null;
-		synchronized (_myFilters) {
-			found = _myFilters.remove(filter, newOne);
-		}
+		found = _myFilters.remove(filter, newOne);
 		if (null != found) {
 			Filter thisOne = found.value();
 			thisOne.invalidate();
@@ -1171,8 +1260,9 @@ public class CCNNetworkManager implements Runnable {
 
 	protected void write(ContentObject data) throws ContentEncodingException {
 		WirePacket packet = new WirePacket(data);
-		writeInner(packet);
-		if( Log.isLoggable(Log.FAC_NETMANAGER, Level.FINEST) )
+		if (!writeInner(packet))
+			Log.warning(Log.FAC_NETMANAGER, "Content object not sent: {0}", data.name());
+		else if( Log.isLoggable(Log.FAC_NETMANAGER, Level.FINEST) )
 			Log.finest(Log.FAC_NETMANAGER, "Wrote content object: {0}", data.name());
 	}
 
@@ -1183,30 +1273,48 @@ public class CCNNetworkManager implements Runnable {
 	 */
 	public void write(Interest interest) throws ContentEncodingException {
 		WirePacket packet = new WirePacket(interest);
-		writeInner(packet);
+		if (!writeInner(packet))
+			Log.warning(Log.FAC_NETMANAGER, "Interest not sent: {0}", interest.name());
+	}
+
+	/**
+	 * Write several interests, packing as many into each datagram as fit.
+	 * @param interests
+	 * @throws ContentEncodingException
+	 */
+	protected void write(List<Interest> interests) throws ContentEncodingException {
+		ByteArrayOutputStream datagram = new ByteArrayOutputStream(MAX_PAYLOAD);
+		int packed = 0, unsent = 0;
+		for (Interest interest : interests) {
+			byte [] encoded = interest.encode();
+			if ((datagram.size() > 0) && (datagram.size() + encoded.length > MAX_PAYLOAD)) {
+				if (!_sender.send(datagram.toByteArray()))
+					unsent += packed;
+				datagram.reset();
+				packed = 0;
+			}
+			datagram.write(encoded, 0, encoded.length);
+			packed++;
+		}
+		if ((datagram.size() > 0) && !_sender.send(datagram.toByteArray()))
+			unsent += packed;
+		if (unsent > 0)
+			Log.warning(Log.FAC_NETMANAGER, "{0} of {1} interests not sent", unsent, interests.size());
+		else if( Log.isLoggable(Log.FAC_NETMANAGER, Level.FINEST) )
+			Log.finest(Log.FAC_NETMANAGER, "Wrote {0} interests", interests.size());
 	}
 
+	/**
+	 * @return false if the packet was dropped rather than queued for sending
+	 */
 	// DKS TODO unthrown exception
-	private void writeInner(WirePacket packet) throws ContentEncodingException {
+	private boolean writeInner(WirePacket packet) throws ContentEncodingException {
 		try {
-			byte[] bytes = packet.encode();
-			ByteBuffer datagram = ByteBuffer.wrap(bytes);
-			synchronized (_channel) {
-				int result = _channel.write(datagram);
-				if( Log.isLoggable(Log.FAC_NETMANAGER, Level.FINEST) )
-					Log.finest(Log.FAC_NETMANAGER, "Wrote datagram (" + datagram.position() + " bytes, result " + result + ")");
-				if (null != _tapStreamOut) {
-					try {
-						_tapStreamOut.write(bytes);
-					} catch (IOException io) {
-						Log.warning(Log.FAC_NETMANAGER, "Unable to write packet to tap stream for debugging");
-					}
-				}
-			}
+			// Encode on the caller's thread; the single writer only copies and sends.
+			return _sender.send(packet.encode());
 		} catch (IOException io) {
-			// We do not see errors on send typically even if 
-			// agent is gone, so log each but do not track
 			Log.warning(Log.FAC_NETMANAGER, "Error sending packet: " + io.toString());
+			return false;
 		}
 	}
 
@@ -1218,8 +1326,13 @@ public class CCNNetworkManager implements Runnable {
 		setupTimers();
 		if( Log.isLoggable(Log.FAC_NETMANAGER, Level.FINEST) )
 			Log.finest(Log.FAC_NETMANAGER, "registerInterest for {0}, and obj is " + _myInterests.hashCode(), reg.interest.name());
-		synchronized (_myInterests) {
-			_myInterests.add(reg.interest, reg);
+		_myInterests.add(reg.interest, reg);
+		synchronized (_refreshWheel) {
+			reg.registrations++;
+			if (!reg.refreshScheduled) {
+				reg.refreshScheduled = true;
+				_refreshWheel.schedule(reg, reg.nextRefresh);
+			}
 		}
 		return reg;
 	}
@@ -1232,16 +1345,18 @@ public class CCNNetworkManager implements Runnable {
 	/**
 	 * @param reg - registration to unregister
 	 * 
-	 * Important Note: This can indirectly need to obtain the lock for "reg" with the lock on
-	 * "myInterests" held.  Therefore it can't be called when holding the lock for "reg".
+	 * Data matched just before the registration is removed may still be added to it,
+	 * but is not delivered once it has been invalidated.
 	 */
 	private void unregisterInterest(InterestRegistration reg) {
-		synchronized (_myInterests) {
-			Entry<InterestRegistration> found = _myInterests.remove(reg.interest, reg);
-			if (null != found) {
-				found.value().invalidate();
+		Entry<InterestRegistration> found = _myInterests.remove(reg.interest, reg);
+		if (null != found) {
+			synchronized (_refreshWheel) {
+				// Dropped from _refreshWheel when next due
+				found.value().registrations--;
 			}
-		}		
+			found.value().invalidate();
+		}
 	}
 
 	/**
@@ -1254,46 +1369,60 @@ public class CCNNetworkManager implements Runnable {
 			return;
 		}
 		// Allocate datagram buffer: want to wrap array to ensure backed by
-		// array to permit decoding
-		byte[] buffer = new byte[MAX_PAYLOAD];
-		ByteBuffer datagram = ByteBuffer.wrap(buffer);
+		// array to permit decoding. The pipeline, if any, takes over each buffer
+		// we read into and gives us another from its pool.
+		ByteBuffer datagram = (null != _receiver) ? _receiver.buffer() : ByteBuffer.wrap(new byte[MAX_PAYLOAD]);
 		WirePacket packet = new WirePacket();
 		if( Log.isLoggable(Log.FAC_NETMANAGER, Level.INFO) )
 			Log.info(Log.FAC_NETMANAGER, "CCNNetworkManager processing thread started for port: " + _localPort);
 		while (_run) {
 			try {
 
-				//--------------------------------- Read and decode
+				//--------------------------------- Read
 				try {
 					int selectorResult = _selector.select(SOCKET_TIMEOUT);
 					if ( selectorResult != 0) {
-						// Note: we're selecting on only one channel to get
-						// the ability to use wakeup, so there is no need to 
-						// inspect the selected-key set
-						datagram.clear(); // make ready for new read
-						synchronized (_channel) {
-							_channel.read(datagram); // queue readers and writers
+						// Drain every ready channel, so a burst costs one wakeup rather
+						// than one per datagram.
+						for (SelectionKey key : _selector.selectedKeys()) {
+							DatagramChannel channel = (DatagramChannel)key.channel();
+							for (int i = 0; (i < MAX_READS_PER_SELECT) && _run; ++i) {
+								datagram.clear(); // make ready for new read
+								// Reads and writes are separately locked inside the channel,
+								// so reading does not hold up the writer.
+								int read = channel.read(datagram);
+								if (read <= 0)
+									break;
+								if( Log.isLoggable(Log.FAC_NETMANAGER, Level.FINEST) )
+									Log.finest(Log.FAC_NETMANAGER, "Read datagram (" + datagram.position() + " bytes) for port: " + _localPort);
+								if (null != _error) {
+									if( Log.isLoggable(Log.FAC_NETMANAGER, Level.INFO) )
+										Log.info(Log.FAC_NETMANAGER, "Receive error cleared for port: " + _localPort);
+									_error = null;
+								}
+								datagram.flip(); // make ready to decode
+								if (null != _tapStreamIn) {
+									_tapStreamIn.write(datagram.array(), datagram.arrayOffset(), datagram.limit());
+								}
+								if (null != _receiver) {
+									_receiver.receive(datagram);
+									datagram = _receiver.buffer();
+								} else {
+									//--------------------------------- Decode and process inline
+									packet.clear();
+									packet.decode(datagram);
+									for (ContentObject co : packet.data()) {
+										handleData(co);
+									}
+									for (Interest interest : packet.interests()) {
+										handleInterest(interest);
+									}
+								}
+							}
 						}
-						if( Log.isLoggable(Log.FAC_NETMANAGER, Level.FINEST) )
-							Log.finest(Log.FAC_NETMANAGER, "Read datagram (" + datagram.position() + " bytes) for port: " + _localPort);
 						_selector.selectedKeys().clear();
-						if (null != _error) {
-							if( Log.isLoggable(Log.FAC_NETMANAGER, Level.INFO) )
-								Log.info(Log.FAC_NETMANAGER, "Receive error cleared for port: " + _localPort);
-							_error = null;
-						}
-						datagram.flip(); // make ready to decode
-						if (null != _tapStreamIn) {
-							byte [] b = new byte[datagram.limit()];
-							datagram.get(b);
-							_tapStreamIn.write(b);
-							datagram.rewind();
-						}
-						packet.clear();
-						packet.decode(datagram);
 					} else {
 						// This was a timeout or wakeup, no data
-						packet.clear();
 						if (!_run) {
 							// exit immediately if wakeup for shutdown
 							break;
@@ -1309,59 +1438,60 @@ public class CCNNetworkManager implements Runnable {
 							Log.info(Log.FAC_NETMANAGER, "Unable to receive from agent: is it still running? Port: " + _localPort);
 					}
 					_error = io;
-					packet.clear();
+					_selector.selectedKeys().clear();
 				}
-				if (!_run) {
-					// exit immediately if wakeup for shutdown
-					break;
-				}
-
-				// If we got a data packet, hand it back to all the interested
-				// parties (registered interests and getters).
-				//--------------------------------- Process data from net (if any) 
-				for (ContentObject co : packet.data()) {
-					if( Log.isLoggable(Log.FAC_NETMANAGER, Level.FINER) )
-						Log.finer(Log.FAC_NETMANAGER, "Data from net for port: " + _localPort + " {0}", co.name());
-					//	SystemConfiguration.logObject("Data from net:", co);
-
-					deliverData(co);
-					// External data never goes back to network, never held onto here
-					// External data never has a thread waiting, so no need to release sema
-				}
-
-				//--------------------------------- Process interests from net (if any)
-				for (Interest interest : packet.interests()) {
-					if( Log.isLoggable(Log.FAC_NETMANAGER, Level.FINEST) )
-						Log.finest(Log.FAC_NETMANAGER, "Interest from net for port: " + _localPort + " {0}", interest);
-					InterestRegistration oInterest = new InterestRegistration(this, interest, null, null);
-					deliverInterest(oInterest);
-					// External interests never go back to network
-				} // for interests
-
 			} catch (Exception ex) {
 				Log.severe(Log.FAC_NETMANAGER, "Processing thread failure (UNKNOWN): " + ex.getMessage() + " for port: " + _localPort);
 				Log.warningStackTrace(ex);
+				_selector.selectedKeys().clear();
 			}
 		}
 
-		_threadpool.shutdown();
+		if (null != _receiver)
+			_receiver.shutdown();
+		_deliverer.shutdown();
 		Log.info(Log.FAC_NETMANAGER, "Shutdown complete for port: " + _localPort);
 	}
 
+	/**
+	 * Hand data received from the net back to all the interested
+	 * parties (registered interests and getters).
+	 * @param co
+	 */
+	protected void handleData(ContentObject co) {
+		if( Log.isLoggable(Log.FAC_NETMANAGER, Level.FINER) )
+			Log.finer(Log.FAC_NETMANAGER, "Data from net for port: " + _localPort + " {0}", co.name());
+		//	SystemConfiguration.logObject("Data from net:", co);
+
+		deliverData(co);
+		// External data never goes back to network, never held onto here
+		// External data never has a thread waiting, so no need to release sema
+	}
+
+	/**
+	 * Hand an interest received from the net to matching filter listeners.
+	 * @param interest
+	 */
+	protected void handleInterest(Interest interest) {
+		if( Log.isLoggable(Log.FAC_NETMANAGER, Level.FINEST) )
+			Log.finest(Log.FAC_NETMANAGER, "Interest from net for port: " + _localPort + " {0}", interest);
+		InterestRegistration oInterest = new InterestRegistration(this, interest, null, null);
+		deliverInterest(oInterest);
+		// External interests never go back to network
+	}
+
 	/**
 	 * Internal delivery of interests to pending filter listeners
 	 * @param ireg
 	 */
 	protected void deliverInterest(InterestRegistration ireg) {
 		// Call any listeners with matching filters
-		synchronized (_myFilters) {
-			for (Filter filter : _myFilters.getValues(ireg.interest.name())) {
-				if (filter.owner != ireg.owner) {
-					if( Log.isLoggable(Log.FAC_NETMANAGER, Level.FINER) )
-						Log.finer(Log.FAC_NETMANAGER, "Schedule delivery for interest: {0}", ireg.interest);
-					if (filter.add(ireg.interest))
-						_threadpool.execute(filter);
-				}
+		for (Filter filter : _myFilters.getValues(ireg.interest.name())) {
+			if (filter.owner != ireg.owner) {
+				if( Log.isLoggable(Log.FAC_NETMANAGER, Level.FINER) )
+					Log.finer(Log.FAC_NETMANAGER, "Schedule delivery for interest: {0}", ireg.interest);
+				if (filter.add(ireg.interest))
+					_deliverer.execute(filter);
 			}
 		}
 	}
@@ -1371,11 +1501,9 @@ public class CCNNetworkManager implements Runnable {
 	 * @param co
 	 */
 	protected void deliverData(ContentObject co) {
-		synchronized (_myInterests) {
-			for (InterestRegistration ireg : _myInterests.getValues(co)) {
-				if (ireg.add(co)) { // this is a copy of the data
-					_threadpool.execute(ireg);
-				}
+		for (InterestRegistration ireg : _myInterests.getValues(co)) {
+			if (ireg.add(co)) { // this is a copy of the data
+				_deliverer.execute(ireg);
 			}
 		}
 	}
@@ -0,0 +1,279 @@
+/*
+ * Part of the CCNx Java Library.
+ *
+ * Copyright (C) 2008, 2009 Palo Alto Research Center, Inc.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 2.1
+ * as published by the Free Software Foundation.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details. You should have received
+ * a copy of the GNU Lesser General Public License along with this library;
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin Street,
+ * Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.ccnx.ccn.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import org.ccnx.ccn.impl.support.Log;
+import org.ccnx.ccn.io.content.ContentDecodingException;
+import org.ccnx.ccn.protocol.ContentName;
+import org.ccnx.ccn.protocol.ContentObject;
+import org.ccnx.ccn.protocol.Interest;
+import org.ccnx.ccn.protocol.WirePacket;
+
+/**
+ * Staged processing of packets received by a CCNNetworkManager.
+ *
+ * The network manager's thread only reads datagrams and hands them to receive().
+ * They are decoded in parallel by a pool of decoder threads, then released in the
+ * order they were received and matched against the interest and filter tables by a
+ * set of lanes. Each lane is a single thread, and every packet with a given name is
+ * matched on the same lane, so packets for any one name are matched in the order they
+ * arrived while packets for different names are matched in parallel.
+ *
+ * When decoders fall behind, the reading thread decodes packets itself rather than
+ * queueing without bound, which slows reads down to the rate we can keep up with.
+ * When a lane falls behind, releasing packets to it waits for room in its queue, which
+ * holds up decoding and so reading in turn. A lane can't hand packets back to be matched
+ * by the caller, as a decoder can, without matching them out of order.
+ *
+ * Receive buffers and the packets they are decoded into are pooled: the reading thread
+ * reads straight into a buffer from buffer(), which goes back to the pool once decoded,
+ * and a packet goes back once its contents have been handed to the lanes. Only the
+ * interests and content objects themselves, which listeners may keep, are new.
+ */
+public class CCNReceivePipeline {
+
+	public static final int DECODE_QUEUE_PER_THREAD = 64;
+	public static final int LANE_QUEUE = 256;
+	public static final int POOL_PER_THREAD = 8;
+
+	protected CCNNetworkManager _manager;
+	protected ThreadPoolExecutor _decoders;
+	protected ThreadPoolExecutor [] _lanes;
+
+	// Received packets in arrival order; the head is released once it is decoded.
+	protected ConcurrentLinkedQueue<Received> _order = new ConcurrentLinkedQueue<Received>();
+	protected Object _releaseLock = new Object();
+
+	// Free receive buffers and packets. Bounded, so a burst does not leave a
+	// large pool behind; beyond it we allocate and let the extras be collected.
+	protected ArrayBlockingQueue<ByteBuffer> _buffers;
+	protected ArrayBlockingQueue<WirePacket> _packets;
+
+	/**
+	 * A received datagram, and the packet decoded from it.
+	 */
+	protected class Received implements Runnable {
+		protected final ByteBuffer _datagram;
+		protected final boolean _pooled;
+		protected WirePacket _packet = null;
+		protected volatile boolean _decoded = false;
+
+		protected Received(ByteBuffer datagram, boolean pooled) {
+			_datagram = datagram;
+			_pooled = pooled;
+		}
+
+		public void run() {
+			WirePacket packet = _packets.poll();
+			if (null == packet)
+				packet = new WirePacket();
+			try {
+				packet.decode(_datagram);
+			} catch (ContentDecodingException e) {
+				Log.warning(Log.FAC_NETMANAGER, "Cannot decode received packet of " + _datagram.remaining() + " bytes: " + e.getMessage());
+				packet.clear();
+			}
+			// Decoding copies out everything it keeps.
+			if (_pooled)
+				_buffers.offer(_datagram);
+			_packet = packet;
+			_decoded = true;
+			release();
+		}
+	}
+
+	/**
+	 * @param manager the network manager to deliver packets to
+	 * @param threads number of decoder threads, and of matching lanes
+	 */
+	public CCNReceivePipeline(CCNNetworkManager manager, int threads) {
+		_manager = manager;
+		_decoders = new ThreadPoolExecutor(threads, threads, CCNNetworkManager.THREAD_LIFE, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(DECODE_QUEUE_PER_THREAD * threads),
+				new PipelineThreadFactory("CCNNetworkManager decoder"), new ThreadPoolExecutor.CallerRunsPolicy());
+		_decoders.allowCoreThreadTimeOut(true);
+		_buffers = new ArrayBlockingQueue<ByteBuffer>(POOL_PER_THREAD * threads);
+		_packets = new ArrayBlockingQueue<WirePacket>(POOL_PER_THREAD * threads);
+		_lanes = new ThreadPoolExecutor[threads];
+		PipelineThreadFactory laneFactory = new PipelineThreadFactory("CCNNetworkManager matcher");
+		for (int i = 0; i < threads; ++i) {
+			_lanes[i] = new ThreadPoolExecutor(1, 1, CCNNetworkManager.THREAD_LIFE, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(LANE_QUEUE), laneFactory, new WaitPolicy());
+			_lanes[i].allowCoreThreadTimeOut(true);
+		}
+	}
+
+	/**
+	 * Get an empty buffer to read a datagram into, and pass to receive(ByteBuffer).
+	 */
+	public ByteBuffer buffer() {
+		ByteBuffer buffer = _buffers.poll();
+		if (null == buffer)
+			return ByteBuffer.allocate(CCNNetworkManager.MAX_PAYLOAD);
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Queue a datagram for decoding and delivery. Called by the reading thread only.
+	 * @param datagram the datagram; must not be modified afterwards
+	 */
+	public void receive(byte [] datagram) {
+		receive(ByteBuffer.wrap(datagram), false);
+	}
+
+	/**
+	 * Queue a datagram read into a buffer from buffer(), which is taken over by
+	 * the pipeline. Called by the reading thread only.
+	 * @param datagram the buffer, flipped ready to read the datagram
+	 */
+	public void receive(ByteBuffer datagram) {
+		receive(datagram, true);
+	}
+
+	protected void receive(ByteBuffer datagram, boolean pooled) {
+		Received received = new Received(datagram, pooled);
+		_order.add(received);
+		try {
+			_decoders.execute(received);
+		} catch (RejectedExecutionException e) {
+			// Shutting down.
+			_order.remove(received);
+		}
+	}
+
+	/**
+	 * Release decoded packets to the lanes, in the order they were received.
+	 */
+	protected void release() {
+		synchronized (_releaseLock) {
+			Received head;
+			while ((null != (head = _order.peek())) && head._decoded) {
+				_order.poll();
+				for (ContentObject co : head._packet.data()) {
+					dispatch(co.name(), new DeliverData(co));
+				}
+				for (Interest interest : head._packet.interests()) {
+					dispatch(interest.name(), new DeliverInterest(interest));
+				}
+				head._packet.clear();
+				_packets.offer(head._packet);
+				head._packet = null;
+			}
+		}
+	}
+
+	protected void dispatch(ContentName name, Runnable delivery) {
+		int lane = (name.hashCode() & Integer.MAX_VALUE) % _lanes.length;
+		try {
+			_lanes[lane].execute(delivery);
+		} catch (RejectedExecutionException e) {
+			if( Log.isLoggable(Log.FAC_NETMANAGER, Level.FINE) )
+				Log.fine(Log.FAC_NETMANAGER, "Dropping packet for {0} received during shutdown", name);
+		}
+	}
+
+	/**
+	 * Match received data against the manager's interests. Called on the data's lane.
+	 */
+	protected void deliver(ContentObject co) {
+		_manager.handleData(co);
+	}
+
+	/**
+	 * Match a received interest against the manager's filters. Called on the interest's lane.
+	 */
+	protected void deliver(Interest interest) {
+		_manager.handleInterest(interest);
+	}
+
+	protected class DeliverData implements Runnable {
+		protected ContentObject _co;
+		protected DeliverData(ContentObject co) { _co = co; }
+		public void run() {
+			try {
+				deliver(_co);
+			} catch (Exception ex) {
+				Log.severe(Log.FAC_NETMANAGER, "Failure delivering data {0}: " + ex.getMessage(), _co.name());
+				Log.warningStackTrace(ex);
+			}
+		}
+	}
+
+	protected class DeliverInterest implements Runnable {
+		protected Interest _interest;
+		protected DeliverInterest(Interest interest) { _interest = interest; }
+		public void run() {
+			try {
+				deliver(_interest);
+			} catch (Exception ex) {
+				Log.severe(Log.FAC_NETMANAGER, "Failure delivering interest {0}: " + ex.getMessage(), _interest.name());
+				Log.warningStackTrace(ex);
+			}
+		}
+	}
+
+	/**
+	 * Wait for room in a full queue, rather than rejecting the task, unless the
+	 * executor has been shut down.
+	 */
+	protected static class WaitPolicy implements RejectedExecutionHandler {
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if (executor.isShutdown())
+				throw new RejectedExecutionException("Executor shut down");
+			try {
+				executor.getQueue().put(r);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Interrupted waiting for room");
+			}
+		}
+	}
+
+	protected static class PipelineThreadFactory implements ThreadFactory {
+		protected String _name;
+		protected AtomicInteger _count = new AtomicInteger(0);
+		protected PipelineThreadFactory(String name) { _name = name; }
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, _name + " " + _count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	/**
+	 * Stop processing. Packets already queued are still delivered.
+	 */
+	public void shutdown() {
+		_decoders.shutdown();
+		for (ThreadPoolExecutor lane : _lanes) {
+			lane.shutdown();
+		}
+	}
+}
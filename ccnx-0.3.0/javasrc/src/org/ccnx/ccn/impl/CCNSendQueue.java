@@ -0,0 +1,228 @@
+/*
+ * Part of the CCNx Java Library.
+ *
+ * Copyright (C) 2008, 2009 Palo Alto Research Center, Inc.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 2.1
+ * as published by the Free Software Foundation.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details. You should have received
+ * a copy of the GNU Lesser General Public License along with this library;
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin Street,
+ * Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.ccnx.ccn.impl;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+import org.ccnx.ccn.impl.support.Log;
+
+/**
+ * Outbound datagrams of a CCNNetworkManager.
+ *
+ * Any number of threads encode packets and add them with send(), which never takes a
+ * lock: datagrams go on a lock-free queue that a single writer thread drains. The writer
+ * takes up to WRITE_BATCH datagrams at a time and writes them back to back from one
+ * reused direct buffer, so the socket sees no contention between senders and no
+ * per-datagram copy into a temporary direct buffer, and the tap stream, if any, is
+ * written once per batch. Datagrams are sent in the order they were queued.
+ *
+ * The queue is bounded: a sender waits for room for up to SEND_WAIT ms, after which the
+ * datagram is dropped, as it would be by a full socket buffer. Dropped datagrams are
+ * logged and counted. On shutdown, new datagrams are refused and the writer is given up
+ * to SHUTDOWN_WAIT ms to send those already queued.
+ */
+public class CCNSendQueue implements Runnable {
+
+	public static final int WRITE_QUEUE_SIZE = 1024; // datagrams
+	public static final int WRITE_BATCH = 64; // datagrams written per pass
+	public static final int SEND_WAIT = 1000; // ms a sender waits for room in the queue
+	public static final int WRITE_RETRIES = 100; // attempts at a datagram the socket has no room for
+	public static final int SHUTDOWN_WAIT = 1000; // ms to wait for queued datagrams to be sent on shutdown
+
+	protected CCNNetworkManager _manager;
+	protected ConcurrentLinkedQueue<byte []> _queue = new ConcurrentLinkedQueue<byte []>();
+	protected Semaphore _room = new Semaphore(WRITE_QUEUE_SIZE);
+	protected ByteBuffer _buffer = ByteBuffer.allocateDirect(CCNNetworkManager.MAX_PAYLOAD);
+	protected byte [][] _batch = new byte[WRITE_BATCH][];
+	protected Thread _thread;
+	protected volatile boolean _waiting = false;
+	protected volatile boolean _run = true;
+	protected volatile boolean _closed = false; // no more datagrams accepted
+	protected AtomicLong _dropped = new AtomicLong(0);
+
+	public CCNSendQueue(CCNNetworkManager manager) {
+		_manager = manager;
+		_thread = new Thread(this, "CCNNetworkManager writer");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	/**
+	 * Queue an encoded datagram for sending.
+	 * @param datagram the datagram; must not be modified afterwards
+	 * @return false if it was dropped, because the queue stayed full or is shut down
+	 */
+	public boolean send(byte [] datagram) {
+		if (_closed) {
+			dropped("Send queue shut down", datagram.length);
+			return false;
+		}
+		try {
+			if (!_room.tryAcquire(SEND_WAIT, TimeUnit.MILLISECONDS)) {
+				dropped("Send queue full", datagram.length);
+				return false;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			dropped("Interrupted waiting for room in send queue", datagram.length);
+			return false;
+		}
+		_queue.add(datagram);
+		if (_waiting)
+			LockSupport.unpark(_thread);
+		return true;
+	}
+
+	protected void dropped(String reason, int length) {
+		long count = _dropped.incrementAndGet();
+		Log.warning(Log.FAC_NETMANAGER, reason + ", dropped packet of " + length + " bytes (" + count + " dropped in all)");
+	}
+
+	/**
+	 * @return the number of datagrams dropped rather than sent
+	 */
+	public long dropped() {
+		return _dropped.get();
+	}
+
+	/**
+	 * @return the channel to write to, or null if there is none
+	 */
+	protected DatagramChannel channel() {
+		return _manager._channel;
+	}
+
+	protected FileOutputStream tap() {
+		return _manager._tapStreamOut;
+	}
+
+	public void run() {
+		while (_run) {
+			int count = 0;
+			byte [] datagram;
+			while ((count < WRITE_BATCH) && (null != (datagram = _queue.poll()))) {
+				_batch[count++] = datagram;
+			}
+			if (0 == count) {
+				_waiting = true;
+				// Check again, a sender may have missed that we are about to wait.
+				if (_queue.isEmpty())
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(CCNNetworkManager.SOCKET_TIMEOUT));
+				_waiting = false;
+				continue;
+			}
+			try {
+				writeBatch(count);
+			} catch (Exception ex) {
+				Log.severe(Log.FAC_NETMANAGER, "Writer thread failure (UNKNOWN): " + ex.getMessage());
+				Log.warningStackTrace(ex);
+			} finally {
+				for (int i = 0; i < count; ++i) {
+					_batch[i] = null;
+				}
+				_room.release(count);
+			}
+		}
+	}
+
+	protected void writeBatch(int count) {
+		DatagramChannel channel = channel();
+		for (int i = 0; i < count; ++i) {
+			byte [] bytes = _batch[i];
+			ByteBuffer datagram;
+			if (bytes.length <= _buffer.capacity()) {
+				datagram = _buffer;
+				datagram.clear();
+				datagram.put(bytes);
+				datagram.flip();
+			} else {
+				datagram = ByteBuffer.wrap(bytes);
+			}
+			try {
+				if (null == channel)
+					throw new IOException("not connected");
+				int result = 0;
+				for (int attempt = 0; (0 == result) && (attempt < WRITE_RETRIES) && _run; ++attempt) {
+					result = channel.write(datagram);
+					if (0 == result)
+						Thread.yield(); // socket buffer full, give it a moment to drain
+				}
+				if( Log.isLoggable(Log.FAC_NETMANAGER, Level.FINEST) )
+					Log.finest(Log.FAC_NETMANAGER, "Wrote datagram (" + bytes.length + " bytes, result " + result + ")");
+				// A datagram goes whole or not at all; anything short of that was not sent.
+				if (0 == result)
+					dropped("Socket buffer full", bytes.length);
+				else if (result < bytes.length)
+					dropped("Short write of " + result + " bytes", bytes.length);
+			} catch (IOException io) {
+				// We do not see errors on send typically even if
+				// agent is gone, so log each but do not track
+				Log.warning(Log.FAC_NETMANAGER, "Error sending packet: " + io.toString());
+				_dropped.incrementAndGet();
+			}
+		}
+		FileOutputStream tap = tap();
+		if (null != tap) {
+			try {
+				for (int i = 0; i < count; ++i) {
+					tap.write(_batch[i]);
+				}
+			} catch (IOException io) {
+				Log.warning(Log.FAC_NETMANAGER, "Unable to write packet to tap stream for debugging");
+			}
+		}
+	}
+
+	/**
+	 * Stop the writer, once it has sent what is queued or SHUTDOWN_WAIT ms have passed.
+	 * Datagrams queued after that, or still queued then, are dropped.
+	 */
+	public void shutdown() {
+		_closed = true;
+		long deadline = System.currentTimeMillis() + SHUTDOWN_WAIT;
+		// Every permit is back once all queued datagrams have been written.
+		while ((_room.availablePermits() < WRITE_QUEUE_SIZE) && (System.currentTimeMillis() < deadline)
+				&& _thread.isAlive()) {
+			LockSupport.unpark(_thread);
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		_run = false;
+		LockSupport.unpark(_thread);
+		int remaining = 0;
+		while (null != _queue.poll())
+			remaining++;
+		if (remaining > 0) {
+			_dropped.addAndGet(remaining);
+			Log.warning(Log.FAC_NETMANAGER, "Send queue shut down with " + remaining + " packets unsent");
+		}
+	}
+}
@@ -18,12 +18,12 @@
 package org.ccnx.ccn.impl;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 
 import org.ccnx.ccn.impl.support.Log;
@@ -44,6 +44,16 @@ import org.ccnx.ccn.protocol.Interest;
  * interests in the table. To avoid that an LRU algorithm is
  * optionally implemented to keep the table from growing without
  * bounds.
+ * 
+ * Entries are held in a trie with one node per name component, so finding the
+ * entries whose names are prefixes of a target walks the target's components once,
+ * in time proportional to its length rather than to the size of the table, and
+ * without allocating anything per component. Each node's children are kept in a
+ * small hash table of its own keyed on component bytes.
+ * 
+ * Each method takes the table's read or write lock, so any number of threads may
+ * look up matches at once while additions and removals are exclusive. Callers that
+ * need several operations to be atomic synchronize on the table among themselves.
  */
 
 public class InterestTable<V> {
@@ -67,40 +77,98 @@ public class InterestTable<V> {
 		 */
 		public T value();
 	}
-	
+
 	/**
-	 * We need names in longest first order, not canonical order.
+	 * A node of the name trie: the entries having one name, and the nodes for
+	 * names one component longer.
 	 */
-	protected class LongestFirstContentName extends ContentName {
-		private static final long serialVersionUID = -3070093705531774465L;
+	protected static class Node<H> {
+		protected static final int INITIAL_CHILDREN = 4;
+
+		protected final Node<H> parent;
+		protected final byte [] component; // last component of this node's name, null for the root
+		protected final int hash;
+		protected Node<H> nextInBucket = null; // chains children of the parent with the same bucket
+		protected Node<H> [] children = null;
+		protected int childCount = 0;
+		protected List<H> holders = null; // null when no entries have this node's name
+		protected Node<H> older = null; // neighbors in order of last addition, for LRU
+		protected Node<H> newer = null;
 
-		public LongestFirstContentName(ContentName name) {
-			super(name);
+		protected Node(Node<H> parent, byte [] component) {
+			this.parent = parent;
+			this.component = component;
+			this.hash = (null == component) ? 0 : Arrays.hashCode(component);
 		}
-		
-		@Override
-		public int compareTo(ContentName o) {
-			if (this == o)
-				return 0;
-			if (count() < o.count())
-				return -1;
-			else if (count() > o.count())
-				return 1;
-			return super.compareTo(o);
-		}	
-	}
-
-	protected SortedMap<LongestFirstContentName,List<Holder<V>>> _contents = new TreeMap<LongestFirstContentName,List<Holder<V>>>() {
-		private static final long serialVersionUID = -2774858588706066528L;
-
-		public String toString() {
-			StringBuffer s = new StringBuffer();
-			for(LongestFirstContentName n : keySet() )
-				s.append(n.toString() + " ");
-			return s.toString();
-		}
-	};
+
+		protected Node<H> child(byte [] c) {
+			return child(c, Arrays.hashCode(c));
+		}
+
+		/**
+		 * @param h Arrays.hashCode(c), for callers that have it cached
+		 */
+		protected Node<H> child(byte [] c, int h) {
+			if (null == children)
+				return null;
+			for (Node<H> n = children[h & (children.length - 1)]; null != n; n = n.nextInBucket) {
+				if ((n.hash == h) && Arrays.equals(n.component, c))
+					return n;
+			}
+			return null;
+		}
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		protected Node<H> addChild(byte [] c) {
+			if (null == children) {
+				children = new Node[INITIAL_CHILDREN];
+			} else if (childCount >= children.length) {
+				Node<H> [] old = children;
+				children = new Node[2 * old.length];
+				for (Node<H> n : old) {
+					while (null != n) {
+						Node<H> next = n.nextInBucket;
+						insert(n);
+						n = next;
+					}
+				}
+			}
+			Node<H> n = new Node<H>(this, c);
+			insert(n);
+			childCount++;
+			return n;
+		}
+
+		private void insert(Node<H> n) {
+			int bucket = n.hash & (children.length - 1);
+			n.nextInBucket = children[bucket];
+			children[bucket] = n;
+		}
+
+		protected void removeChild(Node<H> child) {
+			int bucket = child.hash & (children.length - 1);
+			Node<H> prev = null;
+			for (Node<H> n = children[bucket]; null != n; prev = n, n = n.nextInBucket) {
+				if (n == child) {
+					if (null == prev)
+						children[bucket] = n.nextInBucket;
+					else
+						prev.nextInBucket = n.nextInBucket;
+					if (--childCount == 0)
+						children = null;
+					return;
+				}
+			}
+		}
+	}
+
+	protected Node<Holder<V>> _root = new Node<Holder<V>>(null, null);
+	protected Node<Holder<V>> _oldest = null;	// names with entries, in order of last addition
+	protected Node<Holder<V>> _newest = null;
+	protected int _names = 0;
+	protected int _size = 0;
 	protected Integer _capacity = null;	// For LRU size control - default is none
+	protected ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
 
 	protected abstract class Holder<T> implements Entry<T> {
 		protected T value;
@@ -195,191 +263,223 @@ public class InterestTable<V> {
 	 * @param holder
 	 */
 	protected void add(Holder<V> holder) {
-		if (_contents.containsKey(new LongestFirstContentName(holder.name()))) {
-			LongestFirstContentName name = new LongestFirstContentName(holder.name());
-			List<Holder<V>> list = _contents.get(name);
-			list.add(holder);
-			if (null != _capacity) {
-				synchronized (_contents) {
-					_contents.remove(name);
-					_contents.put(name, list);		// Put us last to avoid LRU removal
-				}
+		_lock.writeLock().lock();
+		try {
+			ContentName name = holder.name();
+			Node<Holder<V>> node = _root;
+			for (int i = 0; i < name.count(); i++) {
+				byte [] component = name.component(i);
+				Node<Holder<V>> child = node.child(component, name.componentHash(i));
+				node = (null == child) ? node.addChild(component) : child;
 			}
-		} else {
-			ArrayList<Holder<V>> list = new ArrayList<Holder<V>>(1);
-			list.add(holder);
-			
-			// We assume that the "oldest" entry is the first one.
-			// In cases we know about currently this should be true
-			// XXX - should we care about whether the key has multiple
-			// interests attached?
-			synchronized (_contents) {
-				if (null != _capacity && _contents.size() >= _capacity)
-					_contents.remove(_contents.firstKey());
-				_contents.put(new LongestFirstContentName(holder.name()), list);
+			if (null == node.holders) {
+				// We assume that the "oldest" entry is the first one.
+				// In cases we know about currently this should be true
+				// XXX - should we care about whether the key has multiple
+				// interests attached?
+				if (null != _capacity && _names >= _capacity)
+					removeNode(_oldest);
+				node.holders = new ArrayList<Holder<V>>(1);
+				_names++;
+			} else if (null != _capacity && node != _newest) {
+				unlink(node);		// Put us last to avoid LRU removal
 			}
+			node.holders.add(holder);
+			_size++;
+			if ((node != _newest) && (null == node.newer)) {
+				node.older = _newest;
+				if (null != _newest)
+					_newest.newer = node;
+				else
+					_oldest = node;
+				_newest = node;
+			}
+		} finally {
+			_lock.writeLock().unlock();
 		}
 	}
-	
-	protected Holder<V> getMatchByName(ContentName name, ContentObject target) {
-		List<Holder<V>> list = _contents.get(new LongestFirstContentName(name));
-		//Log.finest("name: " + name + " target: " + target.name() + " possible matches: " + ((null == list) ? 0 : list.size()));
-		if (Log.isLoggable(Level.FINEST));
-			Log.finest("name: {0} target: {1} possible matches: {2}", name, target.name(), ((null == list) ? 0 : list.size()));
-		if (null != list) {
-			for (Iterator<Holder<V>> holdIt = list.iterator(); holdIt.hasNext(); ) {
-				Holder<V> holder = holdIt.next();
-				if (null != holder.interest()) {
-					if (holder.interest().matches(target)) {
-						return holder;
-					}
-				}	
-			}
+
+	/**
+	 * @return the node for exactly this name, null if there is none
+	 */
+	protected Node<Holder<V>> find(ContentName name) {
+		Node<Holder<V>> node = _root;
+		for (int i = 0; (null != node) && (i < name.count()); i++) {
+			node = node.child(name.component(i), name.componentHash(i));
 		}
-		return null;
+		return node;
 	}
-	
-	/** 
-	 * Internal: return all the entries having exactly the specified name,
-	 * useful once you have found the matching names to collect entries from them
-	 * 
-	 * @param name
-	 * @param target
-	 * @return
+
+	/**
+	 * Take a node out of the LRU order.
 	 */
-	protected List<Holder<V>> getAllMatchByName(ContentName name, ContentObject target) {
-		if(Log.isLoggable(Level.FINEST))
-			Log.finest("name: {0} target: {1}", name, target.name());
-		List<Holder<V>> matches = new ArrayList<Holder<V>>();
-		List<Holder<V>> list = _contents.get(new LongestFirstContentName(name));
-		if (null != list) {
-			for (Iterator<Holder<V>> holdIt = list.iterator(); holdIt.hasNext(); ) {
-				Holder<V> holder = holdIt.next();
-				if (null != holder.interest()) {
-					if (holder.interest().matches(target)) {
-						matches.add(holder);
-					}
-				}	
-			}
+	protected void unlink(Node<Holder<V>> node) {
+		if (null != node.older)
+			node.older.newer = node.newer;
+		else if (_oldest == node)
+			_oldest = node.newer;
+		if (null != node.newer)
+			node.newer.older = node.older;
+		else if (_newest == node)
+			_newest = node.older;
+		node.older = node.newer = null;
+	}
+
+	/**
+	 * Remove all entries with a node's name, and any nodes no longer needed.
+	 */
+	protected void removeNode(Node<Holder<V>> node) {
+		_size -= node.holders.size();
+		_names--;
+		node.holders = null;
+		unlink(node);
+		prune(node);
+	}
+
+	/**
+	 * Remove entries taken out of a node's list; the node goes if none are left.
+	 */
+	protected void removed(Node<Holder<V>> node, int count) {
+		_size -= count;
+		if (node.holders.isEmpty()) {
+			_names--;
+			node.holders = null;
+			unlink(node);
+			prune(node);
 		}
-		return matches;
 	}
 
-	protected Holder<V> removeMatchByName(ContentName name, ContentObject target) {
-		if(Log.isLoggable(Level.FINEST))
-			Log.finest("name: {0} target: {1}", name, target.name());
-		List<Holder<V>> list = _contents.get(new LongestFirstContentName(name));
-		if (null != list) {
-			for (Iterator<Holder<V>> holdIt = list.iterator(); holdIt.hasNext(); ) {
-				Holder<V> holder = holdIt.next();
-				if (null != holder.interest()) {
-					if (holder.interest().matches(target)) {
-						holdIt.remove();
-						if (list.size() == 0) {
-							synchronized (_contents) {
-								_contents.remove(new LongestFirstContentName(name));
-							}
-						}
-						return holder;
-					}
-				}	
+	protected void prune(Node<Holder<V>> node) {
+		while ((null != node.parent) && (null == node.holders) && (0 == node.childCount)) {
+			node.parent.removeChild(node);
+			node = node.parent;
+		}
+	}
+
+	/**
+	 * Internal: find the first entry in a node matching a ContentObject.
+	 */
+	protected Holder<V> getMatchByNode(Node<Holder<V>> node, ContentObject target) {
+		for (Holder<V> holder : node.holders) {
+			if (null != holder.interest()) {
+				if (holder.interest().matches(target)) {
+					return holder;
+				}
 			}
 		}
 		return null;
 	}
 
 	/**
-	 * Remove first exact match entry (both name and value match).
-	 * 
-	 * @param name	ContentName of name
-	 * @param value	associated value
+	 * Internal: walk the nodes whose names are prefixes of a ContentObject's name,
+	 * shortest first, collecting those with entries. Interests can name the implicit
+	 * digest component, so the node one past the object's name is included if there is
+	 * one for its digest.
 	 * 
-	 * @return the matching entry or null if none found
+	 * @param target
+	 * @param digest whether to look for entries naming the digest
+	 * @return nodes having entries, shortest name first
 	 */
-	public Entry<V> remove(ContentName name, V value) {
-		Holder<V> result = null;
-			List<Holder<V>> list = _contents.get(new LongestFirstContentName(name));
-		if (null != list) {
-			for (Iterator<Holder<V>> holdIt = list.iterator(); holdIt.hasNext(); ) {
-				Holder<V> holder = holdIt.next();
-				if (null == holder.value()) {
-					if (null == value) {
-						holdIt.remove();
-						result = holder;
-					}
-				} else {
-					if (holder.value().equals(value)) {
-						holdIt.remove();
-						result = holder;
-					}
-				}
-			}
-			if (list.size() == 0) {
-				synchronized (_contents) {
-					_contents.remove(new LongestFirstContentName(name));
-				}
+	protected List<Node<Holder<V>>> prefixNodes(ContentObject target, boolean digest) {
+		ContentName name = target.name();
+		List<Node<Holder<V>>> nodes = new ArrayList<Node<Holder<V>>>(name.count() + 2);
+		Node<Holder<V>> node = _root;
+		int i = 0;
+		while (true) {
+			if (null != node.holders)
+				nodes.add(node);
+			if (i < name.count()) {
+				node = node.child(name.component(i), name.componentHash(i));
+				i++;
+			} else if (digest && (i == name.count()) && (0 != node.childCount)) {
+				node = node.child(target.digest());
+				i++;
+			} else {
+				break;
 			}
+			if (null == node)
+				break;
 		}
-		return result;
+		return nodes;
 	}
-	
+
 	/**
-	 * Remove first exact match entry (both interest and value match)
+	 * Remove first exact match entry (both name and value match).
 	 * 
-	 * @param interest	Interest to match
-	 * @param value		associated value
-	 * @return			the matching entry or null if none found
+	 * @param name	ContentName of name
+	 * @param value	associated value
+	 * 
+	 * @return the matching entry or null if none found
 	 */
-	public Entry<V> remove(Interest interest, V value) {
-		Holder<V> result = null;
-		List<Holder<V>> list = _contents.get(new LongestFirstContentName(interest.name()));
-		if (null != list) {
-			for (Iterator<Holder<V>> holdIt = list.iterator(); holdIt.hasNext(); ) {
-				Holder<V> holder = holdIt.next();
-				if (interest.equals(holder.interest())) {
+	public Entry<V> remove(ContentName name, V value) {
+		_lock.writeLock().lock();
+		try {
+			Holder<V> result = null;
+			Node<Holder<V>> node = find(name);
+			if ((null != node) && (null != node.holders)) {
+				int count = 0;
+				for (Iterator<Holder<V>> holdIt = node.holders.iterator(); holdIt.hasNext(); ) {
+					Holder<V> holder = holdIt.next();
 					if (null == holder.value()) {
 						if (null == value) {
 							holdIt.remove();
 							result = holder;
-			
+							count++;
 						}
 					} else {
 						if (holder.value().equals(value)) {
 							holdIt.remove();
 							result = holder;
+							count++;
 						}
 					}
 				}
+				removed(node, count);
 			}
-			if (list.size() == 0) {
-				synchronized (_contents) {
-					_contents.remove(new LongestFirstContentName(interest.name()));
-				}
-			}
+			return result;
+		} finally {
+			_lock.writeLock().unlock();
 		}
-		return result;
 	}
 	
-	protected List<Holder<V>> removeAllMatchByName(ContentName name, ContentObject target) {
-		List<Holder<V>> matches = new ArrayList<Holder<V>>();
-		List<Holder<V>> list = _contents.get(new LongestFirstContentName(name));
-		if (null != list) {
-			for (Iterator<Holder<V>> holdIt = list.iterator(); holdIt.hasNext(); ) {
-				Holder<V> holder = holdIt.next();
-				if (null != holder.interest()) {
-					if (holder.interest().matches(target)) {
-						holdIt.remove();
-						matches.add(holder);
+	/**
+	 * Remove first exact match entry (both interest and value match)
+	 * 
+	 * @param interest	Interest to match
+	 * @param value		associated value
+	 * @return			the matching entry or null if none found
+	 */
+	public Entry<V> remove(Interest interest, V value) {
+		_lock.writeLock().lock();
+		try {
+			Holder<V> result = null;
+			Node<Holder<V>> node = find(interest.name());
+			if ((null != node) && (null != node.holders)) {
+				int count = 0;
+				for (Iterator<Holder<V>> holdIt = node.holders.iterator(); holdIt.hasNext(); ) {
+					Holder<V> holder = holdIt.next();
+					if (interest.equals(holder.interest())) {
+						if (null == holder.value()) {
+							if (null == value) {
+								holdIt.remove();
+								result = holder;
+								count++;
+							}
+						} else {
+							if (holder.value().equals(value)) {
+								holdIt.remove();
+								result = holder;
+								count++;
+							}
+						}
 					}
-				}	
-			}
-			if (list.size() == 0) {
-				synchronized (_contents) {
-					_contents.remove(new LongestFirstContentName(name));
 				}
+				removed(node, count);
 			}
+			return result;
+		} finally {
+			_lock.writeLock().unlock();
 		}
-		return matches;
 	}
 
 	/**
@@ -409,15 +509,20 @@ public class InterestTable<V> {
 	 * @return Entry of longest match if any, null if no match
 	 */
 	public Entry<V> getMatch(ContentObject target) {
-		if(Log.isLoggable(Level.FINEST))
-			Log.finest("target: {0}", target.name());
-		Entry<V> match = null;
-		for (LongestFirstContentName name : _contents.keySet()) {
-			Entry<V> found = getMatchByName(name, target);
-			if (null != found)
-				match = found;
-	    }
-		return match;
+		_lock.readLock().lock();
+		try {
+			if(Log.isLoggable(Level.FINEST))
+				Log.finest("target: {0}", target.name());
+			List<Node<Holder<V>>> nodes = prefixNodes(target, true);
+			for (int i = nodes.size() - 1; i >= 0; i--) {
+				Entry<V> found = getMatchByNode(nodes.get(i), target);
+				if (null != found)
+					return found;
+			}
+			return null;
+		} finally {
+			_lock.readLock().unlock();
+		}
 	}
 
 	/**
@@ -453,18 +558,26 @@ public class InterestTable<V> {
 	 * @return List of matches, empty if no match
 	 */
 	public List<Entry<V>> getMatches(ContentObject target) {
-		if(Log.isLoggable(Level.FINEST))
-			Log.finest("target object name: {0}", target.name());
+		_lock.readLock().lock();
+		try {
+			if(Log.isLoggable(Level.FINEST))
+				Log.finest("target object name: {0}", target.name());
 
-		List<Entry<V>> matches = new ArrayList<Entry<V>>();
-		if (null != target) {
-			for (LongestFirstContentName name : _contents.keySet()) {
-				// Name match - is there an interest match here?
-				matches.addAll(getAllMatchByName(name, target));
+			List<Entry<V>> matches = new ArrayList<Entry<V>>();
+			if (null != target) {
+				for (Node<Holder<V>> node : prefixNodes(target, true)) {
+					// Name match - is there an interest match here?
+					for (Holder<V> holder : node.holders) {
+						if ((null != holder.interest()) && holder.interest().matches(target))
+							matches.add(holder);
+					}
+				}
+				Collections.reverse(matches);
 			}
-			Collections.reverse(matches);
+			return matches;
+		} finally {
+			_lock.readLock().unlock();
 		}
-		return matches;
 	}
 		
 	/**
@@ -496,15 +609,23 @@ public class InterestTable<V> {
 	 * @return			longest matching entry or null if none found
 	 */
 	public Entry<V> getMatch(ContentName target) {
-		Log.finest("target: {0}", target);
+		_lock.readLock().lock();
+		try {
+			Log.finest("target: {0}", target);
 
-		Entry<V> match = null;
-		for (LongestFirstContentName name : _contents.keySet()) {
-			if (name.isPrefixOf(target)) {
-				match = _contents.get(name).get(0);
+			Entry<V> match = null;
+			Node<Holder<V>> node = _root;
+			for (int i = 0; null != node; i++) {
+				if (null != node.holders)
+					match = node.holders.get(0);
+				if (i == target.count())
+					break;
+				node = node.child(target.component(i), target.componentHash(i));
 			}
-	    }
-		return match;
+			return match;
+		} finally {
+			_lock.readLock().unlock();
+		}
 	}
 	
 	/**
@@ -535,16 +656,24 @@ public class InterestTable<V> {
 	 * @return List of matches ordered from longest match to shortest, empty if no match
 	 */
 	public List<Entry<V>> getMatches(ContentName target) {
-		Log.finest("target: {0}", target);
+		_lock.readLock().lock();
+		try {
+			Log.finest("target: {0}", target);
 
-		List<Entry<V>> matches = new ArrayList<Entry<V>>();
-		for (LongestFirstContentName name : _contents.keySet()) {
-			if (name.isPrefixOf(target)) {
-				matches.addAll(_contents.get(name));
+			List<Entry<V>> matches = new ArrayList<Entry<V>>();
+			Node<Holder<V>> node = _root;
+			for (int i = 0; null != node; i++) {
+				if (null != node.holders)
+					matches.addAll(node.holders);
+				if (i == target.count())
+					break;
+				node = node.child(target.component(i), target.componentHash(i));
 			}
-	    }
-	    Collections.reverse(matches);
-	    return matches;
+			Collections.reverse(matches);
+			return matches;
+		} finally {
+			_lock.readLock().unlock();
+		}
 	}
 
 	/**
@@ -554,15 +683,16 @@ public class InterestTable<V> {
 	 * @return Collection of entries in arbitrary order
 	 */
 	public Collection<Entry<V>> values() {
-		List<Entry<V>> results =  new ArrayList<Entry<V>>();
-		synchronized (_contents) {
-			for (Iterator<LongestFirstContentName> keyIt = _contents.keySet().iterator(); keyIt.hasNext();) {
-				LongestFirstContentName name = (LongestFirstContentName) keyIt.next();
-				List<Holder<V>> list = _contents.get(name);
-				results.addAll(list);
+		_lock.readLock().lock();
+		try {
+			List<Entry<V>> results =  new ArrayList<Entry<V>>(_size);
+			for (Node<Holder<V>> node = _oldest; null != node; node = node.newer) {
+				results.addAll(node.holders);
 			}
+			return results;
+		} finally {
+			_lock.readLock().unlock();
 		}
-		return results;
 	}
 	
 	/**
@@ -592,24 +722,26 @@ public class InterestTable<V> {
 	 * @return Entry of longest match if any, null if no match
 	 */
 	public Entry<V> removeMatch(ContentObject target) {
-		Entry<V> match = null;
-		if (null != target) {
-			ContentName matchName = null;
-			if(Log.isLoggable(Level.FINEST))
-				Log.finest("removeMatch: looking for match to target {0} among {1} possibilities.", target.name(), _contents.keySet().size());				
-			for (LongestFirstContentName name : _contents.keySet()) {
-				Entry<V> found = getMatchByName(name, target);
-				if (null != found) {
-					match = found;
-					matchName = name;
+		_lock.writeLock().lock();
+		try {
+			if (null != target) {
+				if(Log.isLoggable(Level.FINEST))
+					Log.finest("removeMatch: looking for match to target {0} among {1} possibilities.", target.name(), _names);
+				List<Node<Holder<V>>> nodes = prefixNodes(target, true);
+				for (int i = nodes.size() - 1; i >= 0; i--) {
+					Node<Holder<V>> node = nodes.get(i);
+					Holder<V> found = getMatchByNode(node, target);
+					if (null != found) {
+						node.holders.remove(found);
+						removed(node, 1);
+						return found;
+					}
 				}
-				// Do not remove here -- need to find best match and avoid disturbing iterator
-			}
-			if (null != match) {
-				return removeMatchByName(matchName, target);
 			}
+			return null;
+		} finally {
+			_lock.writeLock().unlock();
 		}
-		return match;
 	}
 
 	/**
@@ -642,22 +774,28 @@ public class InterestTable<V> {
 	 * @return List of matches ordered from longest match to shortest, empty if no match
 	 */
 	public List<Entry<V>> removeMatches(ContentObject target) {
-		List<Entry<V>> matches = new ArrayList<Entry<V>>();
-		List<ContentName> names = new ArrayList<ContentName>();
-		for (LongestFirstContentName name : _contents.keySet()) {
-			if (name.isPrefixOf(target.name())) {
-				// Name match - is there an interest match here?
-				matches.addAll(getAllMatchByName(name, target));
-				names.add(name);
-			}
-	    }
-	    if (matches.size() != 0) {
-	    	for (ContentName contentName : names) {
-		    	removeAllMatchByName(contentName, target);				
+		_lock.writeLock().lock();
+		try {
+			List<Entry<V>> matches = new ArrayList<Entry<V>>();
+			for (Node<Holder<V>> node : prefixNodes(target, false)) {
+				int count = 0;
+				for (Iterator<Holder<V>> holdIt = node.holders.iterator(); holdIt.hasNext(); ) {
+					Holder<V> holder = holdIt.next();
+					if (null != holder.interest()) {
+						if (holder.interest().matches(target)) {
+							holdIt.remove();
+							matches.add(holder);
+							count++;
+						}
+					}
+				}
+				removed(node, count);
 			}
-	    }
-	    Collections.reverse(matches);
-	    return matches;
+			Collections.reverse(matches);
+			return matches;
+		} finally {
+			_lock.writeLock().unlock();
+		}
 	}
 	
 	/**
@@ -668,15 +806,12 @@ public class InterestTable<V> {
 	 * @return the number of entries in the table
 	 */
 	public int size() {
-		int result = 0;
-		synchronized (_contents) {
-		    for (Iterator<LongestFirstContentName> nameIt = _contents.keySet().iterator(); nameIt.hasNext();) {
-				LongestFirstContentName name = nameIt.next();
-				List<Holder<V>> list = _contents.get(name);
-				result += list.size();
-		    }
+		_lock.readLock().lock();
+		try {
+			return _size;
+		} finally {
+			_lock.readLock().unlock();
 		}
-	    return result;
 	}
 	
 	/**
@@ -687,15 +822,26 @@ public class InterestTable<V> {
 	 * @return	the number of ContentNames in the table
 	 */
 	public int sizeNames() {
-		return _contents.size();
+		_lock.readLock().lock();
+		try {
+			return _names;
+		} finally {
+			_lock.readLock().unlock();
+		}
 	}
 	
 	/**
 	 * Clear the table
 	 */
 	public void clear() {
-		synchronized (_contents) {
-			_contents.clear();
+		_lock.writeLock().lock();
+		try {
+			_root = new Node<Holder<V>>(null, null);
+			_oldest = _newest = null;
+			_names = 0;
+			_size = 0;
+		} finally {
+			_lock.writeLock().unlock();
 		}
 	}
 
@@ -0,0 +1,97 @@
+/*
+ * Part of the CCNx Java Library.
+ *
+ * Copyright (C) 2008, 2009, 2010 Palo Alto Research Center, Inc.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 2.1
+ * as published by the Free Software Foundation.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details. You should have received
+ * a copy of the GNU Lesser General Public License along with this library;
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin Street,
+ * Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.ccnx.ccn.impl.encoding;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * The ccnb codec again, read from and written to ByteBuffers (heap or direct)
+ * rather than streams. The encoding is exactly that of BinaryXMLCodec; only the
+ * means differ. Peeks look at the buffer in place instead of marking and resetting
+ * a stream, type and value pairs are decoded without allocating, and blobs can be
+ * read as slices of the buffer rather than copies.
+ *
+ * The encoder and decoder also work with streams, as BinaryXMLEncoder and
+ * BinaryXMLDecoder do, so this codec can be used wherever those are.
+ * @see BinaryXMLBufferEncoder
+ * @see BinaryXMLBufferDecoder
+ */
+public class BinaryXMLBufferCodec implements XMLCodec {
+
+	public static final String CODEC_NAME = "BinaryBuffer";
+
+	/**
+	 * The name of this codec; used with XMLCodecFactory
+	 * @return the codec name
+	 */
+	public static String codecName() { return CODEC_NAME; }
+
+	/**
+	 * @param codecName a registered codec name
+	 * @return true if the named codec reads and writes ccnb, by either means
+	 */
+	public static boolean isBinary(String codecName) {
+		return BinaryXMLCodec.CODEC_NAME.equals(codecName) || CODEC_NAME.equals(codecName);
+	}
+
+	/**
+	 * Encodes a type and value pair into a buffer at its position, as
+	 * BinaryXMLCodec#encodeTypeAndVal(int, long, byte[], int) does into an array.
+	 * @return the number of bytes used to encode
+	 * @throws BufferOverflowException if there is not room in buf
+	 */
+	public static int encodeTypeAndVal(int type, long val, ByteBuffer buf) {
+		if ((type > BinaryXMLCodec.XML_UDATA) || (type < 0) || (val < 0)) {
+			throw new IllegalArgumentException("Tag and value must be positive, and tag valid.");
+		}
+		int numEncodingBytes = BinaryXMLCodec.numEncodingBytes(val);
+		int position = buf.position();
+		if (buf.remaining() < numEncodingBytes)
+			throw new BufferOverflowException();
+
+		// Encode backwards. Bottom 4 bits of val go in last byte with tag.
+		int i = position + numEncodingBytes - 1;
+		buf.put(i--, (byte)(BinaryXMLCodec.BYTE_MASK &
+						(((BinaryXMLCodec.XML_TT_MASK & type) |
+						 ((BinaryXMLCodec.XML_TT_VAL_MASK & val) << BinaryXMLCodec.XML_TT_BITS))) |
+						 BinaryXMLCodec.XML_TT_NO_MORE)); // set top bit for last byte
+		val = val >>> BinaryXMLCodec.XML_TT_VAL_BITS;
+
+		// Rest of val goes into preceding bytes, 7 bits per byte, top bit
+		// is "more" flag.
+		while (i >= position) {
+			buf.put(i--, (byte)(BinaryXMLCodec.BYTE_MASK & (val & BinaryXMLCodec.XML_REG_VAL_MASK)));
+			val = val >>> BinaryXMLCodec.XML_REG_VAL_BITS;
+		}
+		buf.position(position + numEncodingBytes);
+		return numEncodingBytes;
+	}
+
+	/**
+	 * Encodes a binary BLOB (binary content) into a buffer. A 0-length blob
+	 * is elided.
+	 * @throws BufferOverflowException if there is not room in buf
+	 */
+	public static void encodeBlob(ByteBuffer buf, byte [] blob, int offset, int length) {
+		if ((null == blob) || (length == 0))
+			return;
+		encodeTypeAndVal(BinaryXMLCodec.XML_BLOB, length, buf);
+		buf.put(blob, offset, length);
+	}
+}
@@ -0,0 +1,405 @@
+/*
+ * Part of the CCNx Java Library.
+ *
+ * Copyright (C) 2008, 2009, 2010 Palo Alto Research Center, Inc.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 2.1
+ * as published by the Free Software Foundation.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details. You should have received
+ * a copy of the GNU Lesser General Public License along with this library;
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin Street,
+ * Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.ccnx.ccn.impl.encoding;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.TreeMap;
+
+import org.ccnx.ccn.impl.support.DataUtils;
+import org.ccnx.ccn.impl.support.Log;
+import org.ccnx.ccn.io.content.ContentDecodingException;
+
+/**
+ * Decodes ccnb from a ByteBuffer, heap or direct. Peeks read the buffer in place
+ * and leave its position alone, so need no mark and reset, and type and value pairs
+ * are decoded without allocating. Blobs can be read as slices of the buffer.
+ *
+ * Given a stream instead, this decodes it just as BinaryXMLDecoder does.
+ * @see BinaryXMLBufferCodec
+ */
+public class BinaryXMLBufferDecoder extends BinaryXMLDecoder {
+
+	/**
+	 * Our own view of the buffer we were given, so decoding does not move the caller's
+	 * position. Null when decoding a stream.
+	 */
+	protected ByteBuffer _buffer = null;
+
+	/**
+	 * Type and value of the last token read by readTypeAndVal().
+	 */
+	protected int _type;
+	protected long _val;
+
+	public BinaryXMLBufferDecoder() {
+		super();
+	}
+
+	public BinaryXMLBufferDecoder(BinaryXMLDictionary dictionary) {
+		super(dictionary);
+	}
+
+	@Override
+	public void beginDecoding(ByteBuffer buf) throws ContentDecodingException {
+		if (null == buf)
+			throw new IllegalArgumentException(this.getClass().getName() + ": buffer cannot be null!");
+		_buffer = buf.duplicate();
+		_istream = null;
+		readStartDocument();
+	}
+
+	@Override
+	public void beginDecoding(InputStream istream) throws ContentDecodingException {
+		_buffer = null;
+		super.beginDecoding(istream);
+	}
+
+	/**
+	 * @return the number of bytes of the buffer read so far
+	 */
+	public int position() {
+		return _buffer.position();
+	}
+
+	@Override
+	public void readStartElement(String startTag,
+							    TreeMap<String, String> attributes) throws ContentDecodingException {
+		if (null == _buffer) {
+			super.readStartElement(startTag, attributes);
+			return;
+		}
+		if (!readTypeAndVal()) {
+			throw new ContentDecodingException("Expected start element: " + startTag + " got something not a tag.");
+		}
+		String decodedTag = null;
+		if (_type == BinaryXMLCodec.XML_TAG) {
+			// Tag value represents length-1 as tags can never be empty.
+			decodedTag = readUString((int)_val+1);
+		} else if (_type == BinaryXMLCodec.XML_DTAG) {
+			decodedTag = tagToString(_val);
+		}
+		if ((null ==  decodedTag) || (!decodedTag.equals(startTag))) {
+			throw new ContentDecodingException("Expected start element: " + startTag + " got: " + decodedTag + "(" + _val + ")");
+		}
+		if (null != attributes) {
+			readAttributes(attributes);
+		}
+	}
+
+	@Override
+	public void readStartElement(long startTag,
+			TreeMap<String, String> attributes) throws ContentDecodingException {
+		if (null == _buffer) {
+			super.readStartElement(startTag, attributes);
+			return;
+		}
+		if (!readTypeAndVal()) {
+			throw new ContentDecodingException("Expected start element: " + startTag + " got something not a tag.");
+		}
+		if (_type == BinaryXMLCodec.XML_DTAG) {
+			if (_val != startTag)
+				throw new ContentDecodingException("Expected start element: " + startTag + " got: " + _val);
+		} else {
+			Long decodedTag = null;
+			if (_type == BinaryXMLCodec.XML_TAG) {
+				Log.info("Unexpected: got tag in readStartElement; looking for tag " + startTag + " got length: " + (int)_val+1);
+				decodedTag = stringToTag(readUString((int)_val+1));
+			}
+			if ((null ==  decodedTag) || (decodedTag.longValue() != startTag)) {
+				throw new ContentDecodingException("Expected start element: " + startTag + " got: " + decodedTag + "(" + _val + ")");
+			}
+		}
+		if (null != attributes) {
+			readAttributes(attributes);
+		}
+	}
+
+	@Override
+	public void readAttributes(TreeMap<String,String> attributes) throws ContentDecodingException {
+		if ((null == _buffer) || (null == attributes)) {
+			super.readAttributes(attributes);
+			return;
+		}
+		int position = _buffer.position();
+		while (readTypeAndVal() &&
+				((BinaryXMLCodec.XML_ATTR == _type) || (BinaryXMLCodec.XML_DATTR == _type))) {
+			String attributeName = null;
+			if (BinaryXMLCodec.XML_ATTR == _type) {
+				// Tag value represents length-1 as attribute names cannot be empty.
+				attributeName = readUString((int)_val+1);
+			} else {
+				attributeName = tagToString(_val);
+				if (null == attributeName) {
+					throw new ContentDecodingException("Unknown DATTR value" + _val);
+				}
+			}
+			// Attribute values are always UDATA
+			attributes.put(attributeName, readUDATA());
+			position = _buffer.position();
+		}
+		_buffer.position(position);
+	}
+
+	@Override
+	public String peekStartElementAsString() throws ContentDecodingException {
+		if (null == _buffer)
+			return super.peekStartElementAsString();
+		int position = _buffer.position();
+		try {
+			if (!readTypeAndVal())
+				return null;
+			if (_type == BinaryXMLCodec.XML_TAG) {
+				if (_val+1 > DEBUG_MAX_LEN) {
+					throw new ContentDecodingException("Decoding error: length " + _val+1 + " longer than expected maximum length!");
+				}
+				// Tag value represents length-1 as tags can never be empty.
+				return readUString((int)_val+1);
+			} else if (_type == BinaryXMLCodec.XML_DTAG) {
+				return tagToString(_val);
+			}
+			return null;
+		} finally {
+			_buffer.position(position);
+		}
+	}
+
+	@Override
+	public Long peekStartElementAsLong() throws ContentDecodingException {
+		if (null == _buffer)
+			return super.peekStartElementAsLong();
+		int position = _buffer.position();
+		try {
+			if (!readTypeAndVal())
+				return null;
+			if (_type == BinaryXMLCodec.XML_DTAG) {
+				return _val;
+			} else if (_type == BinaryXMLCodec.XML_TAG) {
+				if (_val+1 > DEBUG_MAX_LEN) {
+					throw new ContentDecodingException("Decoding error: length " + _val+1 + " longer than expected maximum length!");
+				}
+				return stringToTag(readUString((int)_val+1));
+			}
+			return null;
+		} finally {
+			_buffer.position(position);
+		}
+	}
+
+	/**
+	 * Avoids boxing the peeked tag.
+	 */
+	@Override
+	public boolean peekStartElement(long startTag) throws ContentDecodingException {
+		if (null == _buffer)
+			return super.peekStartElement(startTag);
+		int position = _buffer.position();
+		try {
+			if (!readTypeAndVal())
+				return false;
+			if (_type == BinaryXMLCodec.XML_DTAG)
+				return _val == startTag;
+		} finally {
+			_buffer.position(position);
+		}
+		// A tag not in the dictionary
+		Long decodedTag = peekStartElementAsLong();
+		return (null != decodedTag) && (decodedTag.longValue() == startTag);
+	}
+
+	@Override
+	public void readEndElement() throws ContentDecodingException {
+		if (null == _buffer) {
+			super.readEndElement();
+			return;
+		}
+		if (!_buffer.hasRemaining())
+			throw new ContentDecodingException("Expected end element, got end of input");
+		int next = _buffer.get();
+		if (next != BinaryXMLCodec.XML_CLOSE) {
+			throw new ContentDecodingException("Expected end element, got: " + next);
+		}
+	}
+
+	@Override
+	public String readUString() throws ContentDecodingException {
+		if (null == _buffer)
+			return super.readUString();
+		String ustring = readUDATA();
+		readEndElement();
+		return ustring;
+	}
+
+	@Override
+	public byte [] readBlob() throws ContentDecodingException {
+		if (null == _buffer)
+			return super.readBlob();
+		int length = readBlobLength();
+		byte [] blob = new byte[length];
+		_buffer.get(blob);
+		readEndElement();
+		return blob;
+	}
+
+	/**
+	 * Read a BLOB as a slice of the buffer, without copying it. Consumes the end
+	 * element, as readBlob() does. Only when decoding a buffer.
+	 * @return a buffer holding just the blob; shares its content with the buffer
+	 * 	being decoded
+	 */
+	public ByteBuffer readBlobSlice() throws ContentDecodingException {
+		int length = readBlobLength();
+		ByteBuffer slice = _buffer.slice();
+		slice.limit(length);
+		_buffer.position(_buffer.position() + length);
+		readEndElement();
+		return slice;
+	}
+
+	/**
+	 * Read an element holding a BLOB, returning the blob as a slice of the buffer.
+	 * @see #readBlobSlice()
+	 */
+	public ByteBuffer readBinaryElementSlice(long startTag) throws ContentDecodingException {
+		readStartElement(startTag);
+		return readBlobSlice();
+	}
+
+	@Override
+	public byte [] readEncodedElement(long startTag) throws ContentDecodingException {
+		if (null == _buffer)
+			return super.readEncodedElement(startTag);
+		ByteBuffer slice = readEncodedElementSlice(startTag);
+		byte [] encoding = new byte[slice.remaining()];
+		slice.get(encoding);
+		return encoding;
+	}
+
+	/**
+	 * Read the whole of the next element without decoding it, as a slice of the
+	 * buffer. Only when decoding a buffer.
+	 * @see XMLDecoder#readEncodedElement(long)
+	 */
+	public ByteBuffer readEncodedElementSlice(long startTag) throws ContentDecodingException {
+		if (!peekStartElement(startTag)) {
+			throw new ContentDecodingException("Expected start element: " + startTag + " got: " + peekStartElementAsLong());
+		}
+		int start = _buffer.position();
+		int depth = 0;
+		do {
+			if (!_buffer.hasRemaining())
+				throw new ContentDecodingException("Unexpected end of input in element " + startTag);
+			if (BinaryXMLCodec.XML_CLOSE == _buffer.get(_buffer.position())) {
+				_buffer.get();
+				depth--;
+				continue;
+			}
+			if (!readTypeAndVal())
+				throw new ContentDecodingException("Unexpected end of input in element " + startTag);
+			if (_type == BinaryXMLCodec.XML_TAG) {
+				// Tag value represents length-1 as tags can never be empty.
+				skip(_val + 1);
+				depth++;
+			} else if (_type == BinaryXMLCodec.XML_DTAG) {
+				depth++;
+			} else if (_type == BinaryXMLCodec.XML_ATTR) {
+				// Attribute name; its value follows as UDATA.
+				skip(_val + 1);
+			} else if ((_type == BinaryXMLCodec.XML_BLOB) || (_type == BinaryXMLCodec.XML_UDATA)) {
+				skip(_val);
+			} else if (_type != BinaryXMLCodec.XML_DATTR) {
+				throw new ContentDecodingException("Unexpected token type " + _type + " in element " + startTag);
+			}
+		} while (depth > 0);
+		int end = _buffer.position();
+		_buffer.position(start);
+		ByteBuffer slice = _buffer.slice();
+		slice.limit(end - start);
+		_buffer.position(end);
+		return slice;
+	}
+
+	/**
+	 * Read the type and value at the buffer's position into _type and _val.
+	 * @return false, having read nothing, if there is an end element or nothing
+	 * 	more to read
+	 */
+	protected boolean readTypeAndVal() {
+		int limit = _buffer.limit();
+		long val = 0;
+		for (int i = _buffer.position(); i < limit; ++i) {
+			int next = _buffer.get(i) & BinaryXMLCodec.BYTE_MASK;
+			// A leading 0 is an end marker; packed values never start with one.
+			if ((0 == next) && (0 == val))
+				return false;
+			if (0 == (next & BinaryXMLCodec.XML_TT_NO_MORE)) {
+				val = (val << BinaryXMLCodec.XML_REG_VAL_BITS) | (next & BinaryXMLCodec.XML_REG_VAL_MASK);
+			} else {
+				// last byte
+				_type = next & BinaryXMLCodec.XML_TT_MASK;
+				_val = (val << BinaryXMLCodec.XML_TT_VAL_BITS) |
+						((next >>> BinaryXMLCodec.XML_TT_BITS) & BinaryXMLCodec.XML_TT_VAL_MASK);
+				_buffer.position(i + 1);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Read a BLOB's type and length, leaving the position at its content. A
+	 * 0-length blob is elided, so anything else is taken as one.
+	 */
+	protected int readBlobLength() throws ContentDecodingException {
+		int position = _buffer.position();
+		if (readTypeAndVal() && (BinaryXMLCodec.XML_BLOB == _type)) {
+			checkRemaining(_val);
+			return (int)_val;
+		}
+		_buffer.position(position);
+		return 0;
+	}
+
+	/**
+	 * Read UDATA content, or "" if it was elided.
+	 */
+	protected String readUDATA() throws ContentDecodingException {
+		int position = _buffer.position();
+		if (readTypeAndVal() && (BinaryXMLCodec.XML_UDATA == _type))
+			return readUString((int)_val);
+		_buffer.position(position);
+		return "";
+	}
+
+	protected String readUString(int length) throws ContentDecodingException {
+		checkRemaining(length);
+		byte [] stringBytes = new byte[length];
+		_buffer.get(stringBytes);
+		return DataUtils.getUTF8StringFromBytes(stringBytes);
+	}
+
+	protected void skip(long count) throws ContentDecodingException {
+		checkRemaining(count);
+		_buffer.position(_buffer.position() + (int)count);
+	}
+
+	protected void checkRemaining(long count) throws ContentDecodingException {
+		if (count > _buffer.remaining())
+			throw new ContentDecodingException("Expected " + count + " bytes of data, have " + _buffer.remaining());
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Part of the CCNx Java Library.
+ *
+ * Copyright (C) 2008, 2009, 2010 Palo Alto Research Center, Inc.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 2.1
+ * as published by the Free Software Foundation.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details. You should have received
+ * a copy of the GNU Lesser General Public License along with this library;
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin Street,
+ * Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.ccnx.ccn.impl.encoding;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.ccnx.ccn.impl.support.DataUtils;
+import org.ccnx.ccn.impl.support.Log;
+import org.ccnx.ccn.io.content.ContentEncodingException;
+
+/**
+ * Encodes ccnb into a ByteBuffer, heap or direct, putting each token straight into
+ * the buffer rather than making an array for it and writing that to a stream.
+ *
+ * Given a stream instead, this encodes into a buffer of its own, grown as needed,
+ * and writes the whole encoding to the stream with one write at endEncoding().
+ * @see BinaryXMLBufferCodec
+ */
+public class BinaryXMLBufferEncoder extends BinaryXMLEncoder {
+
+	public static final int INITIAL_BUFFER_SIZE = 1024;
+
+	protected ByteBuffer _buffer = null;
+	protected boolean _ownBuffer = false; // ours, to grow and flush to _ostream
+
+	public BinaryXMLBufferEncoder() {
+		super();
+	}
+
+	public BinaryXMLBufferEncoder(BinaryXMLDictionary dictionary) {
+		super(dictionary);
+	}
+
+	/**
+	 * Start encoding into buf, at its position. Each write moves the position on;
+	 * running out of room is a ContentEncodingException.
+	 */
+	public void beginEncoding(ByteBuffer buf) throws ContentEncodingException {
+		if (null == buf)
+			throw new IllegalArgumentException("BinaryXMLBufferEncoder: buffer cannot be null!");
+		_buffer = buf;
+		_ownBuffer = false;
+		_ostream = null;
+	}
+
+	@Override
+	public void beginEncoding(OutputStream ostream) throws ContentEncodingException {
+		super.beginEncoding(ostream);
+		if (!_ownBuffer) {
+			_buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+			_ownBuffer = true;
+		}
+		_buffer.clear();
+	}
+
+	@Override
+	public void endEncoding() throws ContentEncodingException {
+		if (!_ownBuffer)
+			return;
+		try {
+			_ostream.write(_buffer.array(), _buffer.arrayOffset(), _buffer.position());
+		} catch (IOException e) {
+			throw new ContentEncodingException(e.getMessage(), e);
+		}
+		_buffer.clear();
+		super.endEncoding();
+	}
+
+	@Override
+	public void writeUString(String utf8Content) throws ContentEncodingException {
+		writeUString(utf8Content, BinaryXMLCodec.XML_UDATA);
+	}
+
+	@Override
+	public void writeBlob(byte [] binaryContent) throws ContentEncodingException {
+		writeBlob(binaryContent, 0, ((null == binaryContent) ? 0 : binaryContent.length));
+	}
+
+	@Override
+	public void writeBlob(byte [] binaryContent, int offset, int length) throws ContentEncodingException {
+		// We elide the encoding of a 0-length blob
+		if ((null == binaryContent) || (length == 0))
+			return;
+		reserve(BinaryXMLCodec.numEncodingBytes(length) + length);
+		BinaryXMLBufferCodec.encodeBlob(_buffer, binaryContent, offset, length);
+	}
+
+	@Override
+	public boolean writeEncodedElement(byte [] encoding) throws ContentEncodingException {
+		reserve(encoding.length);
+		_buffer.put(encoding);
+		return true;
+	}
+
+	@Override
+	public void writeStartElement(String tag, TreeMap<String,String> attributes) throws ContentEncodingException {
+		Long dictionaryVal = stringToTag(tag);
+		if (null == dictionaryVal) {
+			Log.info("Unexpected: tag found that is not in our dictionary: " + tag);
+			// not in dictionary; written with its length as length-1
+			writeUString(tag, BinaryXMLCodec.XML_TAG);
+		} else {
+			writeTypeAndVal(BinaryXMLCodec.XML_DTAG, dictionaryVal);
+		}
+		if (null != attributes) {
+			writeAttributes(attributes);
+		}
+	}
+
+	@Override
+	public void writeStartElement(long tag, TreeMap<String,String> attributes) throws ContentEncodingException {
+		writeTypeAndVal(BinaryXMLCodec.XML_DTAG, tag);
+		if (null != attributes) {
+			writeAttributes(attributes);
+		}
+	}
+
+	@Override
+	public void writeAttributes(TreeMap<String,String> attributes) throws ContentEncodingException {
+		if (null == attributes) {
+			return;
+		}
+		// the keySet of a TreeMap is sorted.
+		for (Map.Entry<String,String> attribute : attributes.entrySet()) {
+			Long dictionaryAttr = stringToTag(attribute.getKey());
+			if (null == dictionaryAttr) {
+				writeUString(attribute.getKey(), BinaryXMLCodec.XML_ATTR);
+			} else {
+				writeTypeAndVal(BinaryXMLCodec.XML_DATTR, dictionaryAttr);
+			}
+			writeUString(attribute.getValue(), BinaryXMLCodec.XML_UDATA);
+		}
+	}
+
+	@Override
+	public void writeEndElement() throws ContentEncodingException {
+		reserve(1);
+		_buffer.put(BinaryXMLCodec.XML_CLOSE);
+	}
+
+	protected void writeTypeAndVal(int type, long val) throws ContentEncodingException {
+		reserve(BinaryXMLCodec.numEncodingBytes(val));
+		BinaryXMLBufferCodec.encodeTypeAndVal(type, val, _buffer);
+	}
+
+	/**
+	 * Encode a UString of the given type; TAG and ATTR lengths are written as
+	 * length-1. We elide the encoding of a 0-length UString.
+	 */
+	protected void writeUString(String ustring, byte type) throws ContentEncodingException {
+		if ((null == ustring) || (ustring.length() == 0))
+			return;
+		byte [] strBytes = DataUtils.getBytesFromUTF8String(ustring);
+		long val = ((type == BinaryXMLCodec.XML_TAG) || (type == BinaryXMLCodec.XML_ATTR)) ?
+						(strBytes.length-1) : strBytes.length;
+		reserve(BinaryXMLCodec.numEncodingBytes(val) + strBytes.length);
+		BinaryXMLBufferCodec.encodeTypeAndVal(type, val, _buffer);
+		_buffer.put(strBytes);
+	}
+
+	/**
+	 * Make sure there is room for count more bytes, growing our own buffer if we
+	 * must.
+	 * @throws ContentEncodingException if the buffer we were given is too full
+	 */
+	protected void reserve(int count) throws ContentEncodingException {
+		if (_buffer.remaining() >= count)
+			return;
+		if (!_ownBuffer) {
+			throw new ContentEncodingException("No room to encode " + count + " more bytes; " + _buffer.remaining() + " left in buffer");
+		}
+		int size = _buffer.capacity();
+		while (size - _buffer.position() < count)
+			size *= 2;
+		ByteBuffer bigger = ByteBuffer.allocate(size);
+		_buffer.flip();
+		bigger.put(_buffer);
+		_buffer = bigger;
+	}
+}
@@ -345,7 +345,84 @@ public class BinaryXMLDecoder  extends GenericXMLDecoder implements XMLDecoder {
 			throw new ContentDecodingException(e.getMessage(),e);
 		}
 	}
-		
+
+	/**
+	 * Walk the element's tokens to find its length, without allocating, then
+	 * go back and copy it out.
+	 */
+	public byte [] readEncodedElement(long startTag) throws ContentDecodingException {
+		if (!peekStartElement(startTag)) {
+			throw new ContentDecodingException("Expected start element: " + startTag + " got: " + peekStartElementAsLong());
+		}
+		try {
+			_istream.mark(Integer.MAX_VALUE);
+			int length = 0;
+			int depth = 0;
+			do {
+				int next = readByte();
+				length++;
+				if (BinaryXMLCodec.XML_CLOSE == next) {
+					depth--;
+					continue;
+				}
+				long val = 0;
+				while (0 == (next & BinaryXMLCodec.XML_TT_NO_MORE)) {
+					val = (val << BinaryXMLCodec.XML_REG_VAL_BITS) | (next & BinaryXMLCodec.XML_REG_VAL_MASK);
+					next = readByte();
+					length++;
+				}
+				int type = next & BinaryXMLCodec.XML_TT_MASK;
+				val = (val << BinaryXMLCodec.XML_TT_VAL_BITS) | ((next >>> BinaryXMLCodec.XML_TT_BITS) & BinaryXMLCodec.XML_TT_VAL_MASK);
+				if (type == BinaryXMLCodec.XML_TAG) {
+					// Tag value represents length-1 as tags can never be empty.
+					skipBytes(val + 1);
+					length += val + 1;
+					depth++;
+				} else if (type == BinaryXMLCodec.XML_DTAG) {
+					depth++;
+				} else if (type == BinaryXMLCodec.XML_ATTR) {
+					// Attribute name; its value follows as UDATA.
+					skipBytes(val + 1);
+					length += val + 1;
+				} else if ((type == BinaryXMLCodec.XML_BLOB) || (type == BinaryXMLCodec.XML_UDATA)) {
+					skipBytes(val);
+					length += val;
+				} else if (type != BinaryXMLCodec.XML_DATTR) {
+					throw new ContentDecodingException("Unexpected token type " + type + " in element " + startTag);
+				}
+			} while (depth > 0);
+			_istream.reset();
+
+			byte [] encoding = new byte[length];
+			int offset = 0;
+			while (offset < length) {
+				int read = _istream.read(encoding, offset, length - offset);
+				if (read < 0)
+					throw new ContentDecodingException("Unexpected end of input in element " + startTag);
+				offset += read;
+			}
+			return encoding;
+		} catch (IOException e) {
+			throw new ContentDecodingException(e.getMessage(), e);
+		}
+	}
+
+	private int readByte() throws IOException, ContentDecodingException {
+		int next = _istream.read();
+		if (next < 0)
+			throw new ContentDecodingException("Unexpected end of input in element");
+		return next;
+	}
+
+	private void skipBytes(long count) throws IOException, ContentDecodingException {
+		while (count > 0) {
+			long skipped = _istream.skip(count);
+			if (skipped <= 0)
+				throw new ContentDecodingException("Unexpected end of input in element");
+			count -= skipped;
+		}
+	}
+
 	public CCNTime readDateTime(String startTag) throws ContentDecodingException {
 		byte [] byteTimestamp = readBinaryElement(startTag);
 		CCNTime timestamp = new CCNTime(byteTimestamp);
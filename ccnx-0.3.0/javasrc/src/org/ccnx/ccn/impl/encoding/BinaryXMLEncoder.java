@@ -90,6 +90,15 @@ public class BinaryXMLEncoder extends GenericXMLEncoder implements XMLEncoder {
 			throw new ContentEncodingException(e.getMessage(), e);
 		}
 	}
+
+	public boolean writeEncodedElement(byte [] encoding) throws ContentEncodingException {
+		try {
+			_ostream.write(encoding);
+		} catch (IOException e) {
+			throw new ContentEncodingException(e.getMessage(), e);
+		}
+		return true;
+	}
 	
 	/**
 	 * Compact binary encoding of time, same as used for versions.
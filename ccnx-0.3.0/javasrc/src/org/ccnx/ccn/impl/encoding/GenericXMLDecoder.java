@@ -17,8 +17,10 @@
 
 package org.ccnx.ccn.impl.encoding;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.TreeMap;
 
 import org.ccnx.ccn.io.content.ContentDecodingException;
@@ -45,6 +47,20 @@ public abstract class GenericXMLDecoder extends GenericXMLHandler implements XML
 		initializeDecoding();
 		readStartDocument();
 	}
+
+	/**
+	 * Default implementation decodes a stream over the buffer's content, copying
+	 * it out first if the buffer has no array.
+	 */
+	public void beginDecoding(ByteBuffer buf) throws ContentDecodingException {
+		if (buf.hasArray()) {
+			beginDecoding(new ByteArrayInputStream(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining()));
+		} else {
+			byte [] content = new byte[buf.remaining()];
+			buf.duplicate().get(content);
+			beginDecoding(new ByteArrayInputStream(content));
+		}
+	}
 	
 	/**
 	 * Default implementation does nothing. Subclass-specific parser setup.
@@ -122,6 +138,13 @@ public abstract class GenericXMLDecoder extends GenericXMLHandler implements XML
 		return readBinaryElement(startTag, null);
 	}
 
+	/**
+	 * Default implementation cannot copy elements; callers decode them in place.
+	 */
+	public byte [] readEncodedElement(long startTag) throws ContentDecodingException {
+		return null;
+	}
+
 	/**
 	 * Expect a start tag (label), optional attributes, a BLOB, and an end element.
 	 * Force low-level readers to all consume the end element, to get behavior
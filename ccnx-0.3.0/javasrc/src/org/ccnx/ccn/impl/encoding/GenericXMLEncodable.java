@@ -17,12 +17,12 @@
 
 package org.ccnx.ccn.impl.encoding;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.util.logging.Level;
 
 import org.ccnx.ccn.impl.support.Log;
 import org.ccnx.ccn.io.content.ContentDecodingException;
@@ -74,27 +74,31 @@ public abstract class GenericXMLEncodable implements XMLEncodable {
 	}
 
 	public void decode(byte [] content, String codec) throws ContentDecodingException {
- 		ByteArrayInputStream bais = new ByteArrayInputStream(content);
- 		decode(bais, codec);
+		XMLDecoder decoder = XMLCodecFactory.getDecoder(codec);
+		decoder.beginDecoding(ByteBuffer.wrap(content));
+		decode(decoder);
+		decoder.endDecoding();
  	}
 	
 	public void decode(ByteBuffer buf) throws ContentDecodingException {
 		decode(buf, null);
 	}
 	
+	/**
+	 * Decode from the remaining bytes of buf, which may be direct. Its position
+	 * is not changed.
+	 */
 	public void decode(ByteBuffer buf, String codec) throws ContentDecodingException {
-		if (!buf.hasArray()) {
-			throw new ContentDecodingException("Unusable ByteBuffer: has no array");
+		if (Log.isLoggable(Level.FINEST)) {
+			byte[] tmp = new byte[(buf.remaining() > 8) ? 8 : buf.remaining()];
+			buf.duplicate().get(tmp);
+			BigInteger tmpBuf = new BigInteger(1,tmp);
+			Log.finest("decode (buf.pos: " + buf.position() + " remaining: " + buf.remaining() + ") start: " + tmpBuf.toString(16));
 		}
-		byte[] array = buf.array();
-		
-		byte[] tmp = new byte[8];
-		System.arraycopy(array, buf.position(), tmp, 0, (buf.remaining() > tmp.length) ? tmp.length : buf.remaining());
-		BigInteger tmpBuf = new BigInteger(1,tmp);
-		Log.finest("decode (buf.pos: " + buf.position() + " remaining: " + buf.remaining() + ") start: " + tmpBuf.toString(16));
-		
-		ByteArrayInputStream bais = new ByteArrayInputStream(array, buf.position(), buf.remaining());
-		decode(bais, codec);
+		XMLDecoder decoder = XMLCodecFactory.getDecoder(codec);
+		decoder.beginDecoding(buf);
+		decode(decoder);
+		decoder.endDecoding();
 	}
 	
 	public void encode(OutputStream ostream) throws ContentEncodingException {
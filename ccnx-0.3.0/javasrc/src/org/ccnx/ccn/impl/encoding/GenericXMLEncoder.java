@@ -127,4 +127,12 @@ public abstract class GenericXMLEncoder extends GenericXMLHandler implements XML
 	public void writeElement(long tag, long value) throws ContentEncodingException {
 		writeElement(tag, Long.toString(value));
 	}
+
+	/**
+	 * Default implementation cannot write binary encodings; callers encode the
+	 * element themselves.
+	 */
+	public boolean writeEncodedElement(byte [] encoding) throws ContentEncodingException {
+		return false;
+	}
 }
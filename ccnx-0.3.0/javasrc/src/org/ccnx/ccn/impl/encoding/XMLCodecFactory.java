@@ -49,6 +49,10 @@ public class XMLCodecFactory {
 										BinaryXMLDecoder.class);
 		XMLCodecFactory.registerEncoder(BinaryXMLCodec.codecName(), 
 										BinaryXMLEncoder.class);
+		XMLCodecFactory.registerDecoder(BinaryXMLBufferCodec.codecName(), 
+										BinaryXMLBufferDecoder.class);
+		XMLCodecFactory.registerEncoder(BinaryXMLBufferCodec.codecName(), 
+										BinaryXMLBufferEncoder.class);
 	}
 	
 	protected static HashMap<String,Class<? extends XMLEncoder>> _registeredEncoders;
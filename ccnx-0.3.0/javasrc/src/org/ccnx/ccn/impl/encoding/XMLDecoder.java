@@ -18,6 +18,7 @@
 package org.ccnx.ccn.impl.encoding;
 
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.TreeMap;
 
 import org.ccnx.ccn.io.content.ContentDecodingException;
@@ -38,6 +39,14 @@ public interface XMLDecoder {
 	 * @throws ContentDecodingException if there is an error in decoding
 	 */
 	public void beginDecoding(InputStream istream) throws ContentDecodingException;
+
+	/**
+	 * Initiates top-level decoding of the remaining bytes of a buffer. The buffer's
+	 * position is not changed.
+	 * @param buf buffer to decode from
+	 * @throws ContentDecodingException if there is an error in decoding
+	 */
+	public void beginDecoding(ByteBuffer buf) throws ContentDecodingException;
 	
 	/**
 	 * Completes top-level decoding, handling any necessary shutdown. Calls readEndDocment()
@@ -277,7 +286,20 @@ public interface XMLDecoder {
 	 * @throws ContentDecodingException
 	 */
 	public String readUString() throws ContentDecodingException;
-	
+
+	/**
+	 * Read the whole of the next element, which must have the given tag, and
+	 * return a copy of its encoding. The contents are not decoded here; the
+	 * caller decodes them from the copy right away, and can keep the copy to
+	 * write out again as it is.
+	 * @param startTag the tag we expect
+	 * @return the element's encoding, or null if this codec cannot copy elements, in
+	 * 	which case nothing has been read
+	 * @throws ContentDecodingException if the next element is not the one expected,
+	 * 	or is not well formed
+	 */
+	public byte [] readEncodedElement(long startTag) throws ContentDecodingException;
+
 	/**
 	 * Read BLOB data starting from beginning of element (encoded binary element
 	 * in text XML, type/value for BLOB in binary, etc). Consumes the end
@@ -239,6 +239,16 @@ public interface XMLEncoder {
 
 	public void writeBlob(byte [] binaryContent, int offset, int length) throws ContentEncodingException;
 
+	/**
+	 * Write out a whole element already encoded in the binary codec, as returned
+	 * by XMLDecoder.readEncodedElement, without decoding it.
+	 * @param encoding the element's encoding
+	 * @return false if this codec cannot take binary encodings as they are, in which
+	 * 	case nothing has been written and the caller must encode the element itself
+	 * @throws ContentEncodingException if there is an error writing the encoding
+	 */
+	public boolean writeEncodedElement(byte [] encoding) throws ContentEncodingException;
+
 	
 	/**
 	 * Some codecs use a dictionary to make encoding and decoding more efficient. Those
@@ -17,6 +17,7 @@
 
 package org.ccnx.ccn.impl.repo;
 
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Date;
@@ -50,6 +51,18 @@ public class ContentTree {
 	public interface ContentGetter {
 		public ContentObject get(ContentRef ref);
 	}
+
+	/**
+	 * Called by visitContent() for each piece of content in the tree.
+	 */
+	public interface ContentVisitor {
+		/**
+		 * @param components the components of the content's full name, digest last. Only
+		 * 	valid during the call.
+		 * @param ref the content's reference
+		 */
+		public void visit(List<byte[]> components, ContentRef ref) throws IOException;
+	}
 	
 	/**
 	 * TreeNode is the data structure representing one
@@ -354,9 +367,53 @@ public class ContentTree {
 		if (Log.isLoggable(Log.FAC_REPO, Level.FINE)) {
 			Log.fine(Log.FAC_REPO, "inserting content: {0}", name);
 		}
+		TreeNode node = insertNode(name, ts, ner);
+		
+		// Check for duplicate content. A node we have just added has none.
+		if (null != node.oneContent) {
+			ContentObject prev = getter.get(node.oneContent);
+			if (null != prev && content.equals(prev))
+				return false;
+		} else if (null != node.content) {
+			for (ContentRef oldRef : node.content) {
+				ContentObject prev = getter.get(oldRef);
+				if (null != prev && content.equals(prev))
+					return false;
+			}
+		}
+
+		addContent(node, ref);
+		if (Log.isLoggable(Log.FAC_REPO, Level.FINE)) {
+			Log.fine(Log.FAC_REPO, "Inserted: {0}", content.name());
+		}
+		return true;
+	}
+
+	/**
+	 * Insert a reference to content already known not to be in the tree, such as
+	 * one read back from a saved index, without fetching anything to check for
+	 * duplicates and without sending name enumeration responses.
+	 * 
+	 * @param fullName the name of the content including its digest
+	 * @param ref pointer to position of data in the file storage
+	 * @param ts last modification time of the data
+	 */
+	public void insert(ContentName fullName, ContentRef ref, long ts) {
+		addContent(insertNode(fullName, ts, null), ref);
+	}
+
+	/**
+	 * Find the node for a name, adding any nodes needed on the way.
+	 * 
+	 * @param name the full name of the content
+	 * @param ts last modification time of the data, for any parent we add a child to
+	 * @param ner NameEnumerationResponse object to populate if we add a child to
+	 * 	a parent with the interest flag set
+	 * @return the node for the last component of name
+	 */
+	protected TreeNode insertNode(ContentName name, long ts, NameEnumerationResponse ner) {
 		TreeNode node = _root; // starting point
 		assert(null != _root);
-		boolean added = false;
 		
 		for (byte[] component : name.components()) {
 			synchronized(node) {
@@ -367,7 +424,6 @@ public class ContentTree {
 						Log.finest(Log.FAC_REPO, "child was null: adding here");
 					}
 					// add it
-					added = true;
 					child = new TreeNode();
 					child.component = component;
 					if (null == node.oneChild && null == node.children) {
@@ -429,24 +485,13 @@ public class ContentTree {
 				node = child;
 			}
 		}
-		
-		// Check for duplicate content
-		if (!added) {
-			if (null != node.oneContent) {
-				ContentObject prev = getter.get(node.oneContent);
-				if (null != prev && content.equals(prev))
-					return false;
-			} else if (null != node.content) {
-				for (ContentRef oldRef : node.content) {
-					ContentObject prev = getter.get(oldRef);
-					if (null != prev && content.equals(prev))
-						return false;
-				}
-			}
-		}
+		return node;
+	}
 
-		// At conclusion of this loop, node must be holding the last node for this name
-		// so we insert the ref there
+	/**
+	 * Add a content reference to the node for its name
+	 */
+	protected void addContent(TreeNode node, ContentRef ref) {
 		if (null == node.oneContent && null == node.content) {
 			// This is first and only content at this leaf
 			node.oneContent = ref;
@@ -460,10 +505,90 @@ public class ContentTree {
 			node.content.add(ref);
 			node.oneContent = null;
 		}
-		if (Log.isLoggable(Log.FAC_REPO, Level.FINE)) {
-			Log.fine(Log.FAC_REPO, "Inserted: {0}", content.name());
+	}
+
+	/**
+	 * Walk the whole tree, handing each piece of content to visitor with its name.
+	 * Content inserted while the walk is in progress may or may not be visited.
+	 * 
+	 * @param visitor called for each piece of content
+	 * @throws IOException if the visitor throws one; the walk stops there
+	 */
+	public void visitContent(ContentVisitor visitor) throws IOException {
+		visitRecurse(_root, new ArrayList<byte[]>(), visitor);
+	}
+
+	protected void visitRecurse(TreeNode node, ArrayList<byte[]> components, ContentVisitor visitor) throws IOException {
+		ContentRef oneContent;
+		ArrayList<ContentRef> content = null;
+		ArrayList<TreeNode> children = null;
+		synchronized(node) {
+			oneContent = node.oneContent;
+			if (null != node.content)
+				content = new ArrayList<ContentRef>(node.content);
+			if (null != node.oneChild) {
+				children = new ArrayList<TreeNode>(1);
+				children.add(node.oneChild);
+			} else if (null != node.children) {
+				children = new ArrayList<TreeNode>(node.children.keySet());
+			}
 		}
-		return true;
+		if (null != oneContent)
+			visitor.visit(components, oneContent);
+		if (null != content) {
+			for (ContentRef ref : content)
+				visitor.visit(components, ref);
+		}
+		if (null != children) {
+			for (TreeNode child : children) {
+				components.add(child.component);
+				visitRecurse(child, components, visitor);
+				components.remove(components.size() - 1);
+			}
+		}
+	}
+
+	/**
+	 * Drop all but the newest keep versions at each node whose children include versions,
+	 * along with everything under the versions dropped. A node's children are replaced
+	 * rather than changed, so searches already under way see them as they were.
+	 * 
+	 * @param keep how many versions of each name to keep, at least 1
+	 * @return the number of versions dropped
+	 */
+	public int pruneVersions(int keep) {
+		return pruneRecurse(_root, keep);
+	}
+
+	protected int pruneRecurse(TreeNode node, int keep) {
+		int pruned = 0;
+		ArrayList<TreeNode> children = null;
+		synchronized(node) {
+			if (null != node.oneChild) {
+				children = new ArrayList<TreeNode>(1);
+				children.add(node.oneChild);
+			} else if (null != node.children) {
+				// Children are in component order, which for versions is oldest first
+				ArrayList<TreeNode> versions = new ArrayList<TreeNode>();
+				for (TreeNode child : node.children.keySet()) {
+					if (VersioningProfile.isVersionComponent(child.component))
+						versions.add(child);
+				}
+				if (versions.size() > keep) {
+					TreeMap<TreeNode, TreeNode> kept = new TreeMap<TreeNode, TreeNode>(node.children);
+					for (TreeNode version : versions.subList(0, versions.size() - keep))
+						kept.remove(version);
+					pruned += versions.size() - keep;
+					node.children = kept;
+				}
+				children = new ArrayList<TreeNode>(node.children.keySet());
+			}
+		}
+		if (null != children) {
+			for (TreeNode child : children)
+				pruned += pruneRecurse(child, keep);
+		}
+		return pruned;
 	}
 
 	/**
@@ -591,10 +716,8 @@ public class ContentTree {
 		// for ContentObject.name() that the digest is not present) we must REMOVE the content 
 		// digest first or this test will not always be correct
 		ContentName digestFreeName = new ContentName(nodeName.count()-1, nodeName.components());
-		Interest publisherFreeInterest = interest.clone();
-		publisherFreeInterest.publisherID(null);
 
-		boolean initialMatch = publisherFreeInterest.matches(digestFreeName, null); 
+		boolean initialMatch = interest.matcher().matchesName(digestFreeName); 
 
 		if (initialMatch) {
 			synchronized(node) {
@@ -18,19 +18,38 @@
 package org.ccnx.ccn.impl.repo;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.security.InvalidKeyException;
 import java.security.InvalidParameterException;
 import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 import org.ccnx.ccn.CCNHandle;
 import org.ccnx.ccn.KeyManager;
@@ -38,6 +57,8 @@ import org.ccnx.ccn.config.ConfigurationException;
 import org.ccnx.ccn.config.SystemConfiguration;
 import org.ccnx.ccn.config.UserConfiguration;
 import org.ccnx.ccn.config.SystemConfiguration.DEBUGGING_FLAGS;
+import org.ccnx.ccn.impl.encoding.BinaryXMLBufferCodec;
+import org.ccnx.ccn.impl.encoding.BinaryXMLBufferEncoder;
 import org.ccnx.ccn.impl.repo.PolicyXML.PolicyObject;
 import org.ccnx.ccn.impl.security.keys.BasicKeyManager;
 import org.ccnx.ccn.impl.support.Log;
@@ -84,10 +105,12 @@ public class LogStructRepoStore extends RepositoryStoreBase implements Repositor
 		public static final String REPOSITORY_KEYSTORE_ALIAS = REPOSITORY_USER.toLowerCase();
 
 		public static String CONTENT_FILE_PREFIX = "repoFile";
+		public static String INDEX_FILE = "repoIndex";
 		private static String DEBUG_TREEDUMP_FILE = "debugNamesTree";
 
 		private static String DIAG_NAMETREE = "nametree"; // Diagnostic/signal to dump name tree to debug file
 		private static String DIAG_NAMETREEWIDE = "nametreewide"; // Same as DIAG_NAMETREE but with wide names per node
+		private static String DIAG_COMPACT = "compact"; // Diagnostic/signal to compact the repository files now
 
 		private static ContentName PRIVATE_DATA_PREFIX = ContentName.fromNative(new String[]{META_DIR, REPO_PRIVATE});
 
@@ -99,19 +122,92 @@ public class LogStructRepoStore extends RepositoryStoreBase implements Repositor
 	Map<Integer,RepoFile> _files;
 	RepoFile _activeWriteFile = null;
 	Integer _currentFileIndex = 0;
+	protected final Object _writeLock = new Object(); // held to write to _activeWriteFile, or replace it
 	ContentTree _index;
 	
 	protected HashMap<String, String> _bulkImportInProgress = new HashMap<String, String>();
 	
+	// Checkpoints of the index, so startup need only read what was written since
+	protected static final int INDEX_MAGIC = 0x63636e69; // "ccni"
+	protected static final int INDEX_VERSION = 1;
+	protected final Object _checkpointLock = new Object();
+	protected final AtomicBoolean _checkpointPending = new AtomicBoolean(false);
+	protected int _savedSinceCheckpoint = 0;
+	
+	// Writes are encoded into this buffer and written to the active file a batch at a time
+	protected static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+	protected ByteBuffer _writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+	protected BinaryXMLBufferEncoder _writeEncoder = new BinaryXMLBufferEncoder();
+	protected volatile boolean _unsynced = false; // written to since last sync
+	protected Timer _syncTimer = null;
+	
+	// Files no longer written to are compacted once enough of what they hold is dead
+	protected final Object _compactLock = new Object();
+	protected Timer _compactTimer = null;
+	protected boolean _closed = false; // no more compaction once shut down
+	
+	// Size of the buffers get() reads objects into; grown for bigger objects
+	protected static final int READ_BUFFER_SIZE = 16384;
+	protected static final ThreadLocal<ByteBuffer> _readBuffer = new ThreadLocal<ByteBuffer>();
+	
 	public class RepoFile {
+		int id; // the N of repoFile<N>
 		File file;
 		RandomAccessFile openFile;
 		long nextWritePos;
+		volatile long indexedPos; // everything before this is in the index
+		volatile FileChannel readChannel; // shared by all readers, which never move its position
+		boolean closed = false; // no more reading, as the file is going away; guarded by this
+		
+		FileChannel readChannel() throws IOException {
+			FileChannel channel = readChannel;
+			if (null == channel) {
+				synchronized (this) {
+					if (closed)
+						throw new ClosedChannelException();
+					if (null == readChannel)
+						readChannel = new RandomAccessFile(file, "r").getChannel();
+					channel = readChannel;
+				}
+			}
+			return channel;
+		}
+
+		/**
+		 * A reader interrupted during a read closes the channel for all readers;
+		 * open another, unless someone already has or the file is closed.
+		 * @param channel the channel found closed
+		 */
+		synchronized FileChannel reopenChannel(FileChannel channel) throws IOException {
+			if (closed)
+				throw new ClosedChannelException();
+			if ((readChannel == channel) || (null == readChannel)) {
+				if (Log.isLoggable(Log.FAC_REPO, Level.FINE))
+					Log.fine(Log.FAC_REPO, "Reopening closed read channel of {0}", file);
+				readChannel = new RandomAccessFile(file, "r").getChannel();
+			}
+			return readChannel;
+		}
+
+		synchronized void closeChannel() {
+			closed = true;
+			if (null != readChannel) {
+				try {
+					readChannel.close();
+				} catch (IOException e) {}
+				readChannel = null;
+			}
+		}
 	}
 	
+	/**
+	 * Compaction moves content from file to file, so id, offset and length are
+	 * read and changed together, holding the ref's lock.
+	 */
 	protected class FileRef extends ContentRef {
 		int id;
 		long offset;
+		int length;
 	}
 
 	/**
@@ -166,15 +262,19 @@ public class LogStructRepoStore extends RepositoryStoreBase implements Repositor
 
 	/**
 	 * Read the current repository file(s) for this repository and create an index for them.
+	 * The index saved by the last checkpoint is loaded first, so only the parts of the files
+	 * written since then need to be read.
 	 * WARNING: multiple files are not well tested
 	 * 
 	 * @return the number of files making up the repository
 	 */
 	protected Integer createIndex() {
 		int max = 0;
+		boolean replayed = false;
 		_index = new ContentTree();
 		assert(null != _repositoryFile);
 		assert(_repositoryFile.isDirectory());
+		Map<Integer, Long> indexed = readCheckpoint();
 		String[] filenames = _repositoryFile.list();
 		for (int i = 0; i < filenames.length; i++) {
 			if (filenames[i].startsWith(LogStructRepoStoreProfile.CONTENT_FILE_PREFIX)) {
@@ -184,12 +284,18 @@ public class LogStructRepoStore extends RepositoryStoreBase implements Repositor
 					if (index > max) {
 						max = index.intValue();
 					}
+					Long start = indexed.get(index);
 					try {
-						createIndex(filenames[i], index, false);
+						long end = createIndex(filenames[i], index, false, (null == start) ? 0 : start);
+						if ((null == start) || (end > start))
+							replayed = true;
 					} catch (RepositoryException e) {}	// This can't happen
 				}
 			}
 		}
+		// Don't replay the same tail next time
+		if (replayed)
+			startCheckpoint();
 		return new Integer(max);
 	}
 	
@@ -205,17 +311,22 @@ public class LogStructRepoStore extends RepositoryStoreBase implements Repositor
 	 * @param fileName
 	 * @param index
 	 * @param fromImport - this is an "import" file.
+	 * @param startOffset where to start reading; what comes before is already indexed
+	 * @return the offset of the end of the last object indexed
 	 * @throws RepositoryException 
 	 */
-	private void createIndex(String fileName, Integer index, boolean fromImport) throws RepositoryException {
+	private long createIndex(String fileName, Integer index, boolean fromImport, long startOffset) throws RepositoryException {
+		long nextOffset = startOffset;
 		try {
 			RepoFile rfile = new RepoFile();
+			rfile.id = index.intValue();
 			rfile.file = new File(_repositoryFile,fileName);
 			rfile.openFile = new RandomAccessFile(rfile.file, "r");
+			rfile.indexedPos = startOffset;
 			InputStream is = new BufferedInputStream(new RandomAccessInputStream(rfile.openFile),8192);
 			
 			if (Log.isLoggable(Log.FAC_REPO, Level.FINE)) {
-				Log.fine(Log.FAC_REPO, "Creating index for {0}", fileName);
+				Log.fine(Log.FAC_REPO, "Creating index for {0} from offset {1}", fileName, startOffset);
 			}
 			
 			// Must be done before inserting into the index because once objects are inserted into the
@@ -228,26 +339,21 @@ public class LogStructRepoStore extends RepositoryStoreBase implements Repositor
 				_files.put(index, rfile);
 			}
 			
-			// Its true that its "OK" for someone to be reading the nodes as we are creating them
-			// but now we have to be careful to keep our filepointer correct, since it could be modified
-			// by a reader. The seek to a new spot in get is synchronized under the "RepoFile", so we
-			// keep track of where our pointer was also synchronized under the RepoFile so we can restore
-			// it to where it was in the case someone was reading one of our previously created nodes
-			// while the index creation is in progress.
-			long nextOffset = 0;
+			// Its true that its "OK" for someone to be reading the nodes as we are creating them.
+			// Readers use their own channel and positional reads, so they don't move our file
+			// pointer; we still seek to where we left off each time round.
 			while (true) {
 				FileRef ref = new FileRef();
 				ContentObject tmp = new ContentObject();
 				synchronized (rfile) {
 					ref.id = index.intValue();
-					ref.offset = nextOffset;
 					rfile.openFile.seek(nextOffset);	// In case a get changed this in the meantime
-					if(ref.offset > 0)
-						ref.offset = ref.offset - is.available();
+					ref.offset = nextOffset - is.available();
 					try {
 						if (rfile.openFile.getFilePointer()<rfile.openFile.length() || is.available()!=0) {
 							tmp.decode(is);
 							nextOffset = rfile.openFile.getFilePointer();
+							ref.length = (int)(nextOffset - is.available() - ref.offset);
 						}
 						else{
 							if (Log.isLoggable(Log.FAC_REPO, Level.INFO)) {
@@ -271,7 +377,9 @@ public class LogStructRepoStore extends RepositoryStoreBase implements Repositor
 					}
 				}
 				_index.insert(tmp, ref, rfile.file.lastModified(), this, null);
+				rfile.indexedPos = ref.offset + ref.length;
 			}
+			return rfile.indexedPos;
 		} catch (NumberFormatException e) {
 			// Not valid file
 			Log.warning(Log.FAC_REPO, "Invalid file name " +fileName);
@@ -280,6 +388,178 @@ public class LogStructRepoStore extends RepositoryStoreBase implements Repositor
 		} catch (IOException e) {
 			Log.warning(Log.FAC_REPO, "IOException reading file to create index: " + fileName);
 		}
+		return startOffset;
+	}
+
+	/**
+	 * Save the index to a checkpoint file so the next startup can load it rather than
+	 * reading every object in the repository. The file is written beside the old one
+	 * and renamed over it once complete.
+	 * 
+	 * The checkpoint holds, for each repository file, the offset up to which its content is
+	 * in the index, then the name (including digest), file, offset and length of each
+	 * object, and finally a CRC of all that.
+	 * 
+	 * @throws IOException if the checkpoint can't be written; any older one is left in place
+	 */
+	protected void checkpointIndex() throws IOException {
+		synchronized (_checkpointLock) {
+			// Take the marks before walking the tree: anything written before them is
+			// already in it, anything after will be read again at startup.
+			HashMap<Integer, Long> indexed = new HashMap<Integer, Long>();
+			synchronized (_files) {
+				for (Map.Entry<Integer, RepoFile> entry : _files.entrySet()) {
+					indexed.put(entry.getKey(), entry.getValue().indexedPos);
+				}
+			}
+			File indexFile = new File(_repositoryFile, LogStructRepoStoreProfile.INDEX_FILE);
+			File tmpFile = new File(_repositoryFile, LogStructRepoStoreProfile.INDEX_FILE + ".tmp");
+			FileOutputStream fos = new FileOutputStream(tmpFile);
+			final CheckedOutputStream cos = new CheckedOutputStream(new BufferedOutputStream(fos, 65536), new CRC32());
+			final DataOutputStream dos = new DataOutputStream(cos);
+			final int [] count = new int[1];
+			try {
+				dos.writeInt(INDEX_MAGIC);
+				dos.writeInt(INDEX_VERSION);
+				dos.writeInt(indexed.size());
+				for (Map.Entry<Integer, Long> entry : indexed.entrySet()) {
+					dos.writeInt(entry.getKey());
+					dos.writeLong(entry.getValue());
+				}
+				_index.visitContent(new ContentTree.ContentVisitor() {
+					public void visit(List<byte[]> components, ContentRef ref) throws IOException {
+						FileRef fref = (FileRef)ref;
+						synchronized (fref) {
+							dos.writeInt(fref.id);
+							dos.writeLong(fref.offset);
+							dos.writeInt(fref.length);
+						}
+						dos.writeInt(components.size());
+						for (byte [] component : components) {
+							dos.writeInt(component.length);
+							dos.write(component);
+						}
+						count[0]++;
+					}
+				});
+				dos.writeInt(-1);
+				dos.flush();
+				dos.writeLong(cos.getChecksum().getValue());
+				dos.flush();
+				fos.getFD().sync();
+			} finally {
+				dos.close();
+			}
+			if (!tmpFile.renameTo(indexFile)) {
+				// Some platforms won't rename over an existing file
+				indexFile.delete();
+				if (!tmpFile.renameTo(indexFile))
+					throw new IOException("Can not rename " + tmpFile + " to " + indexFile);
+			}
+			if (Log.isLoggable(Log.FAC_REPO, Level.INFO)) {
+				Log.info(Log.FAC_REPO, "Checkpointed index of {0} objects to {1}", count[0], indexFile);
+			}
+		}
+	}
+
+	/**
+	 * Checkpoint the index on a thread of its own, unless a checkpoint is already waiting to be
+	 * written.
+	 */
+	protected void startCheckpoint() {
+		if (!_checkpointPending.compareAndSet(false, true))
+			return;
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					_checkpointPending.set(false);
+					checkpointIndex();
+				} catch (IOException e) {
+					Log.warning(Log.FAC_REPO, "Unable to checkpoint repository index: " + e.getMessage());
+				}
+			}
+		}, "LogStructRepoStore checkpoint");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Load the index saved by the last checkpoint, if there is a usable one. Objects in
+	 * repository files that are missing or shorter than when the checkpoint was taken are
+	 * left out, and those files are read again from the start.
+	 * 
+	 * @return for each repository file, the offset up to which its content is now in the index
+	 */
+	protected Map<Integer, Long> readCheckpoint() {
+		HashMap<Integer, Long> indexed = new HashMap<Integer, Long>();
+		File indexFile = new File(_repositoryFile, LogStructRepoStoreProfile.INDEX_FILE);
+		if (!indexFile.exists())
+			return indexed;
+		DataInputStream dis = null;
+		int count = 0;
+		try {
+			CheckedInputStream cis = new CheckedInputStream(new BufferedInputStream(new FileInputStream(indexFile), 65536), new CRC32());
+			dis = new DataInputStream(cis);
+			if ((dis.readInt() != INDEX_MAGIC) || (dis.readInt() != INDEX_VERSION)) {
+				Log.warning(Log.FAC_REPO, "Ignoring index checkpoint {0} of unknown format", indexFile);
+				return indexed;
+			}
+			HashMap<Integer, Long> timestamps = new HashMap<Integer, Long>();
+			HashMap<Integer, Long> lengths = new HashMap<Integer, Long>();
+			int files = dis.readInt();
+			for (int i = 0; i < files; i++) {
+				int id = dis.readInt();
+				long offset = dis.readLong();
+				File file = new File(_repositoryFile, LogStructRepoStoreProfile.CONTENT_FILE_PREFIX + id);
+				if (file.exists() && (file.length() >= offset)) {
+					indexed.put(id, offset);
+					timestamps.put(id, file.lastModified());
+					lengths.put(id, file.length());
+				} else {
+					Log.warning(Log.FAC_REPO, "Repository file {0} has changed since the index was checkpointed", file);
+				}
+			}
+			ArrayList<byte []> components = new ArrayList<byte []>();
+			int id;
+			while ((id = dis.readInt()) >= 0) {
+				FileRef ref = new FileRef();
+				ref.id = id;
+				ref.offset = dis.readLong();
+				ref.length = dis.readInt();
+				int ncomponents = dis.readInt();
+				components.clear();
+				for (int i = 0; i < ncomponents; i++) {
+					byte [] component = new byte[dis.readInt()];
+					dis.readFully(component);
+					components.add(component);
+				}
+				// Objects past the mark may not have reached the disk
+				Long ts = timestamps.get(id);
+				if ((null != ts) && (ref.offset + ref.length <= lengths.get(id))) {
+					_index.insert(new ContentName(ncomponents, components), ref, ts);
+					count++;
+				}
+			}
+			long checksum = cis.getChecksum().getValue();
+			if (dis.readLong() != checksum)
+				throw new IOException("checksum mismatch");
+		} catch (Exception e) {
+			// Start over from nothing
+			Log.warning(Log.FAC_REPO, "Unable to read index checkpoint {0}, reading whole repository: {1}", indexFile, e.getMessage());
+			_index = new ContentTree();
+			indexed.clear();
+			return indexed;
+		} finally {
+			if (null != dis) {
+				try {
+					dis.close();
+				} catch (IOException e) {}
+			}
+		}
+		if (Log.isLoggable(Log.FAC_REPO, Level.INFO)) {
+			Log.info(Log.FAC_REPO, "Loaded {0} objects from index checkpoint {1}", count, indexFile);
+		}
+		return indexed;
 	}
 	
 	/**
@@ -376,13 +656,7 @@ public class LogStructRepoStore extends RepositoryStoreBase implements Repositor
 		
 		try {
 			if (_currentFileIndex == 0) {
-				_currentFileIndex = 1; // the index of a file we will actually write
-				RepoFile rfile = new RepoFile();
-				rfile.file = new File(_repositoryFile, LogStructRepoStoreProfile.CONTENT_FILE_PREFIX+"1");
-				rfile.openFile = new RandomAccessFile(rfile.file, "rw");
-				rfile.nextWritePos = 0;
-				_files.put(new Integer(_currentFileIndex), rfile);
-				_activeWriteFile = rfile;
+				_activeWriteFile = newFile();
 			} else {
 				RepoFile rfile = _files.get(new Integer(_currentFileIndex));
 				long cursize = rfile.file.length();
@@ -394,6 +668,27 @@ public class LogStructRepoStore extends RepositoryStoreBase implements Repositor
 		} catch (FileNotFoundException e) {
 			Log.warning(Log.FAC_REPO, "Error opening content output file index " + _currentFileIndex);
 		}
+		
+		if (SystemConfiguration.REPO_FSYNC_INTERVAL_POLICY.equals(SystemConfiguration.REPO_FSYNC_POLICY)) {
+			_syncTimer = new Timer("LogStructRepoStore sync", true);
+			_syncTimer.schedule(new TimerTask() {
+				public void run() {
+					syncWrites();
+				}
+			}, SystemConfiguration.REPO_FSYNC_INTERVAL, SystemConfiguration.REPO_FSYNC_INTERVAL);
+		}
+		if (SystemConfiguration.REPO_COMPACT_INTERVAL > 0) {
+			_compactTimer = new Timer("LogStructRepoStore compactor", true);
+			_compactTimer.schedule(new TimerTask() {
+				public void run() {
+					try {
+						compact();
+					} catch (IOException e) {
+						Log.warning(Log.FAC_REPO, "Unable to compact repository: " + e.getMessage());
+					}
+				}
+			}, SystemConfiguration.REPO_COMPACT_INTERVAL, SystemConfiguration.REPO_COMPACT_INTERVAL);
+		}
 			
 		// Verify stored policy info
 		// TODO - we shouldn't do this if the user has specified a policy file which already has
@@ -458,58 +753,233 @@ public class LogStructRepoStore extends RepositoryStoreBase implements Repositor
 	 * @returns NameEnumerationResponse if this satisfies an outstanding NameEnumeration request
 	 */
 	public NameEnumerationResponse saveContent(ContentObject content) throws RepositoryException {
-		// Make sure content is within allowable nameSpace
-		boolean nameSpaceOK = false;
+		return writeContent(Collections.singletonList(content))[0];
+	}
+
+	/**
+	 * Save a batch of content with one write to the repository file, and at most one sync
+	 * as SystemConfiguration.REPO_FSYNC_POLICY asks.
+	 * 
+	 * @see RepositoryStore#saveContent(List)
+	 */
+	@Override
+	public List<NameEnumerationResponse> saveContent(List<ContentObject> content) throws RepositoryException {
+		ArrayList<NameEnumerationResponse> responses = new ArrayList<NameEnumerationResponse>();
+		for (NameEnumerationResponse ner : writeContent(content)) {
+			if (null != ner && ner.hasNames())
+				responses.add(ner);
+		}
+		return responses;
+	}
+
+	/**
+	 * Make sure content is within allowable nameSpace
+	 */
+	protected boolean inNamespace(ContentObject content) {
 		synchronized (_policy) {
 			for (ContentName name : _policy.getNamespace()) {
-				if (name.isPrefixOf(content.name())) {
-					nameSpaceOK = true;
-					break;
-				}
+				if (name.isPrefixOf(content.name()))
+					return true;
 			}
 		}
-		if (!nameSpaceOK) {
-			if (Log.isLoggable(Log.FAC_REPO, Level.INFO)) {
-				Log.info(Log.FAC_REPO, "Repo rejecting content: {0}, not in registered namespace.", content.name());
-			}
-			return null;
+		if (Log.isLoggable(Log.FAC_REPO, Level.INFO)) {
+			Log.info(Log.FAC_REPO, "Repo rejecting content: {0}, not in registered namespace.", content.name());
 		}
+		return false;
+	}
+
+	/**
+	 * Encode the content into the write buffer, then write the lot to the end of the active
+	 * file and index it. If the buffer fills, what is in it is written first. Content too big
+	 * for the buffer gets a buffer of its own size, which is given up once the batch is written.
+	 * A batch that would take the active file past SystemConfiguration.REPO_SEGMENT_SIZE goes
+	 * to a new one.
+	 * 
+	 * @return a NameEnumerationResponse for each piece of content, null for any not saved
+	 */
+	protected NameEnumerationResponse [] writeContent(List<ContentObject> content) throws RepositoryException {
+		NameEnumerationResponse [] responses = new NameEnumerationResponse[content.size()];
 		if (null == _activeWriteFile)
-			return null;
+			return responses;
+		int [] ends = new int[content.size()]; // end of each in the buffer, -1 if not written
 		try {	
-			NameEnumerationResponse ner = new NameEnumerationResponse();
-			synchronized(_activeWriteFile) {
+			synchronized(_writeLock) {
 				assert(null != _activeWriteFile.openFile);
-				FileRef ref = new FileRef();
-				ref.id = Integer.parseInt(_activeWriteFile.file.getName().substring(LogStructRepoStoreProfile.CONTENT_FILE_PREFIX.length()));
-				ref.offset = _activeWriteFile.nextWritePos;
-				_activeWriteFile.openFile.seek(_activeWriteFile.nextWritePos);
-				OutputStream os = new RandomAccessOutputStream(_activeWriteFile.openFile);
-				content.encode(os);
-				_activeWriteFile.nextWritePos = _activeWriteFile.openFile.getFilePointer();
-				_index.insert(content, ref, System.currentTimeMillis(), this, ner);
-				if (ner==null || ner.getPrefix()==null) {
-					if (Log.isLoggable(Log.FAC_REPO, Level.FINE)) {
-						Log.fine(Log.FAC_REPO, "new content did not trigger an interest flag");
-					}
-				} else {
-					if (Log.isLoggable(Log.FAC_REPO, Level.FINE)) {
-						Log.fine(Log.FAC_REPO, "new content was added where there was a name enumeration response interest flag");
+				int first = 0; // the first not yet written
+				_writeBuffer.clear();
+				for (int i = 0; i < content.size(); i++) {
+					ends[i] = -1;
+					ContentObject co = content.get(i);
+					if (!inNamespace(co))
+						continue;
+					if (!encodeForWrite(co)) {
+						// Out of room: write what we have and start again with an empty buffer,
+						// big enough for this if the usual one isn't
+						flushWrites(content, ends, first, i, responses);
+						first = i;
+						int length = co.encodedLength();
+						if (length > _writeBuffer.capacity()) {
+							if (Log.isLoggable(Log.FAC_REPO, Level.FINE))
+								Log.fine(Log.FAC_REPO, "Writing {0} bytes of content {1} from a buffer of its own", length, co.name());
+							_writeBuffer = ByteBuffer.allocateDirect(length);
+						}
+						encodeForWrite(co);
 					}
+					ends[i] = _writeBuffer.position();
+				}
+				try {
+					flushWrites(content, ends, first, content.size(), responses);
+				} finally {
+					if (_writeBuffer.capacity() > WRITE_BUFFER_SIZE)
+						_writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
 				}
-				return ner;
 			}
 		} catch (ContentEncodingException e) {
 			throw new RepositoryException("Failed to encode content: " + e.getMessage());
 		} catch (IOException e) {
 			throw new RepositoryException("Failed to write content: " + e.getMessage());
 		}
+		return responses;
+	}
+
+	/**
+	 * Append content to the write buffer.
+	 * @return false, leaving the buffer as it was, if there isn't room
+	 * @throws ContentEncodingException if the content can't be encoded
+	 */
+	protected boolean encodeForWrite(ContentObject content) throws ContentEncodingException {
+		if (content.encodedLength() > _writeBuffer.remaining())
+			return false;
+		_writeEncoder.beginEncoding(_writeBuffer);
+		content.encode(_writeEncoder);
+		_writeEncoder.endEncoding();
+		return true;
+	}
+
+	/**
+	 * Write out the write buffer, sync if policy says to, and index content from..to-1 which
+	 * it holds. Called holding the write lock.
+	 */
+	protected void flushWrites(List<ContentObject> content, int [] ends, int from, int to, 
+				NameEnumerationResponse [] responses) throws IOException {
+		if ((_activeWriteFile.nextWritePos > 0) &&
+				(_activeWriteFile.nextWritePos + _writeBuffer.position() > SystemConfiguration.REPO_SEGMENT_SIZE))
+			rollover();
+		_writeBuffer.flip();
+		FileChannel channel = _activeWriteFile.openFile.getChannel();
+		long base = _activeWriteFile.nextWritePos;
+		long position = base;
+		while (_writeBuffer.hasRemaining()) {
+			position += channel.write(_writeBuffer, position);
+		}
+		_writeBuffer.clear();
+		if (SystemConfiguration.REPO_FSYNC_BATCH.equals(SystemConfiguration.REPO_FSYNC_POLICY)) {
+			channel.force(false);
+		} else {
+			_unsynced = true;
+		}
+		_activeWriteFile.nextWritePos = position;
+
+		int id = _activeWriteFile.id;
+		long now = System.currentTimeMillis();
+		int start = 0;
+		int saved = 0;
+		for (int i = from; i < to; i++) {
+			if (ends[i] < 0)
+				continue;
+			FileRef ref = new FileRef();
+			ref.id = id;
+			ref.offset = base + start;
+			ref.length = ends[i] - start;
+			start = ends[i];
+			NameEnumerationResponse ner = new NameEnumerationResponse();
+			_index.insert(content.get(i), ref, now, this, ner);
+			if (ner.getPrefix()==null) {
+				if (Log.isLoggable(Log.FAC_REPO, Level.FINE)) {
+					Log.fine(Log.FAC_REPO, "new content did not trigger an interest flag");
+				}
+			} else {
+				if (Log.isLoggable(Log.FAC_REPO, Level.FINE)) {
+					Log.fine(Log.FAC_REPO, "new content was added where there was a name enumeration response interest flag");
+				}
+			}
+			responses[i] = ner;
+			saved++;
+		}
+		_activeWriteFile.indexedPos = position;
+		_savedSinceCheckpoint += saved;
+		if ((SystemConfiguration.REPO_CHECKPOINT_INTERVAL > 0) && 
+				(_savedSinceCheckpoint >= SystemConfiguration.REPO_CHECKPOINT_INTERVAL)) {
+			_savedSinceCheckpoint = 0;
+			startCheckpoint();
+		}
+	}
+
+	/**
+	 * Make a new, empty repository file, numbered after all the others, and open it
+	 * for writing.
+	 */
+	protected RepoFile newFile() throws FileNotFoundException {
+		RepoFile rfile = new RepoFile();
+		synchronized (_writeLock) {
+			_currentFileIndex = _currentFileIndex + 1;
+			rfile.id = _currentFileIndex;
+		}
+		rfile.file = new File(_repositoryFile, LogStructRepoStoreProfile.CONTENT_FILE_PREFIX + rfile.id);
+		rfile.openFile = new RandomAccessFile(rfile.file, "rw");
+		rfile.nextWritePos = 0;
+		rfile.indexedPos = 0;
+		synchronized (_files) {
+			_files.put(rfile.id, rfile);
+		}
+		return rfile;
+	}
+
+	/**
+	 * Finish with the active file and start writing to a new one. Unless the sync policy
+	 * is "none", the old file is synced first. Called holding the write lock.
+	 */
+	protected void rollover() throws IOException {
+		RepoFile old = _activeWriteFile;
+		RepoFile rfile = newFile();
+		if (!SystemConfiguration.REPO_FSYNC_NONE.equals(SystemConfiguration.REPO_FSYNC_POLICY))
+			old.openFile.getChannel().force(false);
+		_activeWriteFile = rfile;
+		old.openFile.close();
+		old.openFile = null;
+		if (Log.isLoggable(Log.FAC_REPO, Level.INFO)) {
+			Log.info(Log.FAC_REPO, "Repository file {0} reached {1} bytes, now writing to {2}", old.file, old.nextWritePos, rfile.file);
+		}
+	}
+
+	/**
+	 * Sync the active file if anything has been written to it since we last did.
+	 */
+	protected void syncWrites() {
+		RepoFile file = _activeWriteFile;
+		if (!_unsynced || null == file)
+			return;
+		_unsynced = false;
+		RandomAccessFile openFile = file.openFile;
+		if (null == openFile)
+			return;
+		try {
+			openFile.getChannel().force(false);
+		} catch (IOException e) {
+			// A file rolled over while we synced it was synced then, if the policy asks for syncs
+			if (file == _activeWriteFile)
+				Log.warning(Log.FAC_REPO, "Unable to sync repository file " + file.file + ": " + e.getMessage());
+		}
 	}
 
 	/**
 	 * Get content for the given reference from the storage files. Used to retrieve content for 
 	 * comparison operations.
 	 * 
+	 * Reads are positional, of exactly the referenced object, into a buffer kept by the
+	 * calling thread; any number of threads can read the same file at once. If compaction
+	 * moves the object while we read it, we read it again from where it went.
+	 * 
 	 * @param ref the reference
 	 * @return ContentObject at the referenced slot in the storage files
 	 */
@@ -517,28 +987,268 @@ public class LogStructRepoStore extends RepositoryStoreBase implements Repositor
 		// This is a call back based on what we put in ContentTree, so it must be
 		// using our subtype of ContentRef
 		FileRef fref = (FileRef)ref;
-		try {
-			RepoFile file = null;
-			synchronized (_files) {
-				file = _files.get(fref.id);
+		while (true) {
+			int id;
+			long offset;
+			int length;
+			synchronized (fref) {
+				id = fref.id;
+				offset = fref.offset;
+				length = fref.length;
 			}
-			if (null == file)
-				return null;
-			synchronized (file) {
-				if (null == file.openFile) {
-					file.openFile = new RandomAccessFile(file.file, "r");
+			try {
+				RepoFile file = null;
+				synchronized (_files) {
+					file = _files.get(id);
+				}
+				if (null == file) {
+					synchronized (fref) {
+						if ((id != fref.id) || (offset != fref.offset))
+							continue;
+					}
+					return null;
 				}
-				file.openFile.seek(fref.offset);
+				ByteBuffer buf = readBuffer(length);
+				readFully(file, buf, offset);
+				buf.flip();
 				ContentObject content = new ContentObject();
-				InputStream is = new BufferedInputStream(new RandomAccessInputStream(file.openFile), 8192);
-				content.decode(is);
+				content.decode(buf, BinaryXMLBufferCodec.codecName());
 				return content;
+			} catch (Exception e) {
+				synchronized (fref) {
+					if ((id != fref.id) || (offset != fref.offset))
+						continue;
+				}
+				Log.warning(Log.FAC_REPO, "Can't get content: " + e);
+				return null;
 			}
-		} catch (Exception e) {
-			Log.warning(Log.FAC_REPO, "Can't get content: " + e);
-			return null;
 		}
 	}
+
+	/**
+	 * Fill buf from file, starting at position. If another reader's interrupt
+	 * closes the shared channel under us, reopen it and carry on.
+	 */
+	protected static void readFully(RepoFile file, ByteBuffer buf, long position) throws IOException {
+		FileChannel channel = file.readChannel();
+		long start = position;
+		while (buf.hasRemaining()) {
+			int count;
+			try {
+				count = channel.read(buf, position);
+			} catch (ClosedChannelException e) {
+				channel = file.reopenChannel(channel);
+				if (e instanceof ClosedByInterruptException)
+					throw e; // we were the reader interrupted
+				continue;
+			}
+			if (count < 0)
+				throw new EOFException("Content at " + start + " runs past the end of " + file.file);
+			position += count;
+		}
+	}
+	
+	/**
+	 * @return this thread's read buffer, cleared and limited to length
+	 */
+	protected static ByteBuffer readBuffer(int length) {
+		ByteBuffer buf = _readBuffer.get();
+		if ((null == buf) || (buf.capacity() < length)) {
+			buf = ByteBuffer.allocateDirect(Math.max(length, READ_BUFFER_SIZE));
+			_readBuffer.set(buf);
+		}
+		buf.clear();
+		buf.limit(length);
+		return buf;
+	}
+	
+	/**
+	 * Rewrite the files we no longer write to in which live content, that which is still
+	 * in the index, has fallen below SystemConfiguration.REPO_COMPACT_THRESHOLD percent.
+	 * The live content is copied as it is to new files, the index pointed at the copies
+	 * and checkpointed, and the old files deleted. Duplicates, which are written but never
+	 * indexed, are left behind, as are all but the newest SystemConfiguration.REPO_KEEP_VERSIONS
+	 * versions of each name if that is set.
+	 * 
+	 * @return the number of files compacted
+	 * @throws IOException if the copies can't be written; the old files are then left as they were
+	 */
+	public int compact() throws IOException {
+		synchronized (_compactLock) {
+			if (_closed)
+				return 0;
+			if (SystemConfiguration.REPO_KEEP_VERSIONS > 0) {
+				int pruned = _index.pruneVersions(SystemConfiguration.REPO_KEEP_VERSIONS);
+				if ((pruned > 0) && Log.isLoggable(Log.FAC_REPO, Level.INFO)) {
+					Log.info(Log.FAC_REPO, "Dropped {0} old versions from the repository index", pruned);
+				}
+			}
+			
+			// How much of each file is live
+			final HashMap<Integer, long []> live = new HashMap<Integer, long []>();
+			_index.visitContent(new ContentTree.ContentVisitor() {
+				public void visit(List<byte[]> components, ContentRef ref) {
+					FileRef fref = (FileRef)ref;
+					long [] bytes = live.get(fref.id);
+					if (null == bytes) {
+						bytes = new long[1];
+						live.put(fref.id, bytes);
+					}
+					bytes[0] += fref.length;
+				}
+			});
+			RepoFile active;
+			synchronized (_writeLock) {
+				active = _activeWriteFile;
+			}
+			final HashMap<Integer, RepoFile> victims = new HashMap<Integer, RepoFile>();
+			long oldSize = 0;
+			synchronized (_files) {
+				for (RepoFile rfile : _files.values()) {
+					// Leave alone the file we write to, and any still being imported
+					if ((rfile == active) || (null != rfile.openFile))
+						continue;
+					long length = rfile.file.length();
+					long [] bytes = live.get(rfile.id);
+					if (((null == bytes) ? 0 : bytes[0]) * 100 < length * SystemConfiguration.REPO_COMPACT_THRESHOLD) {
+						victims.put(rfile.id, rfile);
+						oldSize += length;
+					}
+				}
+			}
+			if (victims.isEmpty())
+				return 0;
+			
+			// Copy what is live, each file front to back
+			final ArrayList<FileRef> refs = new ArrayList<FileRef>();
+			_index.visitContent(new ContentTree.ContentVisitor() {
+				public void visit(List<byte[]> components, ContentRef ref) {
+					if (victims.containsKey(((FileRef)ref).id))
+						refs.add((FileRef)ref);
+				}
+			});
+			Collections.sort(refs, new Comparator<FileRef>() {
+				public int compare(FileRef r1, FileRef r2) {
+					if (r1.id != r2.id)
+						return (r1.id < r2.id) ? -1 : 1;
+					return (r1.offset < r2.offset) ? -1 : ((r1.offset == r2.offset) ? 0 : 1);
+				}
+			});
+			ArrayList<RepoFile> copies = new ArrayList<RepoFile>();
+			int [] newIds = new int[refs.size()];
+			long [] newOffsets = new long[refs.size()];
+			ByteBuffer buf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+			RepoFile copy = null;
+			try {
+				for (int i = 0; i < refs.size(); i++) {
+					FileRef fref = refs.get(i);
+					long end = (null == copy) ? 0 : copy.nextWritePos + buf.position();
+					if ((null == copy) || ((end > 0) && (end + fref.length > SystemConfiguration.REPO_SEGMENT_SIZE))) {
+						if (null != copy)
+							finishCopy(copy, buf);
+						copy = newFile();
+						copies.add(copy);
+					}
+					if (buf.remaining() < fref.length) {
+						writeCopy(copy, buf);
+						if (buf.capacity() < fref.length)
+							buf = ByteBuffer.allocateDirect(fref.length);
+					}
+					newIds[i] = copy.id;
+					newOffsets[i] = copy.nextWritePos + buf.position();
+					buf.limit(buf.position() + fref.length);
+					readFully(victims.get(fref.id), buf, fref.offset);
+					buf.limit(buf.capacity());
+				}
+				if (null != copy)
+					finishCopy(copy, buf);
+			} catch (IOException e) {
+				// Nothing points at the copies yet
+				for (RepoFile rfile : copies) {
+					synchronized (_files) {
+						_files.remove(rfile.id);
+					}
+					if (null != rfile.openFile)
+						rfile.openFile.close();
+					rfile.file.delete();
+				}
+				throw e;
+			}
+			
+			// Point the index at the copies. Anyone reading the old place finds the new one
+			// once their read fails, so the old files can go as soon as this is done.
+			for (int i = 0; i < refs.size(); i++) {
+				FileRef fref = refs.get(i);
+				synchronized (fref) {
+					fref.id = newIds[i];
+					fref.offset = newOffsets[i];
+				}
+			}
+			synchronized (_files) {
+				for (Integer id : victims.keySet())
+					_files.remove(id);
+			}
+			try {
+				checkpointIndex();
+			} catch (IOException e) {
+				// Startup would read the copies again, which is slow but right
+				Log.warning(Log.FAC_REPO, "Unable to checkpoint repository index after compaction: " + e.getMessage());
+			}
+			for (RepoFile rfile : victims.values()) {
+				rfile.closeChannel();
+				if (!rfile.file.delete())
+					Log.warning(Log.FAC_REPO, "Unable to delete compacted repository file " + rfile.file);
+			}
+			if (Log.isLoggable(Log.FAC_REPO, Level.INFO)) {
+				long newSize = 0;
+				for (RepoFile rfile : copies)
+					newSize += rfile.nextWritePos;
+				Log.info(Log.FAC_REPO, "Compacted {0} repository files of {1} bytes into {2} of {3} bytes",
+						victims.size(), oldSize, copies.size(), newSize);
+			}
+			return victims.size();
+		}
+	}
+
+	/**
+	 * Compact on a thread of our own
+	 */
+	protected void startCompaction() {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					compact();
+				} catch (IOException e) {
+					Log.warning(Log.FAC_REPO, "Unable to compact repository: " + e.getMessage());
+				}
+			}
+		}, "LogStructRepoStore compaction");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Append what is in buf to the end of a file being written by compaction
+	 */
+	protected void writeCopy(RepoFile rfile, ByteBuffer buf) throws IOException {
+		buf.flip();
+		FileChannel channel = rfile.openFile.getChannel();
+		while (buf.hasRemaining()) {
+			rfile.nextWritePos += channel.write(buf, rfile.nextWritePos);
+		}
+		buf.clear();
+	}
+
+	/**
+	 * Write out the rest of a compaction copy and sync it; it is all live, so all indexed.
+	 */
+	protected void finishCopy(RepoFile rfile, ByteBuffer buf) throws IOException {
+		writeCopy(rfile, buf);
+		rfile.openFile.getChannel().force(false);
+		rfile.indexedPos = rfile.nextWritePos;
+		rfile.openFile.close();
+		rfile.openFile = null;
+	}
 	
 	private ContentName getPrivateContentName(String fileName) {
 		return ContentName.fromNative(LogStructRepoStoreProfile.PRIVATE_DATA_PREFIX, fileName);
@@ -611,7 +1321,8 @@ public class LogStructRepoStore extends RepositoryStoreBase implements Repositor
 	 * Dump all names of data stored in the repository into a special file within the repository 
 	 * on diagnostic request from higher level code
 	 * 
-	 * @param name "nametree" or "nametreewide" to decide whether to limit the printout length of components
+	 * @param name "nametree" or "nametreewide" to decide whether to limit the printout length of components,
+	 * 	or "compact" to start compacting the repository files
 	 */
 	public boolean diagnostic(String name) {
 		if (0 == name.compareToIgnoreCase(LogStructRepoStoreProfile.DIAG_NAMETREE)) {
@@ -620,6 +1331,9 @@ public class LogStructRepoStore extends RepositoryStoreBase implements Repositor
 		} else if (0 == name.compareToIgnoreCase(LogStructRepoStoreProfile.DIAG_NAMETREEWIDE)) {
 			dumpNames(-1);
 			return true;
+		} else if (0 == name.compareToIgnoreCase(LogStructRepoStoreProfile.DIAG_COMPACT)) {
+			startCompaction();
+			return true;
 		}
 		return false;
 	}
@@ -631,12 +1345,35 @@ public class LogStructRepoStore extends RepositoryStoreBase implements Repositor
 		super.shutDown();
 		if (null != _km)
 			_km.close();
+		if (null != _compactTimer)
+			_compactTimer.cancel();
+		synchronized (_compactLock) {
+			_closed = true; // waits for any compaction under way
+		}
+		if (null != _index) {
+			try {
+				checkpointIndex();
+			} catch (IOException e) {
+				Log.warning(Log.FAC_REPO, "Unable to checkpoint repository index on shutdown: " + e.getMessage());
+			}
+		}
+		if (null != _syncTimer)
+			_syncTimer.cancel();
+		if (!SystemConfiguration.REPO_FSYNC_NONE.equals(SystemConfiguration.REPO_FSYNC_POLICY))
+			syncWrites();
 		if (null != _activeWriteFile && null != _activeWriteFile.openFile) {
 			try {
 				_activeWriteFile.openFile.close();
 				_activeWriteFile.openFile = null;
 			} catch (IOException e) {}
 		}
+		if (null != _files) {
+			synchronized (_files) {
+				for (RepoFile file : _files.values()) {
+					file.closeChannel();
+				}
+			}
+		}
 		if (SystemConfiguration.checkDebugFlag(DEBUGGING_FLAGS.REPO_EXITDUMP)) {
 			Log.warning(Log.FAC_REPO, "Debug flag ({0}) is set: dumping nametree now (on shutdown)", DEBUGGING_FLAGS.REPO_EXITDUMP.toString());
 			dumpNames(-1);
@@ -658,14 +1395,20 @@ public class LogStructRepoStore extends RepositoryStoreBase implements Repositor
 					return false;		
 			throw new RepositoryException("File does not exist: " + file);
 		}
-		synchronized (_currentFileIndex) {
+		int index;
+		File repoFile;
+		synchronized (_writeLock) {
 			_bulkImportInProgress.put(name, name);
-			_currentFileIndex++;
-			File repoFile = new File(_repositoryFile, LogStructRepoStoreProfile.CONTENT_FILE_PREFIX + _currentFileIndex);
+			_currentFileIndex = _currentFileIndex + 1;
+			index = _currentFileIndex;
+			repoFile = new File(_repositoryFile, LogStructRepoStoreProfile.CONTENT_FILE_PREFIX + index);
 			if (!file.renameTo(repoFile))
 				throw new RepositoryException("Can not rename file: " + file);
+		}
+		// Imports are still done one at a time, but without holding up writes
+		synchronized (_bulkImportInProgress) {
 			try {
-				createIndex(LogStructRepoStoreProfile.CONTENT_FILE_PREFIX + _currentFileIndex, _currentFileIndex, true);
+				createIndex(LogStructRepoStoreProfile.CONTENT_FILE_PREFIX + index, index, true, 0);
 			} catch (RepositoryException re) {
 				// The seemingly logical thing to do would be to verify the data for errors first and then submit it if it
 				// was OK. But that would require 2 passes through the data in the mainline case in which the data is good
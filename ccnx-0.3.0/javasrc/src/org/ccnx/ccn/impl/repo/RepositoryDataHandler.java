@@ -17,8 +17,12 @@
 
 package org.ccnx.ccn.impl.repo;
 
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 import org.ccnx.ccn.config.SystemConfiguration;
@@ -29,21 +33,101 @@ import org.ccnx.ccn.protocol.ContentObject;
 /**
  * So the main listener can output interests sooner, we do the data store work
  * in a separate thread.
+ *
+ * Incoming content is prepared for the store by a pool of worker threads, which work
+ * out each object's encoding and digest (and check its signature, if
+ * SystemConfiguration.REPO_VERIFY_CONTENT is set) in parallel. This thread then hands
+ * the store whatever has been prepared, in the order it arrived, a batch at a time.
+ *
+ * At most SystemConfiguration.REPO_INGEST_QUEUE objects are held; listeners adding
+ * more wait for room, which slows them to the rate the store keeps up with. Content
+ * is never dropped for want of room, as the listener adding it has already moved on
+ * from its interest; the wait holds up only the delivery thread adding it.
  */
 
 public class RepositoryDataHandler implements Runnable {
+	// Most content to hand the store at once
+	public static final int MAX_BATCH = 256;
+
 	private RepositoryServer _server;
-	private Queue<ContentObject> _queue = new ConcurrentLinkedQueue<ContentObject>();
-	private boolean _shutdown = false;
-	
+	private ThreadPoolExecutor _workers;
+	// Content in the order it arrived; the head is stored once it is prepared
+	private ArrayBlockingQueue<Pending> _order;
+	private Object _ready = new Object(); // notified as each is prepared
+	private volatile boolean _shutdown = false;
+
+	/**
+	 * Incoming content, and whether it is fit to store once prepared
+	 */
+	protected class Pending implements Runnable {
+		protected final ContentObject _content;
+		protected volatile boolean _prepared = false;
+		protected boolean _ok = false;
+
+		protected Pending(ContentObject content) {
+			_content = content;
+		}
+
+		public void run() {
+			_ok = prepare(_content);
+			_prepared = true;
+			synchronized (_ready) {
+				_ready.notify();
+			}
+		}
+	}
+
 	public RepositoryDataHandler(RepositoryServer server) {
 		_server = server;
+		int threads = Math.max(1, SystemConfiguration.REPO_INGEST_THREADS);
+		_order = new ArrayBlockingQueue<Pending>(SystemConfiguration.REPO_INGEST_QUEUE);
+		_workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(SystemConfiguration.REPO_INGEST_QUEUE),
+				new WorkerThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * Queue content to be stored, waiting for room if too much is already queued
+	 * @return false if the content was dropped, as we are shutting down or were interrupted
+	 */
+	public boolean add(ContentObject co) {
+		Pending pending = new Pending(co);
+		try {
+			while (!_order.offer(pending, SystemConfiguration.MEDIUM_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				if (_shutdown) {
+					Log.warning(Log.FAC_REPO, "Shutting down, dropping {0}", co.name());
+					return false;
+				}
+				if (Log.isLoggable(Log.FAC_REPO, Level.FINE))
+					Log.fine(Log.FAC_REPO, "Still waiting for room to store {0}", co.name());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Log.warning(Log.FAC_REPO, "Interrupted waiting to store {0}, dropping it", co.name());
+			return false;
+		}
+		_workers.execute(pending);
+		return true;
 	}
-	
-	public void add(ContentObject co) {
-		synchronized(_queue) {
-			_queue.add(co);
-			_queue.notify();
+
+	/**
+	 * Get content ready for the store: its encoding and digest are worked out here
+	 * and kept with it, so the store need only copy them.
+	 *
+	 * @return false if the content should not be stored
+	 */
+	protected boolean prepare(ContentObject co) {
+		try {
+			co.fullName();
+			if (SystemConfiguration.REPO_VERIFY_CONTENT &&
+					!co.verify(_server.getRepository().getHandle().keyManager())) {
+				Log.warning(Log.FAC_REPO, "Content {0} does not verify, not storing it", co.name());
+				return false;
+			}
+			return true;
+		} catch (Exception e) {
+			Log.warning(Log.FAC_REPO, "Unable to prepare content {0} for storage: {1}", co.name(), e.getMessage());
+			return false;
 		}
 	}
 
@@ -52,42 +136,59 @@ public class RepositoryDataHandler implements Runnable {
 	 * The thread also checks for policy updates which may reset the repository's
 	 * namespace and sends "early" nameEnumerationResponses when requested by the
 	 * store.
-	 * 
+	 *
 	 * @see RepositoryStore
 	 */
 	public void run() {
+		ArrayList<ContentObject> batch = new ArrayList<ContentObject>(MAX_BATCH);
 		while (!_shutdown) {
-			ContentObject co = null;
-			synchronized (_queue) {
-				do {
-					co = _queue.poll();
-					if (null == co)
-						try {
-							_queue.wait(SystemConfiguration.MEDIUM_TIMEOUT);
-						} catch (InterruptedException e) {}
-					if (_shutdown)
-						break;
-				} while (null == co);
+			Pending next;
+			synchronized (_ready) {
+				next = _order.peek();
+				if ((null == next) || !next._prepared) {
+					try {
+						_ready.wait(SystemConfiguration.MEDIUM_TIMEOUT);
+					} catch (InterruptedException e) {}
+					continue;
+				}
+			}
+			// Take everything prepared at the head, so the store can write it at once
+			int taken = 0;
+			while ((taken < MAX_BATCH) && (null != (next = _order.peek())) && next._prepared) {
+				_order.poll();
+				taken++;
+				if (next._ok)
+					batch.add(next._content);
 			}
-			if (! _shutdown) {
-				try {
-					if (Log.isLoggable(Log.FAC_REPO, Level.FINER)) {
-						Log.finer(Log.FAC_REPO, "Saving content in: " + co.toString());
-					}
-					
-					NameEnumerationResponse ner = _server.getRepository().saveContent(co);
-					if (ner!=null && ner.hasNames()) {
-						_server.sendEnumerationResponse(ner);
-					}
-				} catch (Exception e) {
-					e.printStackTrace();
-					Log.logStackTrace(Level.WARNING, e);
+			if (_shutdown || batch.isEmpty())
+				continue;
+			try {
+				if (Log.isLoggable(Log.FAC_REPO, Level.FINER)) {
+					Log.finer(Log.FAC_REPO, "Saving {0} objects starting with: {1}", batch.size(), batch.get(0));
+				}
+
+				for (NameEnumerationResponse ner : _server.getRepository().saveContent(batch)) {
+					_server.sendEnumerationResponse(ner);
 				}
+			} catch (Exception e) {
+				Log.warning(Log.FAC_REPO, "Unable to save {0} objects starting with {1}: {2}", batch.size(), batch.get(0).name(), e.getMessage());
+				Log.logStackTrace(Level.WARNING, e);
 			}
+			batch.clear();
 		}
 	}
-	
+
 	public void shutdown() {
 		_shutdown = true;
+		_workers.shutdown();
+	}
+
+	protected static class WorkerThreadFactory implements ThreadFactory {
+		protected AtomicInteger _count = new AtomicInteger(0);
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "RepositoryDataHandler worker " + _count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
 	}
 }
@@ -19,6 +19,7 @@ package org.ccnx.ccn.impl.repo;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
 
 import org.ccnx.ccn.CCNHandle;
 import org.ccnx.ccn.KeyManager;
@@ -92,6 +93,14 @@ public interface RepositoryStore {
 	 * @return NameEnumerationResponse
 	 */
 	public NameEnumerationResponse saveContent(ContentObject content) throws RepositoryException;
+
+	/**
+	 * Save a batch of content, in order, as saveContent(ContentObject) would each piece.
+	 * Stores that can write a batch more cheaply than its pieces one at a time should.
+	 * @param content
+	 * @return the NameEnumerationResponses triggered by the saves that have names to send
+	 */
+	public List<NameEnumerationResponse> saveContent(List<ContentObject> content) throws RepositoryException;
 	
 	/**
 	 * Return the matching content if it exists
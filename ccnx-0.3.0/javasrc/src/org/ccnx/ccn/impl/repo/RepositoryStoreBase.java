@@ -21,6 +21,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 
 import org.ccnx.ccn.CCNHandle;
@@ -194,6 +195,19 @@ public abstract class RepositoryStoreBase implements RepositoryStore {
 
 	public abstract NameEnumerationResponse saveContent(ContentObject content) throws RepositoryException;
 
+	/**
+	 * Save content one piece at a time
+	 */
+	public List<NameEnumerationResponse> saveContent(List<ContentObject> content) throws RepositoryException {
+		ArrayList<NameEnumerationResponse> responses = new ArrayList<NameEnumerationResponse>();
+		for (ContentObject co : content) {
+			NameEnumerationResponse ner = saveContent(co);
+			if (null != ner && ner.hasNames())
+				responses.add(ner);
+		}
+		return responses;
+	}
+
 	public void setPolicy(Policy policy) {
 		_policy = policy;
 	}
@@ -0,0 +1,144 @@
+/*
+ * Part of the CCNx Java Library.
+ *
+ * Copyright (C) 2008, 2009, 2010 Palo Alto Research Center, Inc.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 2.1
+ * as published by the Free Software Foundation.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details. You should have received
+ * a copy of the GNU Lesser General Public License along with this library;
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin Street,
+ * Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.ccnx.ccn.impl.support;
+
+import java.util.List;
+
+/**
+ * A hashed timing wheel: items scheduled for a time are kept in the slot for the
+ * tick that time falls in, and advancing the wheel to the present visits only the
+ * slots of the ticks that have passed. Scheduling is O(1), and advancing costs the
+ * number of items due plus those scheduled a whole number of revolutions later,
+ * which for deadlines shorter than one revolution is none.
+ *
+ * An item no longer wanted can be cancelled through the Entry it was scheduled
+ * with. The wheel lets go of the item at once, so it is not kept reachable until
+ * its time; the entry itself is unlinked when its tick comes round.
+ */
+public class TimingWheel<T> {
+
+	public static class Entry<T> {
+		protected final TimingWheel<T> wheel;
+		protected T item;	// null once cancelled
+		protected final long tick;
+		protected Entry<T> next;
+		protected Entry(TimingWheel<T> wheel, T item, long tick, Entry<T> next) {
+			this.wheel = wheel;
+			this.item = item;
+			this.tick = tick;
+			this.next = next;
+		}
+
+		/**
+		 * Stop the item coming due.
+		 * @return false if it already has, or was already cancelled
+		 */
+		public boolean cancel() {
+			synchronized (wheel) {
+				if (null == item)
+					return false;
+				item = null;
+				wheel._size--;
+				return true;
+			}
+		}
+	}
+
+	protected final long _tickLength;
+	protected final Entry<T> [] _slots;
+	protected long _current;	// next tick to visit
+	protected int _size = 0;
+
+	/**
+	 * @param tickLength length of a tick in ms; items are due to within this
+	 * @param slots number of ticks in a revolution, rounded up to a power of 2
+	 * @param now the time to start from, in ms
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TimingWheel(long tickLength, int slots, long now) {
+		int size = 1;
+		while (size < slots)
+			size <<= 1;
+		_tickLength = tickLength;
+		_slots = new Entry[size];
+		_current = now / tickLength;
+	}
+
+	/**
+	 * Schedule an item. An item scheduled for a time already past is due at the
+	 * next advance.
+	 * @param item the item
+	 * @param when the time it is due, in ms
+	 * @return the entry for the item, by which it can be cancelled
+	 */
+	public synchronized Entry<T> schedule(T item, long when) {
+		long tick = Math.max(when / _tickLength, _current);
+		int slot = (int)(tick & (_slots.length - 1));
+		Entry<T> entry = new Entry<T>(this, item, tick, _slots[slot]);
+		_slots[slot] = entry;
+		_size++;
+		return entry;
+	}
+
+	/**
+	 * Move the wheel forward, collecting items that are due.
+	 * @param now the present, in ms
+	 * @param due list to which items due by now are added
+	 * @return the number of items added
+	 */
+	public synchronized int advance(long now, List<T> due) {
+		long target = now / _tickLength;
+		if (target < _current)
+			return 0;
+		// After a long pause, one revolution visits every slot.
+		long last = Math.min(target, _current + _slots.length - 1);
+		int count = 0;
+		for (long tick = _current; tick <= last; tick++) {
+			int slot = (int)(tick & (_slots.length - 1));
+			Entry<T> prev = null;
+			for (Entry<T> s = _slots[slot]; null != s; s = s.next) {
+				if (s.tick <= target) {
+					if (null != s.item) {
+						due.add(s.item);
+						s.item = null;
+						count++;
+					}
+					if (null == prev)
+						_slots[slot] = s.next;
+					else
+						prev.next = s.next;
+				} else {
+					prev = s;
+				}
+			}
+		}
+		_current = target + 1;
+		_size -= count;
+		return count;
+	}
+
+	/**
+	 * @return the number of items scheduled
+	 */
+	public synchronized int size() {
+		return _size;
+	}
+
+	public long tickLength() {
+		return _tickLength;
+	}
+}
@@ -22,6 +22,7 @@ import java.util.ArrayList;
 import java.util.LinkedList;
 
 import org.ccnx.ccn.CCNHandle;
+import org.ccnx.ccn.impl.CCNFlowControl;
 import org.ccnx.ccn.impl.CCNFlowControl.SaveType;
 import org.ccnx.ccn.io.ErrorStateException;
 import org.ccnx.ccn.io.content.CCNEncodableObject;
@@ -85,6 +86,15 @@ public class NameEnumerationResponse {
 				this(name, new NameEnumerationResponseMessage(contents), publisher, keyLocator, handle);			
 			}
 
+			/**
+			 * Write constructor for responders that want to control how the response
+			 * is put, for example to keep its segments for later interests.
+			 */
+			public NameEnumerationResponseMessageObject(ContentName name, NameEnumerationResponseMessage data, PublisherPublicKeyDigest publisher, 
+									KeyLocator keyLocator, CCNFlowControl flowControl) throws IOException {
+				super(NameEnumerationResponseMessage.class, true, name, data, publisher, keyLocator, flowControl);
+			}
+
 			public NameEnumerationResponseMessageObject(ContentName name, CCNHandle handle) 
 			throws ContentDecodingException, IOException {
 				super(NameEnumerationResponseMessage.class, true, name, (PublisherPublicKeyDigest)null, handle);
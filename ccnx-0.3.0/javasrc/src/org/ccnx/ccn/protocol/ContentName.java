@@ -58,6 +58,13 @@ public class ContentName extends GenericXMLEncodable implements XMLEncodable, Co
 	public static final ContentName ROOT = new ContentName(0, (ArrayList<byte []>)null);
 	
 	protected ArrayList<byte []>  _components;
+	/**
+	 * Hashes of this name's prefixes, computed on first use: element n is the hash
+	 * of the first n components, so element count() is hashCode(). Names are not
+	 * changed once built (except by decode(), which clears this), so names cut
+	 * from this one share the array.
+	 */
+	protected transient volatile int [] _prefixHashes = null;
 	public static class DotDotComponent extends Exception { // Need to strip off a component
 		private static final long serialVersionUID = 4667513234636853164L;
 	}; 
@@ -517,14 +524,24 @@ public class ContentName extends GenericXMLEncodable implements XMLEncodable, Co
 	}
 
 	public ContentName clone() {
-		return new ContentName(count(), components());
+		return prefix(count());
 	}
 
 	/**
 	 * Returns a new name with the last component removed.
 	 */
 	public ContentName parent() {
-		return new ContentName(count()-1, components());
+		return prefix(count()-1);
+	}
+
+	/**
+	 * The first count components, as a new name sharing our prefix hashes.
+	 */
+	protected ContentName prefix(int count) {
+		ContentName result = new ContentName(count, components());
+		if (count >= 0)
+			result._prefixHashes = _prefixHashes;
+		return result;
 	}
 	
 	public String toString() {
@@ -911,6 +928,7 @@ public class ContentName extends GenericXMLEncodable implements XMLEncodable, Co
 		decoder.readStartElement(getElementLabel());
 		
 		_components = new ArrayList<byte []>();
+		_prefixHashes = null;
 		
 		while (decoder.peekStartElement(CCNProtocolDTags.Component)) {
 			_components.add(decoder.readBinaryElement(CCNProtocolDTags.Component));
@@ -939,8 +957,18 @@ public class ContentName extends GenericXMLEncodable implements XMLEncodable, Co
 			return false;
 		if (count > name.count())
 			return false;
-		for (int i=0; i < count; ++i) {
-			if (!Arrays.equals(name.component(i), component(i)))
+		if (count > count())
+			return false;
+		// Names that have been hashed are told apart without looking at components
+		int [] ours = _prefixHashes;
+		int [] theirs = name._prefixHashes;
+		if ((count > 0) && (null != ours) && (null != theirs) && (ours[count] != theirs[count]))
+			return false;
+		// Names sharing a prefix most often differ near the end
+		for (int i=count-1; i >= 0; --i) {
+			byte [] c = component(i);
+			byte [] nc = name.component(i);
+			if ((c != nc) && !Arrays.equals(nc, c))
 					return false;
 		}
 		return true;
@@ -985,10 +1013,17 @@ public class ContentName extends GenericXMLEncodable implements XMLEncodable, Co
 		if (! (obj instanceof ContentName)) 
 			return false;
 		final ContentName other = (ContentName)obj;
-		if (other.count() != this.count())
+		int count = count();
+		if (other.count() != count)
 			return false;
-		for (int i=0; i < count(); ++i) {
-			if (!Arrays.equals(other.component(i), this.component(i)))
+		int [] ours = _prefixHashes;
+		int [] theirs = other._prefixHashes;
+		if ((null != ours) && (null != theirs) && (ours[count] != theirs[count]))
+			return false;
+		for (int i=count-1; i >= 0; --i) {
+			byte [] c = component(i);
+			byte [] oc = other.component(i);
+			if ((c != oc) && !Arrays.equals(oc, c))
 					return false;
 		}
 		return true;
@@ -996,12 +1031,42 @@ public class ContentName extends GenericXMLEncodable implements XMLEncodable, Co
 	
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		for (int i=0; i < count(); ++i) {
-			result = prime * result + Arrays.hashCode(component(i));			
+		return prefixHashes()[count()];
+	}
+
+	/**
+	 * @return the hashes of this name's prefixes; element n is the hash of the first
+	 * 	n components, and the array may be longer than count()+1. Not to be modified.
+	 */
+	protected int [] prefixHashes() {
+		int [] hashes = _prefixHashes;
+		if (null == hashes) {
+			final int prime = 31;
+			int count = count();
+			hashes = new int[count + 1];
+			hashes[0] = 1;
+			for (int i=0; i < count; ++i) {
+				hashes[i+1] = prime * hashes[i] + Arrays.hashCode(_components.get(i));
+			}
+			_prefixHashes = hashes;
 		}
-		return result;
+		return hashes;
+	}
+
+	/**
+	 * @return the hash of the first count components; the same as
+	 * 	cut(count).hashCode(), but cached
+	 */
+	public int prefixHash(int count) {
+		return prefixHashes()[count];
+	}
+
+	/**
+	 * @return Arrays.hashCode(component(i)), but cached
+	 */
+	public int componentHash(int i) {
+		int [] hashes = prefixHashes();
+		return hashes[i+1] - 31 * hashes[i];
 	}
 
 	/**
@@ -1125,7 +1190,7 @@ public class ContentName extends GenericXMLEncodable implements XMLEncodable, Co
 		}
 		if (componentCount == count())
 			return this;
-		return new ContentName(componentCount, this.components());
+		return prefix(componentCount);
 	}
 
 	/**
@@ -1141,7 +1206,7 @@ public class ContentName extends GenericXMLEncodable implements XMLEncodable, Co
 		}
 		
 		// else need to cut it
-		return new ContentName(offset, this.components());
+		return prefix(offset);
 	}
 	
 	/**
@@ -1215,7 +1280,7 @@ public class ContentName extends GenericXMLEncodable implements XMLEncodable, Co
 	}
 
 	public ContentName copy(int nameComponentCount) {
-		return new ContentName(nameComponentCount, this.components());
+		return prefix(nameComponentCount);
 	}
 
 	public int compareTo(ContentName o) {
@@ -1226,7 +1291,11 @@ public class ContentName extends GenericXMLEncodable implements XMLEncodable, Co
 		int len = (thisCount > oCount) ? thisCount : oCount;
 		int componentResult = 0;
 		for (int i=0; i < len; ++i) {
-			componentResult = DataUtils.compare(this.component(i), o.component(i));
+			byte [] c = this.component(i);
+			byte [] oc = o.component(i);
+			if (c == oc)
+				continue; // shared with a common parent
+			componentResult = DataUtils.compare(c, oc);
 			if (0 != componentResult)
 				return componentResult;
 		}
@@ -20,7 +20,7 @@ package org.ccnx.ccn.protocol;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.DigestOutputStream;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -34,7 +34,8 @@ import java.util.logging.Level;
 import org.ccnx.ccn.ContentVerifier;
 import org.ccnx.ccn.KeyManager;
 import org.ccnx.ccn.config.SystemConfiguration;
-import org.ccnx.ccn.impl.encoding.BinaryXMLCodec;
+import org.ccnx.ccn.impl.encoding.BinaryXMLBufferCodec;
+import org.ccnx.ccn.impl.encoding.BinaryXMLBufferDecoder;
 import org.ccnx.ccn.impl.encoding.CCNProtocolDTags;
 import org.ccnx.ccn.impl.encoding.GenericXMLEncodable;
 import org.ccnx.ccn.impl.encoding.XMLCodecFactory;
@@ -45,7 +46,6 @@ import org.ccnx.ccn.impl.security.crypto.CCNDigestHelper;
 import org.ccnx.ccn.impl.security.crypto.CCNSignatureHelper;
 import org.ccnx.ccn.impl.support.DataUtils;
 import org.ccnx.ccn.impl.support.Log;
-import org.ccnx.ccn.io.NullOutputStream;
 import org.ccnx.ccn.io.content.ContentDecodingException;
 import org.ccnx.ccn.io.content.ContentEncodingException;
 import org.ccnx.ccn.protocol.SignedInfo.ContentType;
@@ -66,8 +66,15 @@ public class ContentObject extends GenericXMLEncodable implements XMLEncodable,
 	 * Cache of the complete ContentObject's digest. Set when first calculated.
 	 * Used as the implicit last name component.
 	 */
-	protected byte [] _digest = null;
+	protected volatile byte [] _digest = null;
+	protected volatile ContentName _fullName = null;
 	protected Signature _signature; 
+	/**
+	 * The object's ccnb encoding, kept once the object is decoded or first encoded,
+	 * so that forwarding or storing it, or taking its digest, copies these bytes
+	 * rather than encoding it again. Cleared if the signature changes.
+	 */
+	protected volatile byte [] _encoding = null;
 	
 	/**
 	 * We don't specify a required publisher, and right now we don't enforce
@@ -328,7 +335,12 @@ public class ContentObject extends GenericXMLEncodable implements XMLEncodable,
 	 * @return Name of the content object, complete with the final implicit digest component.
 	 */
 	public ContentName fullName() {
-		return new ContentName(_name, digest());
+		ContentName fullName = _fullName;
+		if (null == fullName) {
+			fullName = new ContentName(_name, digest());
+			_fullName = fullName;
+		}
+		return fullName;
 	}
 
 	public final SignedInfo signedInfo() { return _signedInfo;}
@@ -354,6 +366,22 @@ public class ContentObject extends GenericXMLEncodable implements XMLEncodable,
 	 * @see org.ccnx.ccn.impl.encoding.XMLEncodable
 	 */
 	public void decode(XMLDecoder decoder) throws ContentDecodingException {
+		// Keep the whole encoding where the codec can hand it over, and decode
+		// the fields from that.
+		byte [] encoding = decoder.readEncodedElement(getElementLabel());
+		if (null != encoding) {
+			XMLDecoder elementDecoder = new BinaryXMLBufferDecoder();
+			elementDecoder.beginDecoding(ByteBuffer.wrap(encoding));
+			decodeElement(elementDecoder);
+		} else {
+			decodeElement(decoder);
+		}
+		_encoding = encoding;
+		_digest = null;
+		_fullName = null;
+	}
+
+	protected void decodeElement(XMLDecoder decoder) throws ContentDecodingException {
 		decoder.readStartElement(getElementLabel());
 
 		_signature = new Signature();
@@ -375,6 +403,9 @@ public class ContentObject extends GenericXMLEncodable implements XMLEncodable,
 	 * @see org.ccnx.ccn.impl.encoding.XMLEncodable
 	 */
 	public void encode(XMLEncoder encoder) throws ContentEncodingException {
+		byte [] encoding = _encoding;
+		if ((null != encoding) && encoder.writeEncodedElement(encoding))
+			return;
 		if (!validate()) {
 			throw new ContentEncodingException("Cannot encode " + this.getClass().getName() + ": field values missing.");
 		}
@@ -389,6 +420,38 @@ public class ContentObject extends GenericXMLEncodable implements XMLEncodable,
 		encoder.writeEndElement();   		
 	}
 
+	/**
+	 * Returns a copy of the cached encoding when asked for the binary codec.
+	 */
+	@Override
+	public byte [] encode(String codec) throws ContentEncodingException {
+		if (!BinaryXMLBufferCodec.isBinary((null == codec) ? XMLCodecFactory.getDefaultCodecName() : codec))
+			return super.encode(codec);
+		return wireEncoding().clone();
+	}
+
+	/**
+	 * @return the length of this object's ccnb encoding, which is kept for when it
+	 * 	is encoded
+	 */
+	public int encodedLength() throws ContentEncodingException {
+		return wireEncoding().length;
+	}
+
+	/**
+	 * Get this object's ccnb encoding, encoding it and keeping the result if we
+	 * haven't already.
+	 * @return the encoding; not to be modified
+	 */
+	protected byte [] wireEncoding() throws ContentEncodingException {
+		byte [] encoding = _encoding;
+		if (null == encoding) {
+			encoding = super.encode(BinaryXMLBufferCodec.codecName());
+			_encoding = encoding;
+		}
+		return encoding;
+	}
+
 	@Override
 	public long getElementLabel() { return CCNProtocolDTags.ContentObject; }
 
@@ -455,6 +518,9 @@ public class ContentObject extends GenericXMLEncodable implements XMLEncodable,
 				Log.fine(Log.FAC_SIGNING, "Setting signature to null on content object: " + name());
 		}
 		_signature = signature;
+		_encoding = null;
+		_digest = null;
+		_fullName = null;
 	}
 
 	public void sign(PrivateKey signingKey) throws InvalidKeyException, SignatureException {
@@ -743,7 +809,7 @@ public class ContentObject extends GenericXMLEncodable implements XMLEncodable,
 		// Do setup. Binary codec doesn't write a preamble or anything.
 		// If allow to pick, text encoder would sometimes write random stuff...
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		XMLEncoder encoder = XMLCodecFactory.getEncoder(BinaryXMLCodec.CODEC_NAME);
+		XMLEncoder encoder = XMLCodecFactory.getEncoder(BinaryXMLBufferCodec.CODEC_NAME);
 		encoder.beginEncoding(baos);
 
 		// We include the tags in what we verify, to allow routers to merely
@@ -762,22 +828,20 @@ public class ContentObject extends GenericXMLEncodable implements XMLEncodable,
 	}
 
 	/**
-	 * Encode this object and calculate the digest.
+	 * Calculate the digest of this object's encoding.
 	 */
 	protected byte[] calcDigest() {
 		MessageDigest md;
 		try {
 			md = MessageDigest.getInstance(CCNDigestHelper.DEFAULT_DIGEST_ALGORITHM);
-			DigestOutputStream dos = new DigestOutputStream(new NullOutputStream(), md);
-			encode(dos);
+			return md.digest(wireEncoding());
 		} catch (NoSuchAlgorithmException e) {
 			// Should never happen since we are using a default algorithm.
 			throw new RuntimeException(e);
 		} catch (ContentEncodingException e) {
-			// Should never happen since we are writing out to make a digest only.
+			// Should never happen since we are encoding to make a digest only.
 			throw new RuntimeException(e);
 		}
-		return md.digest();
 	}
 	
 	/**
@@ -786,9 +850,12 @@ public class ContentObject extends GenericXMLEncodable implements XMLEncodable,
 	 * Note: the value is cached, so subsequent calls are fast.
 	 */
 	public byte [] digest() {
-		if (_digest == null)
-			_digest = calcDigest();
-		return _digest;
+		byte [] digest = _digest;
+		if (null == digest) {
+			digest = calcDigest();
+			_digest = digest;
+		}
+		return digest;
 	}
 
 	public int compareTo(ContentObject o) {
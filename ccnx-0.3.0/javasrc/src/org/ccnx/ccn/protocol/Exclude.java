@@ -27,6 +27,7 @@ import org.ccnx.ccn.impl.encoding.XMLDecoder;
 import org.ccnx.ccn.impl.encoding.XMLEncodable;
 import org.ccnx.ccn.impl.encoding.XMLEncoder;
 import org.ccnx.ccn.impl.support.ByteArrayCompare;
+import org.ccnx.ccn.impl.support.DataUtils;
 import org.ccnx.ccn.io.content.ContentDecodingException;
 import org.ccnx.ccn.io.content.ContentEncodingException;
 
@@ -71,6 +72,35 @@ public class Exclude extends GenericXMLEncodable implements XMLEncodable,
 	}
 
 	protected ArrayList<Element> _values = new ArrayList<Element>();
+
+	/**
+	 * The filter's components in order, with the filler (if any) before each and
+	 * after the last, so that match() can binary search them. Made when first needed
+	 * and dropped whenever the filter changes.
+	 */
+	protected static class Index {
+		final byte [][] components;
+		final Filler [] fillers;
+
+		Index(ArrayList<Element> values) {
+			int count = 0;
+			for (Element ee : values) {
+				if (ee instanceof ExcludeComponent)
+					count++;
+			}
+			components = new byte[count][];
+			fillers = new Filler[count + 1];
+			int i = 0;
+			for (Element ee : values) {
+				if (ee instanceof ExcludeComponent)
+					components[i++] = ((ExcludeComponent)ee).body;
+				else
+					fillers[i] = (Filler)ee;
+			}
+		}
+	}
+
+	protected volatile Index _index = null;
 	
 	/**
 	 * @param values Must be a list of ExcludeElements - Components must be in increasing order
@@ -145,29 +175,40 @@ public class Exclude extends GenericXMLEncodable implements XMLEncodable,
 	 * @return true if this component would be excluded by the exclude filter
 	 */
 	public boolean match(byte [] component) {
-		Filler lastFiller = null;
-		synchronized (_values) {
-			for (Element ee : _values) {
-				if (ee instanceof ExcludeComponent) {
-					ExcludeComponent ec = (ExcludeComponent) ee;
-					int res = ec.compareTo(component);
-					if (res == 0) {
-						// we exactly matched a component in the filter
-						return true;
-					} else if (res > 0) {
-						// we reached a component in the filter that is lexicographically after than the one
-						// we're looking for so check if there was a filler between the last component
-						// we saw and this one.
-						return lastFiller != null && lastFiller.match(component);
-					}
-					lastFiller = null;
-				} else {
-					// The element is not a component - so track what filler it was.
-					lastFiller = (Filler) ee;
+		Index index = index();
+		byte [][] components = index.components;
+		int low = 0;
+		int high = components.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int res = DataUtils.compare(components[mid], component);
+			if (res < 0) {
+				low = mid + 1;
+			} else if (res > 0) {
+				high = mid - 1;
+			} else {
+				// we exactly matched a component in the filter
+				return true;
+			}
+		}
+		// Otherwise it falls between two components (or before the first or after the
+		// last); it is excluded if there is a filler there that matches it.
+		Filler filler = index.fillers[low];
+		return filler != null && filler.match(component);
+	}
+
+	protected Index index() {
+		Index index = _index;
+		if (null == index) {
+			synchronized (_values) {
+				index = _index;
+				if (null == index) {
+					index = new Index(_values);
+					_index = index;
 				}
 			}
 		}
-		return lastFiller != null && lastFiller.match(component);
+		return index;
 	}
 
 	/**
@@ -191,6 +232,7 @@ public class Exclude extends GenericXMLEncodable implements XMLEncodable,
 		Element ee;
 		Filler lastFiller = null;
 		synchronized (_values) {
+			_index = null;
 			for(;i<omissions.length && j<_values.size();) {
 				omission = omissions[i];
 				ee = _values.get(j);
@@ -246,6 +288,7 @@ public class Exclude extends GenericXMLEncodable implements XMLEncodable,
 
 		Filler lastFiller = null;
 		synchronized (_values) {
+			_index = null;
 			int res = -2;
 			int removes = 0;
 			for (Element ee : _values) {
@@ -301,6 +344,7 @@ public class Exclude extends GenericXMLEncodable implements XMLEncodable,
 		decoder.readStartElement(getElementLabel());
 		
 		synchronized (_values) {
+			_index = null;
 			boolean component;
 			boolean any = false;
 			while ((component = decoder.peekStartElement(CCNProtocolDTags.Component)) || 
@@ -20,9 +20,7 @@ package org.ccnx.ccn.protocol;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Random;
-import java.util.logging.Level;
 
-import org.ccnx.ccn.TrustManager;
 import org.ccnx.ccn.impl.encoding.CCNProtocolDTags;
 import org.ccnx.ccn.impl.encoding.GenericXMLEncodable;
 import org.ccnx.ccn.impl.encoding.XMLDecoder;
@@ -78,6 +76,11 @@ public class Interest extends GenericXMLEncodable implements XMLEncodable, Compa
 	protected Integer _scope;
 	protected byte[] _nonce;
 
+	/**
+	 * Made from the fields above when first needed; dropped if any of them is set.
+	 */
+	protected transient volatile InterestMatcher _matcher = null;
+
 	public long userTime;
 	
 	/**
@@ -116,19 +119,19 @@ public class Interest extends GenericXMLEncodable implements XMLEncodable, Compa
 	public Interest() {} // for use by decoders
 
 	public ContentName name() { return _name; }
-	public void name(ContentName name) { _name = name; }
+	public void name(ContentName name) { _name = name; _matcher = null; }
 	
 	public Integer maxSuffixComponents() { return _maxSuffixComponents; }
-	public void maxSuffixComponents(Integer maxSuffixComponents) { _maxSuffixComponents = maxSuffixComponents; }
+	public void maxSuffixComponents(Integer maxSuffixComponents) { _maxSuffixComponents = maxSuffixComponents; _matcher = null; }
 	
 	public Integer minSuffixComponents() { return _minSuffixComponents; }
-	public void minSuffixComponents(Integer minSuffixComponents) { _minSuffixComponents = minSuffixComponents; }
+	public void minSuffixComponents(Integer minSuffixComponents) { _minSuffixComponents = minSuffixComponents; _matcher = null; }
 	
 	public PublisherID publisherID() { return _publisher; }
-	public void publisherID(PublisherID publisherID) { _publisher = publisherID; }
+	public void publisherID(PublisherID publisherID) { _publisher = publisherID; _matcher = null; }
 	
 	public Exclude exclude() { return _exclude; }
-	public void exclude(Exclude exclude) { _exclude = exclude; }
+	public void exclude(Exclude exclude) { _exclude = exclude; _matcher = null; }
 	
 	public Integer childSelector() { return _childSelector;}
 	public void childSelector(int childSelector) { _childSelector = childSelector; }
@@ -158,13 +161,25 @@ public class Interest extends GenericXMLEncodable implements XMLEncodable, Compa
 	 */
 	public byte[] nonce() { return _nonce; }
 
+	/**
+	 * @return this Interest's selectors worked out for fast matching
+	 */
+	public InterestMatcher matcher() {
+		InterestMatcher matcher = _matcher;
+		if (null == matcher) {
+			matcher = new InterestMatcher(this);
+			_matcher = matcher;
+		}
+		return matcher;
+	}
+
 	/**
 	 * Determine whether a piece of content matches the Interest
 	 * @param test
 	 * @return true if the test data packet matches the Interest
 	 */
 	public boolean matches(ContentObject test) {
-		return matches(test, (null != test.signedInfo()) ? test.signedInfo().getPublisherKeyID() : null);
+		return matcher().matches(test);
 	}
 
 	/**
@@ -178,83 +193,23 @@ public class Interest extends GenericXMLEncodable implements XMLEncodable, Compa
 	 * @return true if the content/publisherPublicKeyDigest matches the Interest
 	 */
 	public boolean matches(ContentName name, PublisherPublicKeyDigest resultPublisherKeyID) {
-		if (null == name() || null == name)
-			return false; // null name() should not happen, null arg can
 		// to get interest that matches everything, should
 		// use / (ROOT)
-		if (isPrefixOf(name)) {
-			return internalMatch(name, false, resultPublisherKeyID);
-		}
-		return false;
+		return matcher().matches(name, resultPublisherKeyID);
 	}
 	
 	/**
 	 * Determine whether a piece of content matches this Interest.
-	 * Note: this computes the digest for the ContentObject, to know the full name. This is
-	 * computationally expensive.
+	 * Note: this computes the digest for the ContentObject, to know the full name, but
+	 * only when the rest of the name already matches.
 	 * @see Interest#matches(ContentName, PublisherPublicKeyDigest)
-	 * TODO: compute digests once when ContentObjects are received into the machine, and pass them
-	 * around with the ContentObjects.
 	 * 
 	 * @param co - ContentObject
 	 * @param resultPublisherKeyID
 	 * @return true if the content & publisherID match the Interest
 	 */
 	public boolean matches(ContentObject co, PublisherPublicKeyDigest resultPublisherKeyID) {
-		if (null == name() || null == co)
-			return false; // null name() should not happen, null arg can
-		// to get interest that matches everything, should
-		// use / (ROOT)
-		boolean digest = co.name().count()+1 == name().count();
-		ContentName name = digest ? co.fullName() : co.name();
-		if (isPrefixOf(name)) {
-			return internalMatch(name, digest, resultPublisherKeyID);
-		}
-		return false;
-	}
-	
-	// TODO We need to beef this up to deal with the more complex interest specs.
-	private boolean internalMatch(ContentName name, boolean digestIncluded,
-			PublisherPublicKeyDigest resultPublisherKeyID) {
-		if (null != maxSuffixComponents() || null != minSuffixComponents()) {
-			// we know our specified name is a prefix of the result. 
-			// the number of additional components must be this value
-			int nameCount = name.count();
-			int lengthDiff = nameCount + (digestIncluded?0:1) - name().count();
-
-			if (null != maxSuffixComponents() && lengthDiff > maxSuffixComponents()) {
-				//Log.fine("Interest match failed: " + lengthDiff + " more than the " + maxSuffixComponents() + " components between expected " +
-				//		name() + " and tested " + name);
-				if(Log.isLoggable(Level.FINE))
-					Log.fine("Interest match failed: {0} more than the {1} components between expected {2} and tested {3}",lengthDiff, maxSuffixComponents(), name(), name);
-				return false;
-			}
-			if (null != minSuffixComponents() && lengthDiff < minSuffixComponents()) {
-				//Log.fine("Interest match failed: " + lengthDiff + " less than the " + minSuffixComponents() + " components between expected " +
-				//		name() + " and tested " + name);
-				if(Log.isLoggable(Level.FINE))
-					Log.fine("Interest match failed: {0} less than the {1} components between expected {2} and tested {3}",lengthDiff, minSuffixComponents(), name(), name);
-				return false;
-			}
-		}
-		if (null != exclude()) {
-			if (exclude().match(name.component(name().count()))) {
-				Log.finest("Interest match failed. {0} has been excluded", name);
-				return false;
-			}
-		}
-		if (null != publisherID()) {
-			if (null == resultPublisherKeyID) {
-				Log.finest("Interest match failed, target {0} doesn't specify a publisherID and we require a particular one.", name);
-				return false; 
-			}
-			// Should this be more general?
-			// TODO DKS handle issuer
-			Log.finest("Interest match handed off to trust manager for name: {0}", name);
-			return TrustManager.getTrustManager().matchesRole(publisherID(), resultPublisherKeyID);
-		} 
-		Log.finest("Interest match succeeded to name: {0}", name);
-		return true;
+		return matcher().matches(co, resultPublisherKeyID);
 	}
 	
 	/**
@@ -465,6 +420,7 @@ public class Interest extends GenericXMLEncodable implements XMLEncodable, Compa
 	public void decode(XMLDecoder decoder) throws ContentDecodingException {
 		decoder.readStartElement(getElementLabel());
 
+		_matcher = null;
 		_name = new ContentName();
 		_name.decode(decoder);
 		
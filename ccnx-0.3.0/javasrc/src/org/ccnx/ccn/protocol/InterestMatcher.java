@@ -0,0 +1,134 @@
+/*
+ * Part of the CCNx Java Library.
+ *
+ * Copyright (C) 2008, 2009, 2010 Palo Alto Research Center, Inc.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 2.1
+ * as published by the Free Software Foundation.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details. You should have received
+ * a copy of the GNU Lesser General Public License along with this library;
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin Street,
+ * Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.ccnx.ccn.protocol;
+
+import java.util.Arrays;
+
+import org.ccnx.ccn.TrustManager;
+
+/**
+ * An Interest's selectors, worked out once so that content can be tested against
+ * them quickly. Cheap tests come first: the difference in name lengths against the
+ * suffix bounds, then the hash of the name's prefix, and only then the components
+ * themselves, the exclude filter (binary searched) and the publisher.
+ *
+ * Get one with Interest.matcher(); it is made again if the Interest is changed.
+ */
+public class InterestMatcher {
+
+	protected final ContentName _prefix;
+	protected final int _prefixCount;
+	protected final int _prefixHash;
+	protected final int _stemHash; // all but our last component, which may be a digest
+	protected final int _minSuffixComponents;
+	protected final int _maxSuffixComponents;
+	protected final Exclude _exclude;
+	protected final PublisherID _publisher;
+	protected final byte [] _publisherDigest; // for a KEY publisher, the key's digest
+
+	public InterestMatcher(Interest interest) {
+		_prefix = interest.name();
+		_prefixCount = (null == _prefix) ? 0 : _prefix.count();
+		_prefixHash = (null == _prefix) ? 0 : _prefix.prefixHash(_prefixCount);
+		_stemHash = (_prefixCount > 0) ? _prefix.prefixHash(_prefixCount - 1) : 0;
+		// A name shorter than ours can't match whatever the bounds
+		_minSuffixComponents = (null == interest.minSuffixComponents()) ? 0 : interest.minSuffixComponents();
+		_maxSuffixComponents = (null == interest.maxSuffixComponents()) ? Integer.MAX_VALUE : interest.maxSuffixComponents();
+		_exclude = interest.exclude();
+		_publisher = interest.publisherID();
+		_publisherDigest = ((null != _publisher) && (PublisherID.PublisherType.KEY == _publisher.type())) ? _publisher.id() : null;
+	}
+
+	/**
+	 * @see Interest#matches(ContentObject)
+	 */
+	public boolean matches(ContentObject co) {
+		// Only look at the signed info if we have a publisher to compare it with.
+		if ((null == _publisher) || (null == co))
+			return matches(co, null);
+		SignedInfo signedInfo = co.signedInfo();
+		return matches(co, (null != signedInfo) ? signedInfo.getPublisherKeyID() : null);
+	}
+
+	/**
+	 * @see Interest#matches(ContentObject, PublisherPublicKeyDigest)
+	 */
+	public boolean matches(ContentObject co, PublisherPublicKeyDigest resultPublisherKeyID) {
+		if ((null == _prefix) || (null == co))
+			return false;
+		ContentName name = co.name();
+		if (name.count() + 1 != _prefixCount)
+			return matches(name, resultPublisherKeyID);
+
+		// Our last component can only match the object's digest, which isn't in its name.
+		// Only take the digest once everything else agrees.
+		if ((_minSuffixComponents > 0) || !prefixMatches(name, _prefixCount - 1, _stemHash))
+			return false;
+		if (!Arrays.equals(_prefix.component(_prefixCount - 1), co.digest()))
+			return false;
+		return excludeMatches(null) && publisherMatches(resultPublisherKeyID);
+	}
+
+	/**
+	 * @see Interest#matches(ContentName, PublisherPublicKeyDigest)
+	 */
+	public boolean matches(ContentName name, PublisherPublicKeyDigest resultPublisherKeyID) {
+		return matchesName(name) && publisherMatches(resultPublisherKeyID);
+	}
+
+	/**
+	 * Test a name without its digest component against everything but the publisher.
+	 * @param name name of a content object missing its implied digest component
+	 * @return true if content with that name would match if its publisher did
+	 */
+	public boolean matchesName(ContentName name) {
+		if ((null == _prefix) || (null == name))
+			return false;
+		// Count the implied digest as one of the suffix components
+		int suffixComponents = name.count() + 1 - _prefixCount;
+		if ((suffixComponents < _minSuffixComponents) || (suffixComponents > _maxSuffixComponents))
+			return false;
+		return prefixMatches(name, _prefixCount, _prefixHash) && excludeMatches(name.component(_prefixCount));
+	}
+
+	protected boolean prefixMatches(ContentName name, int count, int hash) {
+		if (count > name.count())
+			return false;
+		if ((count > 0) && (name.prefixHash(count) != hash))
+			return false;
+		return _prefix.isPrefixOf(name, count);
+	}
+
+	/**
+	 * @param component the component after our prefix, or null if it is the implied digest
+	 */
+	protected boolean excludeMatches(byte [] component) {
+		return (null == _exclude) || !_exclude.match(component);
+	}
+
+	protected boolean publisherMatches(PublisherPublicKeyDigest resultPublisherKeyID) {
+		if (null == _publisher)
+			return true;
+		if (null == resultPublisherKeyID)
+			return false;
+		// A KEY publisher names exactly one key; anything else is up to the trust manager
+		if (null != _publisherDigest)
+			return Arrays.equals(_publisherDigest, resultPublisherKeyID.digest());
+		return TrustManager.getTrustManager().matchesRole(_publisher, resultPublisherKeyID);
+	}
+}
@@ -17,12 +17,16 @@
 
 package org.ccnx.ccn.protocol;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Level;
 
 import org.ccnx.ccn.config.SystemConfiguration;
+import org.ccnx.ccn.impl.encoding.BinaryXMLBufferCodec;
+import org.ccnx.ccn.impl.encoding.BinaryXMLBufferDecoder;
 import org.ccnx.ccn.impl.encoding.CCNProtocolDTags;
 import org.ccnx.ccn.impl.encoding.GenericXMLEncodable;
 import org.ccnx.ccn.impl.encoding.XMLDecoder;
@@ -36,6 +40,17 @@ import org.ccnx.ccn.io.content.ContentEncodingException;
 public class WirePacket extends GenericXMLEncodable implements XMLEncodable {
 	
 	protected List<GenericXMLEncodable> _contents = null; 
+	/**
+	 * The contents by type, kept as they are added so interests() and data()
+	 * need not build new lists on every call.
+	 */
+	protected List<Interest> _interests = new ArrayList<Interest>();
+	protected List<ContentObject> _data = new ArrayList<ContentObject>();
+
+	/**
+	 * Decoder reused by decode(ByteBuffer), created on first use.
+	 */
+	protected BinaryXMLBufferDecoder _decoder = null;
 
 	public WirePacket() {
 		// Empty packet won't generate NullPointerException
@@ -43,33 +58,58 @@ public class WirePacket extends GenericXMLEncodable implements XMLEncodable {
 	}; // for use by decoders
 
 	public WirePacket(List<GenericXMLEncodable> contents) {
-		_contents = contents;
+		_contents = new ArrayList<GenericXMLEncodable>(contents.size());
+		for (GenericXMLEncodable item : contents) {
+			if (item instanceof Interest) {
+				add((Interest)item);
+			} else if (item instanceof ContentObject) {
+				add((ContentObject)item);
+			} else {
+				_contents.add(item); // fails validate()
+			}
+		}
 	}
 	
 	public WirePacket(GenericXMLEncodable contents) {
-		_contents = new ArrayList<GenericXMLEncodable>(1);
-		_contents.add(contents);
+		this(Collections.singletonList(contents));
 	}
 	
 	public void clear() {
 		_contents.clear();
+		_interests.clear();
+		_data.clear();
 	}
 	
+	/**
+	 * Decode a received packet, reusing this packet's decoder and lists. Unlike
+	 * the generic method this does not format a debugging dump of every buffer.
+	 * The buffer may be direct; its position is not changed.
+	 */
+	@Override
+	public void decode(ByteBuffer buf) throws ContentDecodingException {
+		if (null == _decoder) {
+			_decoder = new BinaryXMLBufferDecoder();
+		}
+		_decoder.beginDecoding(buf);
+		decode(_decoder);
+		_decoder.endDecoding();
+	}
+
 	public void decode(XMLDecoder decoder) throws ContentDecodingException {
 		boolean done = false;
-		_contents = new ArrayList<GenericXMLEncodable>();
+		clear();
 		
 		while (!done) {
 			if (decoder.peekStartElement(CCNProtocolDTags.Interest)) {
 				Interest interest = new Interest();
 				interest.decode(decoder);
-				_contents.add(interest);
+				add(interest);
 			} else if (decoder.peekStartElement(CCNProtocolDTags.ContentObject)) {
 				ContentObject data = new ContentObject();
 				data.decode(decoder);
 				if( Log.isLoggable(Level.FINEST) )
 					SystemConfiguration.logObject(Level.FINEST, "packetDecode", data);
-				_contents.add(data);
+				add(data);
 			} else {
 				done = true;
 				if (_contents.size() == 0) {
@@ -80,6 +120,14 @@ public class WirePacket extends GenericXMLEncodable implements XMLEncodable {
 		Log.finest("Finished decoding wire packet.");
 	}
 
+	/**
+	 * Packets always go out as ccnb, whatever the default codec.
+	 */
+	@Override
+	public byte [] encode() throws ContentEncodingException {
+		return encode(BinaryXMLBufferCodec.codecName());
+	}
+
 	@Override
 	public void encode(XMLEncoder encoder) throws ContentEncodingException {
 		if (!validate()) {
@@ -96,13 +144,8 @@ public class WirePacket extends GenericXMLEncodable implements XMLEncodable {
 		if (_contents.size() < 1) {
 			return false;
 		}
-		for (Iterator<GenericXMLEncodable> iterator = _contents.iterator(); iterator.hasNext();) {
-			GenericXMLEncodable item = (GenericXMLEncodable) iterator.next();
-			if ( ! (item instanceof Interest || item instanceof ContentObject) )  {
-				return false;
-			}
-		}
-		return true;
+		// Anything else is only there if the list constructor was given it.
+		return (_contents.size() == _interests.size() + _data.size());
 	}
 	
 	@Override
@@ -112,32 +155,28 @@ public class WirePacket extends GenericXMLEncodable implements XMLEncodable {
 	
 	public void add(ContentObject data) {
 		_contents.add(data);
+		_data.add(data);
 	}
 	
 	public void add(Interest interest) {
 		_contents.add(interest);
+		_interests.add(interest);
 	}
 	
+	/**
+	 * @return the interests in this packet. The list belongs to the packet and is
+	 * 	emptied by clear() or the next decode; copy it to keep it.
+	 */
 	public List<Interest> interests() {
-		List<Interest> result = new ArrayList<Interest>(_contents.size());
-		for (Iterator<GenericXMLEncodable> iterator = _contents.iterator(); iterator.hasNext();) {
-			GenericXMLEncodable item = iterator.next();
-			if (item instanceof Interest)  {
-				result.add((Interest)item);
-			}
-		}
-		return result;
+		return _interests;
 	}
 
+	/**
+	 * @return the content objects in this packet. The list belongs to the packet and is
+	 * 	emptied by clear() or the next decode; copy it to keep it.
+	 */
 	public List<ContentObject> data() {
-		List<ContentObject> result = new ArrayList<ContentObject>(_contents.size());
-		for (Iterator<GenericXMLEncodable> iterator = _contents.iterator(); iterator.hasNext();) {
-			GenericXMLEncodable item = iterator.next();
-			if (item instanceof ContentObject)  {
-				result.add((ContentObject)item);
-			}
-		}
-		return result;
+		return _data;
 	}
 
 }
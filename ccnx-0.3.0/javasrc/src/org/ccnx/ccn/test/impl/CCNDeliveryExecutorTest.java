@@ -0,0 +1,140 @@
+/**
+ * A CCNx library test.
+ *
+ * Copyright (C) 2008, 2009, 2010 Palo Alto Research Center, Inc.
+ *
+ * This work is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License version 2 as published by the
+ * Free Software Foundation.
+ * This work is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details. You should have received a copy of the GNU General Public
+ * License along with this program; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+
+package org.ccnx.ccn.test.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ccnx.ccn.impl.CCNDeliveryExecutor;
+import org.junit.Test;
+
+/**
+ * Test that each delivery mode runs a listener's deliveries one at a time, without
+ * losing any requested while one runs, and counts what is queued.
+ */
+public class CCNDeliveryExecutorTest {
+
+	static final int TASKS = 8;
+	static final int REQUESTS = 2000;
+
+	/**
+	 * Counts requests and the runs that picked them up, and notices overlapping runs.
+	 */
+	static class Counter extends CCNDeliveryExecutor.SerialTask {
+		AtomicInteger requested = new AtomicInteger(0);
+		AtomicInteger seen = new AtomicInteger(0);
+		AtomicInteger running = new AtomicInteger(0);
+		volatile boolean overlapped = false;
+
+		@Override
+		protected void runSerially() {
+			if (running.incrementAndGet() > 1)
+				overlapped = true;
+			seen.set(requested.get());
+			Thread.yield();
+			running.decrementAndGet();
+		}
+	}
+
+	void testMode(String mode) throws Exception {
+		final CCNDeliveryExecutor executor = CCNDeliveryExecutor.create(mode, 4);
+		final Counter [] counters = new Counter[TASKS];
+		for (int i = 0; i < TASKS; ++i)
+			counters[i] = new Counter();
+		Thread [] requesters = new Thread[4];
+		for (int t = 0; t < requesters.length; ++t) {
+			requesters[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < REQUESTS; ++i) {
+						Counter c = counters[i % TASKS];
+						c.requested.incrementAndGet();
+						executor.execute(c);
+					}
+				}
+			};
+			requesters[t].start();
+		}
+		for (Thread t : requesters)
+			t.join();
+		long deadline = System.currentTimeMillis() + 10000;
+		while ((executor.queueDepth() > 0) || (executor.activeCount() > 0)) {
+			assertTrue("Deliveries still queued", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		for (Counter c : counters) {
+			assertFalse("Overlapping deliveries in mode " + mode, c.overlapped);
+			// The last run started after the last request
+			assertEquals(c.requested.get(), c.seen.get());
+		}
+		assertTrue(executor.maxQueueDepth() <= TASKS);
+		executor.shutdown();
+	}
+
+	@Test
+	public void testPool() throws Exception {
+		testMode(CCNDeliveryExecutor.MODE_POOL);
+	}
+
+	@Test
+	public void testVirtual() throws Exception {
+		// Falls back to the pool where there are no virtual threads
+		testMode(CCNDeliveryExecutor.MODE_VIRTUAL);
+	}
+
+	@Test
+	public void testInline() throws Exception {
+		testMode(CCNDeliveryExecutor.MODE_INLINE);
+	}
+
+	@Test
+	public void testQueueDepth() throws Exception {
+		CCNDeliveryExecutor executor = CCNDeliveryExecutor.create(CCNDeliveryExecutor.MODE_POOL, 1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(1);
+		CCNDeliveryExecutor.SerialTask blocker = new CCNDeliveryExecutor.SerialTask() {
+			protected void runSerially() {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {}
+			}
+		};
+		executor.execute(blocker);
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		Counter [] waiting = new Counter[3];
+		for (int i = 0; i < waiting.length; ++i) {
+			waiting[i] = new Counter();
+			executor.execute(waiting[i]);
+			executor.execute(waiting[i]); // already queued: not counted again
+		}
+		assertEquals(1, executor.activeCount());
+		assertEquals(3, executor.queueDepth());
+		release.countDown();
+		long deadline = System.currentTimeMillis() + 5000;
+		while ((executor.queueDepth() > 0) || (executor.activeCount() > 0)) {
+			assertTrue("Deliveries still queued", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		executor.shutdown();
+	}
+}
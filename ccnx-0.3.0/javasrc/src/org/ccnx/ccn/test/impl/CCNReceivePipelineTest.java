@@ -0,0 +1,93 @@
+/**
+ * A CCNx library test.
+ *
+ * Copyright (C) 2008, 2009 Palo Alto Research Center, Inc.
+ *
+ * This work is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License version 2 as published by the
+ * Free Software Foundation.
+ * This work is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details. You should have received a copy of the GNU General Public
+ * License along with this program; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+
+package org.ccnx.ccn.test.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.ccnx.ccn.impl.CCNReceivePipeline;
+import org.ccnx.ccn.protocol.ContentName;
+import org.ccnx.ccn.protocol.Interest;
+import org.ccnx.ccn.protocol.WirePacket;
+import org.junit.Test;
+
+/**
+ * Test that the receive pipeline delivers everything received for a name in the
+ * order it was received, while decoding in parallel.
+ */
+public class CCNReceivePipelineTest {
+
+	static final int NAMES = 8;
+	static final int PACKETS = 500;
+
+	/**
+	 * Records the order of deliveries rather than handing them to a network manager.
+	 * Interests carry their sequence number in maxSuffixComponents.
+	 */
+	static class RecordingPipeline extends CCNReceivePipeline {
+		HashMap<ContentName, List<Integer>> delivered = new HashMap<ContentName, List<Integer>>();
+		CountDownLatch done;
+
+		RecordingPipeline(int threads, int count) {
+			super(null, threads);
+			done = new CountDownLatch(count);
+		}
+
+		@Override
+		protected void deliver(Interest interest) {
+			synchronized (delivered) {
+				List<Integer> seen = delivered.get(interest.name());
+				if (null == seen) {
+					seen = new ArrayList<Integer>();
+					delivered.put(interest.name(), seen);
+				}
+				seen.add(interest.maxSuffixComponents());
+			}
+			done.countDown();
+		}
+	}
+
+	@Test
+	public void testPerNameOrdering() throws Exception {
+		RecordingPipeline pipeline = new RecordingPipeline(4, NAMES * PACKETS);
+		ContentName base = ContentName.fromNative("/test/pipeline");
+		for (int seq = 0; seq < PACKETS; ++seq) {
+			for (int n = 0; n < NAMES; ++n) {
+				Interest interest = new Interest(ContentName.fromNative(base, "name" + n));
+				interest.maxSuffixComponents(seq);
+				pipeline.receive(new WirePacket(interest).encode());
+			}
+		}
+		assertTrue("Not all packets delivered", pipeline.done.await(30, TimeUnit.SECONDS));
+		pipeline.shutdown();
+
+		assertEquals(NAMES, pipeline.delivered.size());
+		for (List<Integer> seen : pipeline.delivered.values()) {
+			assertEquals(PACKETS, seen.size());
+			for (int seq = 0; seq < PACKETS; ++seq) {
+				assertEquals(Integer.valueOf(seq), seen.get(seq));
+			}
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ * A CCNx library test.
+ *
+ * Copyright (C) 2008, 2009 Palo Alto Research Center, Inc.
+ *
+ * This work is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License version 2 as published by the
+ * Free Software Foundation.
+ * This work is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details. You should have received a copy of the GNU General Public
+ * License along with this program; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+
+package org.ccnx.ccn.test.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import org.ccnx.ccn.impl.CCNSendQueue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test that datagrams queued by several senders all go out, each sender's in order.
+ */
+public class CCNSendQueueTest {
+
+	static final int SENDERS = 4;
+	static final int PACKETS = 200;
+
+	DatagramChannel _in;
+	DatagramChannel _out;
+
+	class LoopbackQueue extends CCNSendQueue {
+		LoopbackQueue() { super(null); }
+		@Override
+		protected DatagramChannel channel() { return _out; }
+		@Override
+		protected FileOutputStream tap() { return null; }
+	}
+
+	@Before
+	public void openChannels() throws Exception {
+		_in = DatagramChannel.open();
+		_in.socket().setReceiveBufferSize(1024 * 1024);
+		_in.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+		_in.configureBlocking(false);
+		_out = DatagramChannel.open();
+		_out.connect(new InetSocketAddress("127.0.0.1", _in.socket().getLocalPort()));
+		_out.configureBlocking(false);
+	}
+
+	@After
+	public void closeChannels() throws Exception {
+		_in.close();
+		_out.close();
+	}
+
+	@Test
+	public void testOrderedDelivery() throws Exception {
+		final CCNSendQueue queue = new LoopbackQueue();
+		Thread [] senders = new Thread[SENDERS];
+		for (int s = 0; s < SENDERS; ++s) {
+			final byte sender = (byte)s;
+			senders[s] = new Thread() {
+				public void run() {
+					for (int i = 0; i < PACKETS; ++i) {
+						queue.send(new byte [] { sender, (byte)(i >> 8), (byte)i });
+					}
+				}
+			};
+			senders[s].start();
+		}
+
+		int [] next = new int[SENDERS];
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		long deadline = System.currentTimeMillis() + 10000;
+		for (int received = 0; received < SENDERS * PACKETS; ++received) {
+			buffer.clear();
+			while (null == _in.receive(buffer)) {
+				assertTrue("Timed out after " + received + " packets", System.currentTimeMillis() < deadline);
+				Thread.sleep(1);
+			}
+			assertEquals(3, buffer.position());
+			int sender = buffer.get(0);
+			int seq = ((buffer.get(1) & 0xff) << 8) | (buffer.get(2) & 0xff);
+			assertEquals("Out of order from sender " + sender, next[sender], seq);
+			next[sender]++;
+		}
+		for (Thread t : senders) {
+			t.join();
+		}
+		queue.shutdown();
+		for (int s = 0; s < SENDERS; ++s) {
+			assertEquals(PACKETS, next[s]);
+		}
+	}
+}
@@ -18,6 +18,7 @@
 package org.ccnx.ccn.test.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
@@ -648,6 +649,70 @@ public class InterestTableTest extends CCNTestBase {
 		runRemovesNextOrLast(InterestType.Last);
 	}
 	
+	@Test
+	public void testDigestComponent() throws InvalidKeyException, MalformedContentNameStringException, SignatureException, ConfigurationException {
+		setID(0);
+		ContentObject co = getContentObject(ContentName.fromNative(abc));
+		ContentObject other = getContentObject(ContentName.fromNative(abc), 5);
+		InterestTable<Integer> table = new InterestTable<Integer>();
+		table.add(new Interest(co.fullName()), new Integer(1));
+		table.add(new Interest(ContentName.fromNative(ab)), new Integer(2));
+		
+		// An interest naming the digest matches only the object with that digest
+		assertEquals(new Integer(1), table.getValue(co));
+		assertEquals(2, table.getMatches(co).size());
+		assertEquals(new Integer(2), table.getValue(other));
+		assertEquals(1, table.getMatches(other).size());
+		
+		assertEquals(new Integer(1), table.removeValue(co));
+		sizes(table, 1, 1);
+		assertEquals(new Integer(2), table.getValue(co));
+	}
+	
+	@Test
+	public void testConcurrentAccess() throws Exception {
+		final InterestTable<Integer> table = new InterestTable<Integer>();
+		final ContentName base = ContentName.fromNative("/concurrent");
+		final int writers = 4;
+		final int perWriter = 500;
+		final ContentObject target = getContentObject(ContentName.fromNative(base, "w0"));
+		final boolean [] failed = new boolean[1];
+		Thread [] threads = new Thread[2 * writers];
+		for (int w = 0; w < writers; w++) {
+			final int id = w;
+			threads[w] = new Thread() {
+				public void run() {
+					ContentName name = ContentName.fromNative(base, "w" + id);
+					for (int i = 0; i < perWriter; i++) {
+						Interest interest = new Interest(name);
+						table.add(interest, new Integer(i));
+						if ((i % 2) == 1)
+							table.remove(interest, new Integer(i));
+					}
+				}
+			};
+			threads[writers + w] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < perWriter; i++) {
+							table.getMatches(target);
+							table.values();
+						}
+					} catch (RuntimeException e) {
+						failed[0] = true;
+					}
+				}
+			};
+		}
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads)
+			t.join();
+		assertFalse(failed[0]);
+		sizes(table, writers * perWriter / 2, writers);
+		assertEquals(perWriter / 2, table.getMatches(target).size());
+	}
+	
 	@Test
 	public void testLRU() throws MalformedContentNameStringException, InvalidKeyException, SignatureException, ConfigurationException {
 		InterestTable<Integer> table = new InterestTable<Integer>();
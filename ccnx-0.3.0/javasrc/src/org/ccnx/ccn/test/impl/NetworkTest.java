@@ -18,12 +18,16 @@
 package org.ccnx.ccn.test.impl;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import org.ccnx.ccn.CCNHandle;
 import org.ccnx.ccn.CCNInterestListener;
 import org.ccnx.ccn.config.ConfigurationException;
+import org.ccnx.ccn.config.SystemConfiguration;
 import org.ccnx.ccn.io.CCNWriter;
 import org.ccnx.ccn.profiles.SegmentationProfile;
 import org.ccnx.ccn.protocol.ContentName;
@@ -175,6 +179,37 @@ public class NetworkTest {
 		Assert.assertTrue(gotData);
 	}
 	
+	@Test
+	public void testGetAsync() throws Exception {
+		CCNWriter writer = new CCNWriter(testPrefix, putLibrary);
+		writer.disableFlowControl();
+
+		ArrayList<Interest> interests = new ArrayList<Interest>();
+		for (int i = 0; i < 10; i++) {
+			ContentName testName = ContentName.fromNative(testPrefix, "async" + i);
+			writer.put(testName, "async" + i);
+			interests.add(new Interest(testName));
+		}
+		// Nobody puts this one, so it times out
+		interests.add(new Interest(ContentName.fromNative(testPrefix, "asyncMissing")));
+		Thread.sleep(80);
+
+		List<ContentObject> results = getLibrary.getAll(interests, 1000).get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+		Assert.assertEquals(interests.size(), results.size());
+		for (int i = 0; i < 10; i++) {
+			ContentObject co = results.get(i);
+			Assert.assertFalse(co == null);
+			ContentName nameBase = SegmentationProfile.segmentRoot(co.name());
+			Assert.assertEquals("async" + i, nameBase.stringComponent(nameBase.count()-1));
+		}
+		Assert.assertNull(results.get(10));
+
+		CompletableFuture<ContentObject> cancelled = getLibrary.getAsync(
+				new Interest(ContentName.fromNative(testPrefix, "asyncCancelled")), SystemConfiguration.NO_TIMEOUT);
+		Assert.assertTrue(cancelled.cancel(false));
+		Assert.assertTrue(cancelled.isCancelled());
+	}
+
 	class TestListener implements CCNInterestListener {
 
 		public Interest handleContent(ContentObject co,
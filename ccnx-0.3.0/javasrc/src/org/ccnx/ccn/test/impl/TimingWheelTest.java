@@ -0,0 +1,112 @@
+/**
+ * A CCNx library test.
+ *
+ * Copyright (C) 2008, 2009, 2010 Palo Alto Research Center, Inc.
+ *
+ * This work is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License version 2 as published by the
+ * Free Software Foundation.
+ * This work is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details. You should have received a copy of the GNU General Public
+ * License along with this program; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+
+package org.ccnx.ccn.test.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.ccnx.ccn.impl.support.TimingWheel;
+import org.junit.Test;
+
+/**
+ * Test that items come due from a TimingWheel at the right tick, including
+ * items scheduled more than a revolution ahead and after the wheel has been idle,
+ * and that cancelled items do not.
+ */
+public class TimingWheelTest {
+
+	static final long TICK = 20;
+	static final int SLOTS = 16;
+
+	@Test
+	public void testDue() {
+		long start = 100000;
+		TimingWheel<Integer> wheel = new TimingWheel<Integer>(TICK, SLOTS, start);
+		wheel.schedule(1, start + 50);
+		wheel.schedule(2, start + 50);
+		wheel.schedule(3, start + 200);
+		wheel.schedule(4, start + TICK * SLOTS + 50); // same slot as 1 and 2, one revolution later
+		wheel.schedule(5, start - 1000); // already past
+		assertEquals(5, wheel.size());
+
+		ArrayList<Integer> due = new ArrayList<Integer>();
+		assertEquals(1, wheel.advance(start, due));
+		assertEquals(5, due.get(0).intValue());
+
+		due.clear();
+		wheel.advance(start + 39, due);
+		assertTrue(due.isEmpty());
+		wheel.advance(start + 60, due);
+		assertEquals(2, due.size());
+		assertTrue(due.contains(1) && due.contains(2));
+
+		due.clear();
+		wheel.advance(start + 199, due);
+		assertTrue(due.isEmpty());
+		wheel.advance(start + 200, due);
+		assertEquals(1, due.size());
+		assertEquals(3, due.get(0).intValue());
+
+		due.clear();
+		wheel.advance(start + TICK * SLOTS + 10, due);
+		assertTrue(due.isEmpty());
+		assertEquals(1, wheel.size());
+		wheel.advance(start + TICK * SLOTS + 60, due);
+		assertEquals(1, due.size());
+		assertEquals(4, due.get(0).intValue());
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testIdle() {
+		long start = 100000;
+		TimingWheel<Integer> wheel = new TimingWheel<Integer>(TICK, SLOTS, start);
+		for (int i = 0; i < 100; i++) {
+			wheel.schedule(i, start + i * 37);
+		}
+		ArrayList<Integer> due = new ArrayList<Integer>();
+		// Several revolutions without advancing
+		wheel.advance(start + 100 * 37 + 10 * TICK * SLOTS, due);
+		assertEquals(100, due.size());
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testCancel() {
+		long start = 100000;
+		TimingWheel<Integer> wheel = new TimingWheel<Integer>(TICK, SLOTS, start);
+		TimingWheel.Entry<Integer> one = wheel.schedule(1, start + 50);
+		TimingWheel.Entry<Integer> two = wheel.schedule(2, start + 50);
+		wheel.schedule(3, start + 50);
+		assertEquals(3, wheel.size());
+		assertTrue(two.cancel());
+		assertFalse(two.cancel());
+		assertEquals(2, wheel.size());
+
+		ArrayList<Integer> due = new ArrayList<Integer>();
+		assertEquals(2, wheel.advance(start + 60, due));
+		assertTrue(due.contains(1) && due.contains(3));
+		assertEquals(0, wheel.size());
+		// Too late once it has come due
+		assertFalse(one.cancel());
+		assertEquals(0, wheel.size());
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * A CCNx library test.
+ *
+ * Copyright (C) 2008, 2009, 2010 Palo Alto Research Center, Inc.
+ *
+ * This work is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License version 2 as published by the
+ * Free Software Foundation.
+ * This work is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details. You should have received a copy of the GNU General Public
+ * License along with this program; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+
+package org.ccnx.ccn.test.impl.encoding;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.ccnx.ccn.impl.encoding.BinaryXMLBufferCodec;
+import org.ccnx.ccn.impl.encoding.BinaryXMLBufferDecoder;
+import org.ccnx.ccn.impl.encoding.BinaryXMLBufferEncoder;
+import org.ccnx.ccn.impl.encoding.BinaryXMLCodec;
+import org.ccnx.ccn.impl.encoding.BinaryXMLEncoder;
+import org.ccnx.ccn.impl.encoding.CCNProtocolDTags;
+import org.ccnx.ccn.impl.encoding.XMLEncodable;
+import org.ccnx.ccn.impl.encoding.XMLEncoder;
+import org.ccnx.ccn.io.content.ContentEncodingException;
+import org.ccnx.ccn.protocol.CCNTime;
+import org.ccnx.ccn.protocol.ContentName;
+import org.ccnx.ccn.protocol.ContentObject;
+import org.ccnx.ccn.protocol.Exclude;
+import org.ccnx.ccn.protocol.Interest;
+import org.ccnx.ccn.protocol.KeyLocator;
+import org.ccnx.ccn.protocol.PublisherPublicKeyDigest;
+import org.ccnx.ccn.protocol.SignedInfo;
+import org.ccnx.ccn.protocol.WirePacket;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Check that the ByteBuffer codec reads and writes exactly what the stream
+ * codec does, from heap and direct buffers.
+ */
+public class BinaryXMLBufferCodecTest {
+
+	static KeyPair pair;
+	static ContentObject co;
+	static Interest interest;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		Security.addProvider(new BouncyCastleProvider());
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(512); // go for fast
+		pair = kpg.generateKeyPair();
+
+		ContentName name = ContentName.fromURI("/test/buffer/codec");
+		SignedInfo signedInfo = new SignedInfo(new PublisherPublicKeyDigest(pair.getPublic()),
+				CCNTime.now(), SignedInfo.ContentType.DATA, new KeyLocator(pair.getPublic()));
+		byte [] content = new byte[300];
+		for (int i = 0; i < content.length; i++)
+			content[i] = (byte)i;
+		co = new ContentObject(name, signedInfo, content, pair.getPrivate());
+
+		interest = new Interest(name);
+		interest.maxSuffixComponents(3);
+		interest.exclude(new Exclude(new byte [][]{"a".getBytes(), "b".getBytes()}));
+		interest.answerOriginKind(Interest.ANSWER_CONTENT_STORE);
+	}
+
+	@Test
+	public void testSameEncoding() throws Exception {
+		Assert.assertArrayEquals(interest.encode(BinaryXMLCodec.codecName()),
+								 interest.encode(BinaryXMLBufferCodec.codecName()));
+		// Fresh objects, so neither has an encoding kept from before
+		Assert.assertArrayEquals(encode(new BinaryXMLEncoder(), copy(co)),
+								 encode(new BinaryXMLBufferEncoder(), copy(co)));
+	}
+
+	static ContentObject copy(ContentObject object) {
+		return new ContentObject(object.name(), object.signedInfo(), object.content(), object.signature());
+	}
+
+	static byte [] encode(XMLEncoder encoder, XMLEncodable object) throws ContentEncodingException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		encoder.beginEncoding(baos);
+		object.encode(encoder);
+		encoder.endEncoding();
+		return baos.toByteArray();
+	}
+
+	@Test
+	public void testDecode() throws Exception {
+		byte [] encoding = interest.encode(BinaryXMLCodec.codecName());
+		Interest decoded = new Interest();
+		decoded.decode(encoding, BinaryXMLBufferCodec.codecName());
+		Assert.assertEquals(interest, decoded);
+
+		// Read through a stream, the buffer codec falls back to the stream decoder
+		decoded = new Interest();
+		decoded.decode(new ByteArrayInputStream(encoding), BinaryXMLBufferCodec.codecName());
+		Assert.assertEquals(interest, decoded);
+	}
+
+	@Test
+	public void testDirectBuffer() throws Exception {
+		WirePacket packet = new WirePacket(co);
+		packet.add(interest);
+		byte [] encoding = packet.encode();
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(encoding.length + 10);
+		direct.position(7);
+		direct.put(encoding);
+		direct.flip();
+		direct.position(7);
+
+		WirePacket decoded = new WirePacket();
+		decoded.decode(direct);
+		Assert.assertEquals(7, direct.position());
+		Assert.assertEquals(1, decoded.data().size());
+		Assert.assertEquals(1, decoded.interests().size());
+		Assert.assertEquals(co, decoded.data().get(0));
+		Assert.assertTrue(decoded.data().get(0).verify(pair.getPublic()));
+		Assert.assertEquals(interest, decoded.interests().get(0));
+	}
+
+	@Test
+	public void testSlices() throws Exception {
+		byte [] encoding = co.encode();
+		BinaryXMLBufferDecoder decoder = new BinaryXMLBufferDecoder();
+		decoder.beginDecoding(ByteBuffer.wrap(encoding));
+		ByteBuffer element = decoder.readEncodedElementSlice(CCNProtocolDTags.ContentObject);
+		Assert.assertEquals(encoding.length, element.remaining());
+		Assert.assertEquals(encoding.length, decoder.position());
+
+		// Pick out the content without copying it
+		decoder.beginDecoding(ByteBuffer.wrap(encoding));
+		decoder.readStartElement(CCNProtocolDTags.ContentObject);
+		decoder.readEncodedElementSlice(CCNProtocolDTags.Signature);
+		decoder.readEncodedElementSlice(CCNProtocolDTags.Name);
+		decoder.readEncodedElementSlice(CCNProtocolDTags.SignedInfo);
+		ByteBuffer content = decoder.readBinaryElementSlice(CCNProtocolDTags.Content);
+		Assert.assertEquals(co.contentLength(), content.remaining());
+		byte [] copy = new byte[content.remaining()];
+		content.get(copy);
+		Assert.assertArrayEquals(co.content(), copy);
+		decoder.readEndElement();
+		decoder.endDecoding();
+	}
+
+	@Test
+	public void testEncodeIntoBuffer() throws Exception {
+		byte [] expected = interest.encode(BinaryXMLCodec.codecName());
+		ByteBuffer buf = ByteBuffer.allocateDirect(expected.length + 4);
+		buf.position(4);
+		BinaryXMLBufferEncoder encoder = new BinaryXMLBufferEncoder();
+		encoder.beginEncoding(buf);
+		interest.encode(encoder);
+		encoder.endEncoding();
+		Assert.assertFalse(buf.hasRemaining());
+		byte [] written = new byte[expected.length];
+		buf.position(4);
+		buf.get(written);
+		Assert.assertArrayEquals(expected, written);
+
+		// A buffer we are given is not grown
+		buf = ByteBuffer.allocate(expected.length - 1);
+		encoder.beginEncoding(buf);
+		try {
+			interest.encode(encoder);
+			Assert.fail("Encoded into a buffer that was too small");
+		} catch (ContentEncodingException e) {
+			// expected
+		}
+	}
+}
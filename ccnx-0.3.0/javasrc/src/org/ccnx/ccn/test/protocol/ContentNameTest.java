@@ -537,4 +537,42 @@ public class ContentNameTest {
 		
 	}
 
+	@Test
+	public void testCachedHashes() throws Exception {
+		ContentName name = ContentName.fromNative(new String[]{baseName, subName1, document1});
+		ContentName other = ContentName.fromNative(new String[]{baseName, subName2, document1});
+		// Same values as before hashes were cached
+		int expected = 1;
+		for (int i = 0; i < name.count(); i++) {
+			assertEquals(java.util.Arrays.hashCode(name.component(i)), name.componentHash(i));
+			assertEquals(expected, name.prefixHash(i));
+			expected = 31 * expected + java.util.Arrays.hashCode(name.component(i));
+		}
+		assertEquals(expected, name.hashCode());
+
+		// Names cut from a hashed name share its hashes, and still compare correctly
+		ContentName parent = name.parent();
+		assertEquals(name.prefixHash(2), parent.hashCode());
+		assertEquals(ContentName.fromNative(new String[]{baseName, subName1}), parent);
+		assertEquals(parent.hashCode(), name.cut(2).hashCode());
+		assertEquals(name.prefixHash(1), name.cut(1).hashCode());
+
+		// Fast rejects once both names are hashed
+		other.hashCode();
+		assertFalse(name.equals(other));
+		assertFalse(parent.isPrefixOf(other));
+		assertTrue(name.cut(1).isPrefixOf(other));
+		assertFalse(other.isPrefixOf(name, 3));
+		assertTrue(other.isPrefixOf(name, 1));
+		assertFalse(name.isPrefixOf(parent, 3));
+		assertFalse(parent.isPrefixOf(name, 3));
+
+		// Decoding into a hashed name starts again
+		ContentName decoded = new ContentName(name);
+		decoded.hashCode();
+		decoded.decode(other.encode());
+		assertEquals(other, decoded);
+		assertEquals(other.hashCode(), decoded.hashCode());
+	}
+
 }
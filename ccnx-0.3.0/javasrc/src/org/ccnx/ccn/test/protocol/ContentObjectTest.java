@@ -17,6 +17,8 @@
 
 package org.ccnx.ccn.test.protocol;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
@@ -26,7 +28,12 @@ import java.util.Arrays;
 import java.util.Date;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.ccnx.ccn.impl.encoding.BinaryXMLBufferCodec;
+import org.ccnx.ccn.impl.encoding.CCNProtocolDTags;
+import org.ccnx.ccn.impl.encoding.XMLCodecFactory;
+import org.ccnx.ccn.impl.encoding.XMLEncoder;
 import org.ccnx.ccn.impl.support.DataUtils;
+import org.ccnx.ccn.io.content.ContentDecodingException;
 import org.ccnx.ccn.protocol.CCNTime;
 import org.ccnx.ccn.protocol.ContentName;
 import org.ccnx.ccn.protocol.ContentObject;
@@ -34,6 +41,7 @@ import org.ccnx.ccn.protocol.KeyLocator;
 import org.ccnx.ccn.protocol.PublisherPublicKeyDigest;
 import org.ccnx.ccn.protocol.Signature;
 import org.ccnx.ccn.protocol.SignedInfo;
+import org.ccnx.ccn.protocol.WirePacket;
 import org.ccnx.ccn.test.impl.encoding.XMLEncodableTester;
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -150,6 +158,84 @@ public class ContentObjectTest {
 		}
 	}
 	
+	@Test
+	public void testPacketDecode() throws Exception {
+		ContentObject co = new ContentObject(name, auth, document3, pair.getPrivate());
+		ContentObject cokey = new ContentObject(keyname, authKey, document3, pair.getPrivate());
+		WirePacket packet = new WirePacket();
+		// Decode twice into the same packet, to exercise reuse of its decoder
+		for (int i = 0; i < 2; i++) {
+			WirePacket out = new WirePacket(co);
+			out.add(cokey);
+			packet.decode(ByteBuffer.wrap(out.encode()));
+			Assert.assertEquals(2, packet.data().size());
+			Assert.assertEquals(0, packet.interests().size());
+			ContentObject decoded = packet.data().get(0);
+			Assert.assertEquals(name, decoded.name());
+			Assert.assertEquals(auth, decoded.signedInfo());
+			Assert.assertEquals(co.signature(), decoded.signature());
+			Assert.assertTrue(decoded.verify(pair.getPublic()));
+			Assert.assertEquals(co, decoded);
+			// Digest is taken over the encoding the object was decoded from
+			ContentObject decodedKey = packet.data().get(1);
+			Assert.assertArrayEquals(cokey.digest(), decodedKey.digest());
+			Assert.assertEquals(authKey, decodedKey.signedInfo());
+		}
+	}
+
+	@Test
+	public void testMalformedDecode() throws Exception {
+		// Well formed ccnb, but a SignedInfo whose Type is not one we know
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		XMLEncoder encoder = XMLCodecFactory.getEncoder(BinaryXMLBufferCodec.codecName());
+		encoder.beginEncoding(baos);
+		encoder.writeStartElement(CCNProtocolDTags.ContentObject);
+		signature.encode(encoder);
+		name.encode(encoder);
+		encoder.writeStartElement(CCNProtocolDTags.SignedInfo);
+		encoder.writeElement(CCNProtocolDTags.Type, new byte[]{0x01, 0x02, 0x03});
+		encoder.writeEndElement();
+		encoder.writeElement(CCNProtocolDTags.Content, document3);
+		encoder.writeEndElement();
+		encoder.endEncoding();
+
+		try {
+			new ContentObject().decode(baos.toByteArray());
+			Assert.fail("Decoded content with a malformed signed info");
+		} catch (ContentDecodingException e) {}
+		try {
+			new WirePacket().decode(ByteBuffer.wrap(baos.toByteArray()));
+			Assert.fail("Decoded a packet with a malformed signed info");
+		} catch (ContentDecodingException e) {}
+	}
+
+	@Test
+	public void testCachedEncoding() throws Exception {
+		ContentObject co = new ContentObject(name, auth, document3, pair.getPrivate());
+		byte [] encoding = co.encode();
+		Assert.assertArrayEquals(encoding, co.encode());
+		Assert.assertNotSame(co.encode(), co.encode());
+		Assert.assertSame(co.fullName(), co.fullName());
+
+		// A decoded object writes out the bytes it was decoded from
+		ContentObject decoded = new ContentObject();
+		decoded.decode(encoding);
+		Assert.assertArrayEquals(encoding, decoded.encode());
+		Assert.assertArrayEquals(co.digest(), decoded.digest());
+		Assert.assertEquals(co.fullName(), decoded.fullName());
+		WirePacket packet = new WirePacket(decoded);
+		WirePacket copied = new WirePacket();
+		copied.decode(ByteBuffer.wrap(packet.encode()));
+		Assert.assertArrayEquals(encoding, copied.data().get(0).encode());
+
+		// Changing the signature drops the encoding and the digest
+		byte [] digest = decoded.digest();
+		decoded.setSignature(signature);
+		Assert.assertFalse(Arrays.equals(encoding, decoded.encode()));
+		Assert.assertFalse(Arrays.equals(digest, decoded.digest()));
+		Assert.assertEquals(signature, decoded.signature());
+	}
+
 	@Test
 	public void testImmutable() {
 		try {
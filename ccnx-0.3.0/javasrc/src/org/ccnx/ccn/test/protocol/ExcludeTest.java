@@ -153,6 +153,27 @@ public class ExcludeTest {
 		assertTrue(ef.match(b06));
 	}
 
+	@Test
+	public void testMatchFillers() {
+		al.add(any);
+		al.add(c1);
+		al.add(c3);
+		al.add(c06);
+		al.add(any);
+		ef = new Exclude(al);
+		assertTrue(ef.match(b0));
+		assertTrue(ef.match(b1));
+		assertFalse(ef.match("2".getBytes()));
+		assertTrue(ef.match(b3));
+		assertFalse(ef.match("05".getBytes()));
+		assertTrue(ef.match(b06));
+		assertTrue(ef.match("07".getBytes()));
+		assertTrue(ef.match(b000));
+		ef.excludeUpto(b3);
+		assertTrue(ef.match("2".getBytes()));
+		assertFalse(ef.match("05".getBytes()));
+	}
+
 	@Test
 	public void testEmpty() {
 		ef = Exclude.uptoFactory(b0);
@@ -186,4 +186,39 @@ public class InterestTest extends CCNTestBase {
 		interest = new Interest(ContentName.fromNative(name, "simon"));
 		Assert.assertFalse(interest.matches(co));
 	}
+
+	@Test
+	public void testMatcher() throws MalformedContentNameStringException {
+		ContentName name = ContentName.fromNative("/paul/car/red");
+		ContentObject co = new ContentObject(name,fakeSignedInfo,"hello".getBytes(),fakeSignature);
+		Interest interest = new Interest("/paul");
+		Assert.assertTrue(interest.matches(co));
+		Assert.assertFalse(new Interest("/paula").matches(co));
+		Assert.assertFalse(new Interest("/paul/bike").matches(co));
+
+		// Two components plus the digest
+		interest.maxSuffixComponents(2);
+		Assert.assertFalse(interest.matches(co));
+		interest.maxSuffixComponents(3);
+		Assert.assertTrue(interest.matches(co));
+		interest.minSuffixComponents(4);
+		Assert.assertFalse(interest.matches(co));
+		interest.minSuffixComponents(3);
+		Assert.assertTrue(interest.matches(co));
+
+		// Changing the filter after matching is seen
+		Exclude exclude = Exclude.factory(new byte [][]{"bike".getBytes()});
+		interest.exclude(exclude);
+		Assert.assertTrue(interest.matches(co));
+		exclude.add(new byte [][]{"car".getBytes()});
+		Assert.assertFalse(interest.matches(co));
+		interest.exclude(null);
+
+		interest.publisherID(new PublisherID(fakeSignedInfo.getPublisherKeyID()));
+		Assert.assertTrue(interest.matches(co));
+		Assert.assertFalse(interest.matches(co, null));
+		interest.publisherID(new PublisherID(CCNDigestHelper.digest("other".getBytes()), PublisherID.PublisherType.KEY));
+		Assert.assertFalse(interest.matches(co));
+		Assert.assertTrue(interest.matcher().matchesName(name));
+	}
 }
@@ -20,7 +20,11 @@ package org.ccnx.ccn.test.repo;
 import java.io.File;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+import org.ccnx.ccn.config.SystemConfiguration;
 import org.ccnx.ccn.config.UserConfiguration;
 import org.ccnx.ccn.impl.repo.LogStructRepoStore;
 import org.ccnx.ccn.impl.repo.RepositoryException;
@@ -114,6 +118,172 @@ public class RFSTest extends RepoTestBase {
 		repolog.shutDown();
 	}
 	
+	@Test
+	public void testIndexCheckpoint() throws Exception {
+		System.out.println("Testing repository index checkpoint");
+		File dir = new File(_fileTestDir3);
+		DataUtils.deleteDirectory(dir);
+		RepositoryStore repo = new LogStructRepoStore();
+		repo.initialize(_fileTestDir3, null, _repoName, _globalPrefix, null, null);
+		ContentName name = ContentName.fromNative("/repoTest/checkpoint1");
+		repo.saveContent(ContentObject.buildContentObject(name, "Before checkpoint".getBytes()));
+		repo.shutDown();
+		Assert.assertTrue(new File(dir, LogStructRepoStoreProfile.INDEX_FILE).exists());
+		
+		// Read back from the checkpoint, then add more without shutting down
+		repo = new LogStructRepoStore();
+		repo.initialize(_fileTestDir3, null, _repoName, _globalPrefix, null, null);
+		checkData(repo, name, "Before checkpoint");
+		ContentName name2 = ContentName.fromNative("/repoTest/checkpoint2");
+		repo.saveContent(ContentObject.buildContentObject(name2, "After checkpoint".getBytes()));
+		
+		// The tail past the checkpoint is read from the repository file
+		RepositoryStore repo2 = new LogStructRepoStore();
+		repo2.initialize(_fileTestDir3, null, _repoName, _globalPrefix, null, null);
+		checkData(repo2, name, "Before checkpoint");
+		checkData(repo2, name2, "After checkpoint");
+		repo2.shutDown();
+		repo.shutDown();
+	}
+	
+	@Test
+	public void testCompaction() throws Exception {
+		System.out.println("Testing repository file rollover and compaction");
+		File dir = new File(_fileTestDir3);
+		DataUtils.deleteDirectory(dir);
+		long segmentSize = SystemConfiguration.REPO_SEGMENT_SIZE;
+		SystemConfiguration.REPO_SEGMENT_SIZE = 1;	// every batch in a file of its own
+		try {
+			LogStructRepoStore repo = new LogStructRepoStore();
+			repo.initialize(_fileTestDir3, null, _repoName, _globalPrefix, null, null);
+			ContentName name = ContentName.fromNative("/repoTest/compact");
+			ContentObject content = ContentObject.buildContentObject(name, "Compact me".getBytes());
+			for (int i = 0; i < 5; i++)
+				repo.saveContent(content);	// duplicates, never indexed
+			int before = dir.list().length;
+			Assert.assertTrue(repo.compact() > 0);
+			Assert.assertTrue(dir.list().length < before);
+			checkData(repo, name, "Compact me");
+			repo.shutDown();
+			
+			repo = new LogStructRepoStore();
+			repo.initialize(_fileTestDir3, null, _repoName, _globalPrefix, null, null);
+			checkData(repo, name, "Compact me");
+			repo.shutDown();
+		} finally {
+			SystemConfiguration.REPO_SEGMENT_SIZE = segmentSize;
+		}
+	}
+	
+	@Test
+	public void testBatchWrite() throws Exception {
+		System.out.println("Testing batched writes to repo");
+		String policy = SystemConfiguration.REPO_FSYNC_POLICY;
+		String [] policies = {SystemConfiguration.REPO_FSYNC_NONE, SystemConfiguration.REPO_FSYNC_BATCH,
+				SystemConfiguration.REPO_FSYNC_INTERVAL_POLICY};
+		try {
+			for (String p : policies) {
+				System.out.println("Repotest - batched writes with sync policy " + p);
+				SystemConfiguration.REPO_FSYNC_POLICY = p;
+				File dir = new File(_fileTestDir3);
+				DataUtils.deleteDirectory(dir);
+				RepositoryStore repo = new LogStructRepoStore();
+				repo.initialize(_fileTestDir3, null, _repoName, _globalPrefix, null, null);
+				ContentName prefix = ContentName.fromNative("/repoTest/batch");
+				
+				// Several objects in one write
+				ArrayList<ContentObject> small = new ArrayList<ContentObject>();
+				for (int i = 0; i < 10; i++) {
+					small.add(ContentObject.buildContentObject(new ContentName(prefix, ("small" + i).getBytes()), 
+							("Batch " + i).getBytes()));
+				}
+				repo.saveContent(small);
+				
+				// More than the write buffer (1MB) holds, so written in several pieces
+				ArrayList<ContentObject> large = new ArrayList<ContentObject>();
+				for (int i = 0; i < 24; i++) {
+					byte [] data = new byte[64 * 1024];
+					rand.nextBytes(data);
+					large.add(ContentObject.buildContentObject(new ContentName(prefix, ("large" + i).getBytes()), data));
+				}
+				repo.saveContent(large);
+				
+				// One object bigger than the whole write buffer, between two that fit
+				ArrayList<ContentObject> huge = new ArrayList<ContentObject>();
+				byte [] data = new byte[3 * 512 * 1024];
+				rand.nextBytes(data);
+				huge.add(ContentObject.buildContentObject(new ContentName(prefix, "before".getBytes()), "Before".getBytes()));
+				huge.add(ContentObject.buildContentObject(new ContentName(prefix, "huge".getBytes()), data));
+				huge.add(ContentObject.buildContentObject(new ContentName(prefix, "after".getBytes()), "After".getBytes()));
+				repo.saveContent(huge);
+				
+				if (SystemConfiguration.REPO_FSYNC_INTERVAL_POLICY.equals(p))
+					Thread.sleep(2 * SystemConfiguration.REPO_FSYNC_INTERVAL);	// let the sync timer run
+				checkData(repo, small);
+				checkData(repo, large);
+				checkData(repo, huge);
+				repo.shutDown();
+				
+				// And again from the files
+				repo = new LogStructRepoStore();
+				repo.initialize(_fileTestDir3, null, _repoName, _globalPrefix, null, null);
+				checkData(repo, small);
+				checkData(repo, large);
+				checkData(repo, huge);
+				repo.shutDown();
+			}
+		} finally {
+			SystemConfiguration.REPO_FSYNC_POLICY = policy;
+		}
+	}
+	
+	@Test
+	public void testInterruptedRead() throws Exception {
+		System.out.println("Testing repository read after an interrupted read");
+		File dir = new File(_fileTestDir3);
+		DataUtils.deleteDirectory(dir);
+		final RepositoryStore repo = new LogStructRepoStore();
+		repo.initialize(_fileTestDir3, null, _repoName, _globalPrefix, null, null);
+		ContentName name = ContentName.fromNative("/repoTest/interrupted");
+		byte [] data = new byte[3 * 512 * 1024];
+		rand.nextBytes(data);
+		ContentObject content = ContentObject.buildContentObject(name, data);
+		repo.saveContent(content);
+		
+		// Read until interrupted; the interrupt closes the channel the reader was using
+		final Interest interest = new Interest(name);
+		final int [] reads = new int[1];
+		Thread reader = new Thread() {
+			public void run() {
+				try {
+					while (null != repo.getContent(interest))
+						reads[0]++;
+				} catch (RepositoryException e) {}
+			}
+		};
+		reader.start();
+		Thread.sleep(100);
+		reader.interrupt();
+		reader.join(10000);
+		Assert.assertFalse(reader.isAlive());
+		Assert.assertTrue(reads[0] > 0);
+		
+		// Later reads of the same object, from this thread and another, still work
+		checkData(repo, Arrays.asList(content));
+		final boolean [] read = new boolean[1];
+		Thread rereader = new Thread() {
+			public void run() {
+				try {
+					read[0] = (null != repo.getContent(interest));
+				} catch (RepositoryException e) {}
+			}
+		};
+		rereader.start();
+		rereader.join(10000);
+		Assert.assertTrue(read[0]);
+		repo.shutDown();
+	}
+	
 	public void test(RepositoryStore repo) throws Exception{		
 		System.out.println("Repotest - Testing basic data");
 		ContentName name = ContentName.fromNative("/repoTest/data1");
@@ -431,6 +601,14 @@ public class RFSTest extends RepoTestBase {
 		Assert.assertEquals(data, new String(testContent.content()));		
 	}
 	
+	private void checkData(RepositoryStore repo, List<ContentObject> content) throws RepositoryException {
+		for (ContentObject co : content) {
+			ContentObject testContent = repo.getContent(new Interest(co.name()));
+			Assert.assertFalse(testContent == null);
+			Assert.assertTrue(Arrays.equals(co.content(), testContent.content()));
+		}
+	}
+	
 	private void checkDataAndPublisher(RepositoryStore repo, ContentName name, String data, PublisherPublicKeyDigest publisher) 
 				throws RepositoryException {
 		Interest interest = new Interest(name, new PublisherID(publisher));